@@ -0,0 +1,94 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversion of a section between its types and the Anvil
+ * arrays, with and without the upper bits of the block ids.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnvilSectionCodecBenchmark {
+
+    @Param({"false", "true"})
+    public boolean extended;
+
+    private char[] types;
+    private char[] decoded;
+    private byte[] blocks;
+    private byte[] add;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        types = new char[AnvilSectionCodec.SECTION_SIZE];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = (char) random.nextInt(extended ? 1 << 16 : 1 << 12);
+        }
+        decoded = new char[types.length];
+        blocks = new byte[types.length];
+        data = new byte[types.length >> 1];
+        AnvilSectionCodec.encode(types, blocks, data);
+        add = AnvilSectionCodec.encodeAdd(types);
+    }
+
+    @Benchmark
+    public char[] decode() {
+        return AnvilSectionCodec.decode(blocks, add, data, decoded);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        AnvilSectionCodec.encode(types, blocks, data);
+        return blocks;
+    }
+
+    @Benchmark
+    public byte[] encodeWithAdd() {
+        AnvilSectionCodec.encode(types, blocks, data);
+        AnvilSectionCodec.encodeAdd(types, AnvilSectionCodec.getBuffers().getAdd(0));
+        return blocks;
+    }
+}
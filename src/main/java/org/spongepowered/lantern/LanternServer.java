@@ -75,6 +75,11 @@ public class LanternServer implements Server {
     public static final String NETHER_NAME = "DIM-1";
     public static final String THE_END_NAME = "DIM1";
 
+    /**
+     * The time to wait for each world to save when the server shuts down.
+     */
+    private static final long WORLD_SHUTDOWN_TIMEOUT_MS = 60000;
+
     /**
      * A list of all active {@link LanternSession}s.
      */
@@ -465,12 +470,23 @@ public class LanternServer implements Server {
 
     @Override
     public void shutdown() {
-        //TODO: Implement
+        shutdown(Texts.of());
     }
 
     @Override
     public void shutdown(Text kickMessage) {
-        //TODO: Implement
+        sessionRegistry.disconnectAll(Texts.toPlain(kickMessage));
+
+        // the world threads save their world once they have finished their last tick
+        LanternScheduler.getInstance().stop();
+        try {
+            if (!LanternScheduler.getInstance().getWorldScheduler().awaitTermination(WORLD_SHUTDOWN_TIMEOUT_MS)) {
+                SpongeImpl.getLogger().warn("Not every world finished saving in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        networkServer.shutdown();
     }
 
     @Override
@@ -24,25 +24,104 @@
  */
 package org.spongepowered.lantern.block.tileentity;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.spongepowered.api.data.DataQuery.of;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.api.block.BlockState;
 import org.spongepowered.api.block.tileentity.TileEntity;
 import org.spongepowered.api.data.DataView;
+import org.spongepowered.api.world.Location;
+import org.spongepowered.api.world.World;
 import org.spongepowered.lantern.data.LanternDataHolder;
 
+import javax.annotation.Nullable;
+
 public abstract class LanternTileEntity extends LanternDataHolder implements TileEntity {
 
+    private boolean valid = true;
+
+    /**
+     * The world of this tile entity, or null until it is placed.
+     */
+    @Nullable private World world;
+
+    /**
+     * The position of the block of this tile entity within its world.
+     */
+    private Vector3i position = Vector3i.ZERO;
+
     public LanternTileEntity(DataView dataView) {
         super(dataView);
-        //TODO: Implement
     }
 
-    public void loadNbt(DataView tileEntityTag) {
-        // TODO: Implement
+    /**
+     * Places this tile entity at a block.
+     * @param world The world of the block
+     * @param position The position of the block
+     */
+    public void setLocation(World world, Vector3i position) {
+        this.world = checkNotNull(world);
+        this.position = checkNotNull(position);
     }
 
-    public void saveNbt(DataView tag) {
-        // TODO: Implement
+    @Override
+    public World getWorld() {
+        checkState(this.world != null, "The tile entity isn't placed");
+        return this.world;
+    }
+
+    @Override
+    public Location<World> getLocation() {
+        return new Location<>(getWorld(), this.position);
     }
 
-    //TODO
+    @Override
+    public BlockState getBlock() {
+        return getWorld().getBlock(this.position);
+    }
+
+    @Override
+    public boolean isValid() {
+        return valid;
+    }
 
+    @Override
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    /**
+     * Gets whether this tile entity is updated every tick, in which case it
+     * is kept in the ticking list of its world while its chunk is loaded.
+     * @return Whether this tile entity is tickable
+     */
+    public boolean isTickable() {
+        return false;
+    }
+
+    /**
+     * Updates this tile entity, if it is tickable.
+     */
+    public void pulse() {
+    }
+
+    /**
+     * Loads the stored data of this tile entity. Its position is given by
+     * the block it is placed at instead.
+     * @param tileEntityTag The stored data
+     */
+    public void loadNbt(DataView tileEntityTag) {
+    }
+
+    /**
+     * Writes the data of this tile entity to be stored.
+     * @param tag The tag to write to
+     */
+    public void saveNbt(DataView tag) {
+        tag.set(of("x"), this.position.getX());
+        tag.set(of("y"), this.position.getY());
+        tag.set(of("z"), this.position.getZ());
+    }
 }
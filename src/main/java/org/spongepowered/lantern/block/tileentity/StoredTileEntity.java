@@ -0,0 +1,106 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.block.tileentity;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.spongepowered.lantern.data.util.DataQueries.ENTITY_ID;
+
+import com.google.common.collect.ImmutableSet;
+import org.spongepowered.api.block.tileentity.TileEntityType;
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.api.data.DataHolder;
+import org.spongepowered.api.data.DataQuery;
+import org.spongepowered.api.data.DataView;
+import org.spongepowered.api.data.MemoryDataContainer;
+
+import java.util.Set;
+
+/**
+ * A tile entity of which the behaviour isn't implemented yet. Its stored
+ * data is kept as it was read, so it is saved again unchanged.
+ */
+public class StoredTileEntity extends LanternTileEntity {
+
+    /**
+     * The ids of the tile entities which vanilla updates every tick.
+     */
+    private static final Set<String> TICKING = ImmutableSet.of("Beacon", "Cauldron", "Chest", "DLDetector", "EnchantTable",
+            "EnderChest", "Furnace", "Hopper", "MobSpawner", "Piston");
+
+    private final TileEntityType type;
+
+    /**
+     * The id this tile entity is stored with.
+     */
+    private final String id;
+
+    /**
+     * The stored data of this tile entity, empty for a new one.
+     */
+    private DataContainer data = new MemoryDataContainer();
+
+    /**
+     * Creates a new tile entity without stored data.
+     * @param type The type of the tile entity
+     * @param id The id the tile entity is stored with
+     */
+    public StoredTileEntity(TileEntityType type, String id) {
+        super(new MemoryDataContainer());
+        this.type = type;
+        this.id = checkNotNull(id);
+    }
+
+    @Override
+    public TileEntityType getType() {
+        return this.type;
+    }
+
+    @Override
+    public boolean isTickable() {
+        return TICKING.contains(this.id);
+    }
+
+    @Override
+    public void loadNbt(DataView tileEntityTag) {
+        super.loadNbt(tileEntityTag);
+        this.data = tileEntityTag.copy();
+    }
+
+    @Override
+    public void saveNbt(DataView tag) {
+        for (DataQuery key : this.data.getKeys(false)) {
+            tag.set(key, this.data.get(key).get());
+        }
+        tag.set(ENTITY_ID, this.id);
+        super.saveNbt(tag);
+    }
+
+    @Override
+    public DataHolder copy() {
+        StoredTileEntity copy = new StoredTileEntity(this.type, this.id);
+        copy.data = this.data.copy();
+        return copy;
+    }
+}
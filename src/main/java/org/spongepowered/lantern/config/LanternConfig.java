@@ -79,6 +79,22 @@ public class LanternConfig<T extends LanternConfig.ConfigBase> {
 
     public static final String CONFIG_ENABLED = "config-enabled";
 
+    // CHUNK IO
+    public static final String CHUNK_IO_WRITE_QUEUE_SIZE = "write-queue-size";
+    public static final String CHUNK_IO_WRITE_THREADS = "write-threads";
+    public static final String CHUNK_IO_SYNC_INTERVAL = "sync-interval";
+    public static final String CHUNK_IO_SYNC_THRESHOLD = "sync-threshold";
+    public static final String CHUNK_IO_MAX_OPEN_REGIONS = "max-open-regions";
+    public static final String CHUNK_IO_COMPACTION_INTERVAL = "compaction-interval";
+    public static final String CHUNK_IO_COMPACTION_THRESHOLD = "compaction-threshold";
+    public static final String CHUNK_IO_COMPACTION_RATE = "compaction-rate";
+    public static final String CHUNK_IO_PREFETCH_DEPTH = "prefetch-depth";
+    public static final String CHUNK_IO_LOAD_THREADS = "load-threads";
+    public static final String CHUNK_IO_GENERATION_THREADS = "generation-threads";
+    public static final String CHUNK_IO_LIGHT_THREADS = "light-threads";
+    public static final String CHUNK_IO_PREGEN_THREADS = "pregen-threads";
+    public static final String CHUNK_IO_PREGEN_MAX_TICK_TIME = "pregen-max-tick-time";
+
     // DEBUG
     public static final String DEBUG_THREAD_CONTENTION_MONITORING = "thread-contention-monitoring";
     public static final String DEBUG_DUMP_CHUNKS_ON_DEADLOCK = "dump-chunks-on-deadlock";
@@ -136,6 +152,10 @@ public class LanternConfig<T extends LanternConfig.ConfigBase> {
     public static final String WORLD_INFINITE_WATER_SOURCE = "infinite-water-source";
     public static final String WORLD_KEEP_SPAWN_LOADED = "keep-spawn-loaded";
     public static final String WORLD_LOAD_ON_STARTUP = "load-on-startup";
+    public static final String WORLD_CHUNK_COMPRESSION = "chunk-compression";
+    public static final String WORLD_CHUNK_COMPRESSION_LEVEL = "chunk-compression-level";
+    public static final String WORLD_CHUNK_UNLOAD_DELAY = "chunk-unload-delay";
+    public static final String WORLD_CHUNK_MEMORY_BUDGET = "chunk-memory-budget";
 
     private static final String HEADER = "1.0\n"
             + "\n"
@@ -325,10 +345,17 @@ public class LanternConfig<T extends LanternConfig.ConfigBase> {
         @Setting("log-file")
         private String logFile = "logs/log-%D.txt";
 
+        @Setting(value = "chunk-io", comment = "Configuration options related to reading and writing chunks")
+        private ChunkIoCategory chunkIo = new ChunkIoCategory();
+
         public BungeeCordCategory getBungeeCord() {
             return this.bungeeCord;
         }
 
+        public ChunkIoCategory getChunkIo() {
+            return this.chunkIo;
+        }
+
         public SqlCategory getSql() {
             return this.sql;
         }
@@ -562,6 +589,169 @@ public class LanternConfig<T extends LanternConfig.ConfigBase> {
         }
     }
 
+    @ConfigSerializable
+    public static class ChunkIoCategory extends Category {
+
+        @Setting(value = CHUNK_IO_WRITE_QUEUE_SIZE, comment = "The maximum number of chunks per world waiting to be written")
+        private int writeQueueSize = 1024;
+        @Setting(value = CHUNK_IO_WRITE_THREADS, comment = "The number of threads per world which serialize and write chunks")
+        private int writeThreads = 2;
+        @Setting(value = CHUNK_IO_SYNC_INTERVAL, comment = "The maximum time in milliseconds before written chunks are forced to the disk. Set to 0 to disable")
+        private int syncInterval = 5000;
+        @Setting(value = CHUNK_IO_SYNC_THRESHOLD,
+                comment = "The amount of written chunk data in kilobytes which forces an early sync to the disk. Set to 0 to disable")
+        private int syncThreshold = 16384;
+        @Setting(value = CHUNK_IO_MAX_OPEN_REGIONS,
+                comment = "The maximum number of region files per world kept open. This is lowered if the system limits open files")
+        private int maxOpenRegions = 256;
+
+        @Setting(value = CHUNK_IO_COMPACTION_INTERVAL,
+                comment = "The number of seconds between searches for fragmented region files. Set to 0 to disable compaction")
+        private int compactionInterval = 300;
+
+        @Setting(value = CHUNK_IO_COMPACTION_THRESHOLD,
+                comment = "The percentage of a region file which must be unused before it is compacted")
+        private int compactionThreshold = 25;
+
+        @Setting(value = CHUNK_IO_COMPACTION_RATE,
+                comment = "The maximum number of kilobytes copied per second while compacting a region file")
+        private int compactionRate = 4096;
+
+        @Setting(value = CHUNK_IO_PREFETCH_DEPTH,
+                comment = "The number of chunks ahead of fast moving players which are read before they are needed. Set to 0 to disable")
+        private int prefetchDepth = 8;
+
+        @Setting(value = CHUNK_IO_LOAD_THREADS, comment = "The number of threads per world which read chunks being loaded")
+        private int loadThreads = 2;
+
+        @Setting(value = CHUNK_IO_GENERATION_THREADS, comment = "The number of threads per world which generate the terrain of new chunks, "
+                + "0 to use one less than the number of processors")
+        private int generationThreads = 0;
+
+        @Setting(value = CHUNK_IO_LIGHT_THREADS, comment = "The number of threads per world which update the light of changed blocks, "
+                + "0 to use one less than the number of processors")
+        private int lightThreads = 0;
+
+        @Setting(value = CHUNK_IO_PREGEN_THREADS, comment = "The number of threads per world which pre-generate chunks")
+        private int pregenThreads = 2;
+
+        @Setting(value = CHUNK_IO_PREGEN_MAX_TICK_TIME, comment = "The average tick time in milliseconds above which pre-generation "
+                + "pauses until the server catches up")
+        private int pregenMaxTickTime = 40;
+
+        public int getWriteQueueSize() {
+            return this.writeQueueSize;
+        }
+
+        public void setWriteQueueSize(int writeQueueSize) {
+            this.writeQueueSize = writeQueueSize;
+        }
+
+        public int getWriteThreads() {
+            return this.writeThreads;
+        }
+
+        public void setWriteThreads(int writeThreads) {
+            this.writeThreads = writeThreads;
+        }
+
+        public int getSyncInterval() {
+            return this.syncInterval;
+        }
+
+        public void setSyncInterval(int syncInterval) {
+            this.syncInterval = syncInterval;
+        }
+
+        public int getSyncThreshold() {
+            return this.syncThreshold;
+        }
+
+        public void setSyncThreshold(int syncThreshold) {
+            this.syncThreshold = syncThreshold;
+        }
+
+        public int getMaxOpenRegions() {
+            return this.maxOpenRegions;
+        }
+
+        public void setMaxOpenRegions(int maxOpenRegions) {
+            this.maxOpenRegions = maxOpenRegions;
+        }
+
+        public int getCompactionInterval() {
+            return this.compactionInterval;
+        }
+
+        public void setCompactionInterval(int compactionInterval) {
+            this.compactionInterval = compactionInterval;
+        }
+
+        public int getCompactionThreshold() {
+            return this.compactionThreshold;
+        }
+
+        public void setCompactionThreshold(int compactionThreshold) {
+            this.compactionThreshold = compactionThreshold;
+        }
+
+        public int getCompactionRate() {
+            return this.compactionRate;
+        }
+
+        public void setCompactionRate(int compactionRate) {
+            this.compactionRate = compactionRate;
+        }
+
+        public int getPrefetchDepth() {
+            return this.prefetchDepth;
+        }
+
+        public void setPrefetchDepth(int prefetchDepth) {
+            this.prefetchDepth = prefetchDepth;
+        }
+
+        public int getLoadThreads() {
+            return this.loadThreads;
+        }
+
+        public void setLoadThreads(int loadThreads) {
+            this.loadThreads = loadThreads;
+        }
+
+        public int getGenerationThreads() {
+            return this.generationThreads;
+        }
+
+        public void setGenerationThreads(int generationThreads) {
+            this.generationThreads = generationThreads;
+        }
+
+        public int getLightThreads() {
+            return this.lightThreads;
+        }
+
+        public void setLightThreads(int lightThreads) {
+            this.lightThreads = lightThreads;
+        }
+
+        public int getPregenThreads() {
+            return this.pregenThreads;
+        }
+
+        public void setPregenThreads(int pregenThreads) {
+            this.pregenThreads = pregenThreads;
+        }
+
+        public int getPregenMaxTickTime() {
+            return this.pregenMaxTickTime;
+        }
+
+        public void setPregenMaxTickTime(int pregenMaxTickTime) {
+            this.pregenMaxTickTime = pregenMaxTickTime;
+        }
+    }
+
     @ConfigSerializable
     public static class DebugCategory extends Category {
 
@@ -995,6 +1185,16 @@ public class LanternConfig<T extends LanternConfig.ConfigBase> {
         @Setting(value = WORLD_KEEP_SPAWN_LOADED, comment = "Enable if this world's spawn should remain loaded with no players.") protected boolean keepSpawnLoaded =
                 true;
         @Setting(value = WORLD_PVP_ENABLED, comment = "Enable if this world allows PVP combat.") protected boolean pvpEnabled = true;
+        @Setting(value = WORLD_CHUNK_COMPRESSION, comment = "The compression of saved chunks: deflate, lz4 or none. "
+                + "lz4 and none load faster but use more disk space, existing chunks are converted as they are saved")
+        private String chunkCompression = "deflate";
+        @Setting(value = WORLD_CHUNK_COMPRESSION_LEVEL, comment = "The deflate level from 1 (fastest) to 9 (smallest)")
+        private int chunkCompressionLevel = 1;
+        @Setting(value = WORLD_CHUNK_UNLOAD_DELAY, comment = "The number of seconds a chunk nothing keeps loaded stays loaded before it is unloaded")
+        private int chunkUnloadDelay = 15;
+        @Setting(value = WORLD_CHUNK_MEMORY_BUDGET, comment = "The number of megabytes the loaded chunks of this world may take before unused "
+                + "chunks are unloaded early, least recently used first. Set to 0 to disable")
+        private int chunkMemoryBudget = 512;
 
         @Setting
         private String difficulty = "EASY";
@@ -1074,6 +1274,38 @@ public class LanternConfig<T extends LanternConfig.ConfigBase> {
             this.pvpEnabled = allow;
         }
 
+        public String getChunkCompression() {
+            return this.chunkCompression;
+        }
+
+        public void setChunkCompression(String chunkCompression) {
+            this.chunkCompression = chunkCompression;
+        }
+
+        public int getChunkCompressionLevel() {
+            return this.chunkCompressionLevel;
+        }
+
+        public void setChunkCompressionLevel(int chunkCompressionLevel) {
+            this.chunkCompressionLevel = chunkCompressionLevel;
+        }
+
+        public int getChunkUnloadDelay() {
+            return this.chunkUnloadDelay;
+        }
+
+        public void setChunkUnloadDelay(int chunkUnloadDelay) {
+            this.chunkUnloadDelay = chunkUnloadDelay;
+        }
+
+        public int getChunkMemoryBudget() {
+            return this.chunkMemoryBudget;
+        }
+
+        public void setChunkMemoryBudget(int chunkMemoryBudget) {
+            this.chunkMemoryBudget = chunkMemoryBudget;
+        }
+
         public String getDifficulty() {
             return difficulty;
         }
@@ -22,6 +22,14 @@ public final class SessionRegistry {
         sessions.keySet().forEach(LanternSession::pulse);
     }
 
+    /**
+     * Disconnects all the sessions, without firing kick events.
+     * @param reason The reason for disconnection.
+     */
+    public void disconnectAll(String reason) {
+        sessions.keySet().forEach(session -> session.disconnect(reason, true));
+    }
+
     /**
      * Adds a new session.
      * @param session The session to add.
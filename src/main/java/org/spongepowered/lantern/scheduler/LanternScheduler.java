@@ -221,6 +221,15 @@ public class LanternScheduler implements Scheduler {
         this.syncScheduler.tick();
     }
 
+    /**
+     * Gets the average time the last ticks took, which is more than
+     * {@link #TICK_DURATION_MS} while the server is lagging.
+     * @return The average tick time in milliseconds
+     */
+    public double getAverageTickTime() {
+        return this.syncScheduler.getAverageTickTime() / 1e6;
+    }
+
     public WorldScheduler getWorldScheduler() {
         return worldScheduler;
     }
@@ -30,11 +30,20 @@ import java.util.concurrent.RejectedExecutionException;
 
 public class SyncScheduler extends SchedulerBase {
 
+    // The number of ticks the tick time is averaged over.
+    private static final int TICK_TIME_SAMPLES = 20;
+
     // The number of ticks elapsed since this scheduler began.
     private volatile int currentTick = 0;
 
     private final WorldScheduler worlds;
 
+    // The durations of the last ticks, averaged to get the tick time.
+    private final long[] tickTimes = new long[TICK_TIME_SAMPLES];
+    private long tickTimeTotal;
+    private long tickStart;
+    private volatile long averageTickTime;
+
     SyncScheduler(WorldScheduler worldScheduler) {
         super(ScheduledTask.TaskSynchronicity.SYNCHRONOUS);
         this.worlds = worldScheduler;
@@ -47,6 +56,15 @@ public class SyncScheduler extends SchedulerBase {
         this.runTick();
     }
 
+    /**
+     * Gets the average time the last ticks took, including the time the
+     * worlds took to pulse.
+     * @return The average tick time in nanoseconds
+     */
+    long getAverageTickTime() {
+        return this.averageTickTime;
+    }
+
     @Override
     protected long getTimestamp(ScheduledTask task) {
         if (task.getState() == ScheduledTask.ScheduledTaskState.WAITING) {
@@ -69,6 +87,7 @@ public class SyncScheduler extends SchedulerBase {
 
     @Override
     protected void preTick() {
+        tickStart = System.nanoTime();
         try {
             currentTick = worlds.beginTick();
             try {
@@ -94,6 +113,14 @@ public class SyncScheduler extends SchedulerBase {
         } finally {
             worlds.getLock().unlock();
         }
+        long tickTime = System.nanoTime() - tickStart;
+        int sample = currentTick % TICK_TIME_SAMPLES;
+        if (sample < 0) {
+            sample += TICK_TIME_SAMPLES;
+        }
+        tickTimeTotal += tickTime - tickTimes[sample];
+        tickTimes[sample] = tickTime;
+        averageTickTime = tickTimeTotal / TICK_TIME_SAMPLES;
     }
 
     @Override
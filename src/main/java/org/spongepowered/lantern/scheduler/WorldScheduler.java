@@ -84,6 +84,9 @@ public class WorldScheduler {
                 tickBegin.arriveAndDeregister();
                 tickEnd.arriveAndDeregister();
             }
+            // the interrupt which stopped the ticks would abort the writes of the save
+            Thread.interrupted();
+            world.shutdown();
         }
     }
 
@@ -158,6 +161,22 @@ public class WorldScheduler {
         }
     }
 
+    /**
+     * Waits for the world threads to finish their last tick and save their
+     * world, once the scheduler has been stopped.
+     * @param timeoutMillis The maximum time to wait for each world
+     * @return Whether every world thread has finished
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        boolean terminated = true;
+        for (WorldEntry ent : worlds) {
+            ent.task.join(timeoutMillis);
+            terminated &= !ent.task.isAlive();
+        }
+        return terminated;
+    }
+
     void doTickEnd() {
         final int currentTick = this.currentTick;
         // Mark ourselves as arrived so world threads automatically trigger advance once done
@@ -0,0 +1,88 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} which reads from the remaining bytes of a
+ * {@link ByteBuffer}. The buffer is consumed directly, no copy is created,
+ * so callers wishing to reuse a shared buffer should pass a duplicate.
+ */
+public final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a new ByteBufferInputStream reading from the position to the
+     * limit of the given buffer.
+     * @param buffer The buffer to read from.
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, buffer.remaining());
+        buffer.get(bytes, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Gets the buffer backing this stream.
+     * @return The buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+/**
+ * A concurrent hash map from primitive {@code long} keys to objects, using
+ * open addressing with linear probing.
+ *
+ * <p>Reads never lock, box their key or allocate, while writes are
+ * serialized on the map. This suits maps which are read far more often than
+ * they are written, such as the loaded chunks of a world. Iteration is weakly
+ * consistent, like that of a {@link java.util.concurrent.ConcurrentHashMap}.</p>
+ *
+ * <p>Removed entries leave a marker behind, so that a concurrent lookup never
+ * misses an entry which is moved. The markers are dropped when the table is
+ * rebuilt.</p>
+ * @param <V> The value type.
+ */
+public class ConcurrentLongObjectMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * Takes the place of a removed entry.
+     */
+    private static final Entry<?> REMOVED = new Entry<>(0, null);
+
+    /**
+     * The entries, replaced as a whole when the table is rebuilt.
+     */
+    private volatile AtomicReferenceArray<Entry<V>> table;
+
+    // only accessed while holding the lock
+    private int used; // entries and removal markers
+    private int resizeAt;
+
+    private volatile int size;
+
+    public ConcurrentLongObjectMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new map able to hold the given number of entries without
+     * resizing.
+     * @param expected The expected number of entries.
+     */
+    public ConcurrentLongObjectMap(int expected) {
+        allocate(tableSize(expected));
+    }
+
+    private static int tableSize(int expected) {
+        int size = Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR)) - 1) << 1;
+        return Math.max(size, 4);
+    }
+
+    private void allocate(int capacity) {
+        table = new AtomicReferenceArray<>(capacity);
+        used = 0;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @Nullable
+    public V get(long key) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int mask = table.length() - 1;
+        int index = PrimitiveHashMapBase.hash(key) & mask;
+        Entry<V> entry;
+        while ((entry = table.get(index)) != null) {
+            if (entry.key == key && entry != REMOVED) {
+                return entry.value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Associates the value with the key.
+     * @param key The key.
+     * @param value The value, may not be null.
+     * @return The previous value, or null if there was none.
+     */
+    @Nullable
+    public synchronized V put(long key, V value) {
+        return insert(key, value, false);
+    }
+
+    /**
+     * Associates the value with the key, unless the key is already present.
+     * @param key The key.
+     * @param value The value, may not be null.
+     * @return The present value, or null if the value was added.
+     */
+    @Nullable
+    public synchronized V putIfAbsent(long key, V value) {
+        return insert(key, value, true);
+    }
+
+    /**
+     * Gets the value of the key, computing and adding it if the key isn't
+     * present. The function is called at most once, while holding the lock
+     * of the map, so it should be quick.
+     * @param key The key.
+     * @param function The function computing the value, may not return null.
+     * @return The present or added value.
+     */
+    public V computeIfAbsent(long key, LongFunction<? extends V> function) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        synchronized (this) {
+            value = get(key);
+            if (value == null) {
+                value = function.apply(key);
+                insert(key, value, false);
+            }
+            return value;
+        }
+    }
+
+    @Nullable
+    private V insert(long key, V value, boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int mask = table.length() - 1;
+        int index = PrimitiveHashMapBase.hash(key) & mask;
+        int free = -1;
+        Entry<V> entry;
+        while ((entry = table.get(index)) != null) {
+            if (entry == REMOVED) {
+                if (free == -1) {
+                    free = index;
+                }
+            } else if (entry.key == key) {
+                if (!onlyIfAbsent) {
+                    table.set(index, new Entry<>(key, value));
+                }
+                return entry.value;
+            }
+            index = (index + 1) & mask;
+        }
+        if (free != -1) {
+            // reusing a marker, the number of used slots stays the same
+            table.set(free, new Entry<>(key, value));
+        } else {
+            table.set(index, new Entry<>(key, value));
+            if (++used > resizeAt) {
+                rehash();
+            }
+        }
+        size++;
+        return null;
+    }
+
+    @Nullable
+    public synchronized V remove(long key) {
+        return remove(key, null);
+    }
+
+    /**
+     * Removes the key, if it's associated with the given value.
+     * @param key The key.
+     * @param value The expected value, or null to remove any value.
+     * @return The removed value, or null if nothing was removed.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(long key, @Nullable V value) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int mask = table.length() - 1;
+        int index = PrimitiveHashMapBase.hash(key) & mask;
+        Entry<V> entry;
+        while ((entry = table.get(index)) != null) {
+            if (entry.key == key && entry != REMOVED) {
+                if (value != null && entry.value != value) {
+                    return null;
+                }
+                table.set(index, (Entry<V>) REMOVED);
+                size--;
+                return entry.value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    public synchronized void clear() {
+        allocate(table.length());
+        size = 0;
+    }
+
+    /**
+     * Passes every value of the map to the consumer, without allocating an
+     * iterator.
+     * @param consumer The consumer.
+     */
+    public void forEachValue(Consumer<? super V> consumer) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        for (int i = 0; i < table.length(); i++) {
+            Entry<V> entry = table.get(i);
+            if (entry != null && entry != REMOVED) {
+                consumer.accept(entry.value);
+            }
+        }
+    }
+
+    /**
+     * Passes the values of the map to the predicate until it returns false,
+     * without allocating an iterator.
+     * @param predicate The predicate.
+     * @return Whether the predicate accepted every value.
+     */
+    public boolean forEachValueWhile(Predicate<? super V> predicate) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        for (int i = 0; i < table.length(); i++) {
+            Entry<V> entry = table.get(i);
+            if (entry != null && entry != REMOVED && !predicate.test(entry.value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes every key and value of the map to the consumer, without
+     * allocating an iterator.
+     * @param consumer The consumer.
+     */
+    public void forEach(LongObjectHashMap.EntryConsumer<? super V> consumer) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        for (int i = 0; i < table.length(); i++) {
+            Entry<V> entry = table.get(i);
+            if (entry != null && entry != REMOVED) {
+                consumer.accept(entry.key, entry.value);
+            }
+        }
+    }
+
+    /**
+     * Copies the values of the map into a new list.
+     * @return The values
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        forEachValue(values::add);
+        return values;
+    }
+
+    /**
+     * Rebuilds the table without removal markers, doubling its size if it's
+     * still too full afterwards. Concurrent readers keep using the old
+     * table, which is no longer modified.
+     */
+    @SuppressWarnings("unchecked")
+    private void rehash() {
+        AtomicReferenceArray<Entry<V>> old = this.table;
+        int capacity = old.length();
+        if (size + 1 > resizeAt / 2) {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<Entry<V>> table = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        int used = 0;
+        for (int i = 0; i < old.length(); i++) {
+            Entry<V> entry = old.get(i);
+            if (entry != null && entry != REMOVED) {
+                int index = PrimitiveHashMapBase.hash(entry.key) & mask;
+                while (table.get(index) != null) {
+                    index = (index + 1) & mask;
+                }
+                table.lazySet(index, entry);
+                used++;
+            }
+        }
+        this.used = used;
+        this.resizeAt = (int) (capacity * LOAD_FACTOR);
+        this.table = table;
+    }
+
+    private static final class Entry<V> {
+
+        final long key;
+        final V value;
+
+        Entry(long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util;
+
+import javax.annotation.Nullable;
+
+/**
+ * A hash map from primitive {@code int} keys to objects, using open
+ * addressing with linear probing. Lookups neither box their key nor
+ * allocate, which makes it suitable for coordinate keyed maps on hot paths.
+ *
+ * <p>This class is not thread safe.</p>
+ * @param <V> The value type.
+ */
+public class IntObjectHashMap<V> extends PrimitiveHashMapBase<V> {
+
+    private int[] keys;
+
+    public IntObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new map able to hold the given number of entries without
+     * resizing.
+     * @param expected The expected number of entries.
+     */
+    public IntObjectHashMap(int expected) {
+        super(expected);
+    }
+
+    @Override
+    void allocateKeys(int capacity) {
+        keys = new int[capacity];
+    }
+
+    @Override
+    int hashAt(int index) {
+        return hash(keys[index]);
+    }
+
+    @Override
+    void moveKey(int from, int to) {
+        keys[to] = keys[from];
+    }
+
+    private int find(int key) {
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = next(index);
+        }
+        return -1;
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) != -1;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int index = find(key);
+        return index == -1 ? null : (V) values[index];
+    }
+
+    /**
+     * Associates the value with the key.
+     * @param key The key.
+     * @param value The value, may not be null.
+     * @return The previous value, or null if there was none.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = next(index);
+        }
+        keys[index] = key;
+        values[index] = value;
+        added();
+        return null;
+    }
+
+    @Nullable
+    public V remove(int key) {
+        int index = find(key);
+        return index == -1 ? null : removeAt(index);
+    }
+
+    /**
+     * Passes every key and value of the map to the consumer, without
+     * allocating an iterator. The map must not be modified while this runs.
+     * @param consumer The consumer.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> consumer) {
+        int[] keys = this.keys;
+        Object[] values = this.values;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                consumer.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    @Override
+    void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int index = hash(oldKeys[i]) & mask;
+                while (values[index] != null) {
+                    index = next(index);
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Accepts a key and value of a {@link IntObjectHashMap}.
+     * @param <V> The value type.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+
+        void accept(int key, V value);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A first-in first-out queue of primitive {@code long} values, backed by a
+ * ring buffer which doubles in size when full. Adding and polling neither
+ * box nor allocate once the queue has grown to its working size, which makes
+ * it suitable for breadth-first searches over packed coordinates.
+ *
+ * <p>This class is not thread safe.</p>
+ */
+public final class LongQueue {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private long[] elements;
+    private int head;
+    private int size;
+
+    public LongQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new queue able to hold the given number of values without
+     * growing.
+     * @param capacity The initial capacity.
+     */
+    public LongQueue(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.elements = new long[length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds a value to the tail of the queue.
+     * @param value The value.
+     */
+    public void add(long value) {
+        if (size == elements.length) {
+            grow();
+        }
+        elements[(head + size) & (elements.length - 1)] = value;
+        size++;
+    }
+
+    /**
+     * Removes the value at the head of the queue.
+     * @return The value.
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    public long poll() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        long value = elements[head];
+        head = (head + 1) & (elements.length - 1);
+        size--;
+        return value;
+    }
+
+    /**
+     * Gets a value without removing it.
+     * @param index The index of the value, 0 being the head.
+     * @return The value.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of range for size " + size);
+        }
+        return elements[(head + index) & (elements.length - 1)];
+    }
+
+    /**
+     * Removes all values, keeping the capacity.
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        long[] grown = new long[elements.length << 1];
+        int first = Math.min(size, elements.length - head);
+        System.arraycopy(elements, head, grown, 0, first);
+        System.arraycopy(elements, 0, grown, first, size - first);
+        elements = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java implementation of the LZ4 block format and of the XXHash32
+ * checksum used to frame LZ4 blocks.
+ *
+ * <p>The compressor is the single pass, greedy variant of LZ4, which trades
+ * ratio for speed. The decompressor checks every length and offset against
+ * the bounds of its arrays, so corrupt input results in an
+ * {@link IOException} rather than garbage or an array index failure.</p>
+ */
+public final class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int ML_MASK = 15;
+    private static final int RUN_MASK = 15;
+    private static final int HASH_LOG = 13;
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final ThreadLocal<int[]> HASH_TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+
+    private Lz4() {
+    }
+
+    /**
+     * Gets the largest number of bytes a block of the given length can be
+     * compressed to.
+     * @param length The length of the uncompressed block
+     * @return The bound of the compressed length
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses a block.
+     * @param src The source array
+     * @param srcOff The offset of the block in the source
+     * @param srcLen The length of the block
+     * @param dst The destination array, which must have room for
+     *     {@link #maxCompressedLength(int)} bytes
+     * @param dstOff The offset to write at
+     * @return The compressed length
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int srcEnd = srcOff + srcLen;
+        int anchor = srcOff;
+        int op = dstOff;
+
+        if (srcLen >= MF_LIMIT + 1) {
+            int matchLimit = srcEnd - LAST_LITERALS;
+            int mfLimit = srcEnd - MF_LIMIT;
+            int[] table = HASH_TABLE.get();
+            Arrays.fill(table, -1);
+
+            int ip = srcOff;
+            int searched = 1 << SKIP_TRIGGER;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int hash = hash(sequence);
+                int ref = table[hash];
+                table[hash] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    // move faster through data which doesn't compress
+                    ip += searched++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searched = 1 << SKIP_TRIGGER;
+
+                // extend the match backwards into the pending literals
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+
+                op = writeLiterals(src, anchor, ip - anchor, matchLength - MIN_MATCH, dst, op);
+                dst[op++] = (byte) (ip - ref);
+                dst[op++] = (byte) ((ip - ref) >>> 8);
+                if (matchLength - MIN_MATCH >= ML_MASK) {
+                    op = writeLength(matchLength - MIN_MATCH - ML_MASK, dst, op);
+                }
+
+                ip += matchLength;
+                anchor = ip;
+                if (ip - 2 >= srcOff) {
+                    table[hash(readInt(src, ip - 2))] = ip - 2;
+                }
+            }
+        }
+
+        // the last literals are written without a match
+        return writeLiterals(src, anchor, srcEnd - anchor, 0, dst, op) - dstOff;
+    }
+
+    private static int writeLiterals(byte[] src, int start, int length, int matchLength, byte[] dst, int op) {
+        int token = (Math.min(length, RUN_MASK) << 4) | Math.min(matchLength, ML_MASK);
+        dst[op++] = (byte) token;
+        if (length >= RUN_MASK) {
+            op = writeLength(length - RUN_MASK, dst, op);
+        }
+        System.arraycopy(src, start, dst, op, length);
+        return op + length;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * Decompresses a block.
+     * @param src The source array
+     * @param srcOff The offset of the block in the source
+     * @param srcLen The length of the compressed block
+     * @param dst The destination array
+     * @param dstOff The offset to write at
+     * @param dstLen The exact length of the decompressed block
+     * @throws IOException if the block is malformed
+     */
+    public static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException {
+        int ip = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+
+        while (ip < srcEnd) {
+            int token = src[ip++] & 0xff;
+
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                int length;
+                do {
+                    if (ip == srcEnd) {
+                        throw new IOException("Malformed LZ4 block");
+                    }
+                    length = src[ip++] & 0xff;
+                    literals += length;
+                } while (length == 255);
+            }
+            if (literals > srcEnd - ip || literals > dstEnd - op) {
+                throw new IOException("Malformed LZ4 block");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+
+            if (ip == srcEnd) {
+                break;
+            }
+
+            if (srcEnd - ip < 2) {
+                throw new IOException("Malformed LZ4 block");
+            }
+            int offset = (src[ip++] & 0xff) | ((src[ip++] & 0xff) << 8);
+            if (offset == 0 || offset > op - dstOff) {
+                throw new IOException("Malformed LZ4 block");
+            }
+
+            int matchLength = token & ML_MASK;
+            if (matchLength == ML_MASK) {
+                int length;
+                do {
+                    if (ip == srcEnd) {
+                        throw new IOException("Malformed LZ4 block");
+                    }
+                    length = src[ip++] & 0xff;
+                    matchLength += length;
+                } while (length == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                throw new IOException("Malformed LZ4 block");
+            }
+
+            int ref = op - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // overlapping matches repeat the bytes being written
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+
+        if (op != dstEnd) {
+            throw new IOException("LZ4 block decompressed to " + (op - dstOff) + " bytes instead of " + dstLen);
+        }
+    }
+
+    /**
+     * Computes the XXHash32 of the given bytes.
+     * @param data The data
+     * @param off The offset of the bytes
+     * @param len The number of bytes
+     * @param seed The seed
+     * @return The hash
+     */
+    public static int xxHash32(byte[] data, int off, int len, int seed) {
+        int end = off + len;
+        int h;
+
+        if (len >= 16) {
+            int limit = end - 16;
+            int v1 = seed + PRIME1 + PRIME2;
+            int v2 = seed + PRIME2;
+            int v3 = seed;
+            int v4 = seed - PRIME1;
+            do {
+                v1 = round(v1, readIntLE(data, off));
+                v2 = round(v2, readIntLE(data, off + 4));
+                v3 = round(v3, readIntLE(data, off + 8));
+                v4 = round(v4, readIntLE(data, off + 12));
+                off += 16;
+            } while (off <= limit);
+            h = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7) + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+        } else {
+            h = seed + PRIME5;
+        }
+
+        h += len;
+        while (off <= end - 4) {
+            h += readIntLE(data, off) * PRIME3;
+            h = Integer.rotateLeft(h, 17) * PRIME4;
+            off += 4;
+        }
+        while (off < end) {
+            h += (data[off] & 0xff) * PRIME5;
+            h = Integer.rotateLeft(h, 11) * PRIME1;
+            off++;
+        }
+
+        h ^= h >>> 15;
+        h *= PRIME2;
+        h ^= h >>> 13;
+        h *= PRIME3;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int round(int acc, int input) {
+        acc += input * PRIME2;
+        acc = Integer.rotateLeft(acc, 13);
+        return acc * PRIME1;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] data, int i) {
+        return (data[i] & 0xff) << 24 | (data[i + 1] & 0xff) << 16 | (data[i + 2] & 0xff) << 8 | (data[i + 3] & 0xff);
+    }
+
+    static int readIntLE(byte[] data, int i) {
+        return (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16 | (data[i + 3] & 0xff) << 24;
+    }
+}
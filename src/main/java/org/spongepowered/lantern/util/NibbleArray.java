@@ -27,6 +27,10 @@ package org.spongepowered.lantern.util;
 import org.apache.commons.lang3.Validate;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
 
 /**
  * An array of nibbles (4-bit values) stored efficiently as a byte array of
@@ -34,10 +38,23 @@ import java.util.Arrays;
  * and the odd indices in the most significant bits.
  *
  * For example, [1 5 8 15] is stored as [0x51 0xf8].
+ *
+ * <p>An array in which every nibble has the same value, such as the sky light
+ * of a section open to the sky, only stores that value, and is expanded to a
+ * byte array on the first write of a different value. Such arrays can also
+ * be {@link #shared(int, byte) shared} by many owners, in which case they
+ * are immutable and have to be {@link #mutableCopy() copied} before being
+ * written to.</p>
  */
 public final class NibbleArray {
 
-    private final byte[] data;
+    private static final Map<Integer, NibbleArray> SHARED = new ConcurrentHashMap<>();
+
+    private final int size;
+    /* the packed nibbles, or null while every nibble has the uniform value */
+    @Nullable private byte[] data;
+    private byte uniform;
+    private final boolean immutable;
 
     /**
      * Construct a new NibbleArray with the given size in nibbles.
@@ -45,8 +62,7 @@ public final class NibbleArray {
      * @throws IllegalArgumentException If size is not positive and even.
      */
     public NibbleArray(int size) {
-        Validate.isTrue(size > 0 && size % 2 == 0, "size must be positive even number, not " + size);
-        data = new byte[size / 2];
+        this(size, (byte) 0, false);
     }
 
     /**
@@ -55,7 +71,51 @@ public final class NibbleArray {
      * @param data The raw data to use.
      */
     public NibbleArray(byte[] data) {
+        this.size = 2 * data.length;
         this.data = data;
+        this.immutable = false;
+    }
+
+    private NibbleArray(int size, byte value, boolean immutable) {
+        Validate.isTrue(size > 0 && size % 2 == 0, "size must be positive even number, not " + size);
+        this.size = size;
+        this.uniform = (byte) (value & 0xf);
+        this.immutable = immutable;
+    }
+
+    /**
+     * Gets an immutable array in which every nibble has the given value. The
+     * same instance is returned for the same size and value.
+     * @param size The size in nibbles.
+     * @param value The value of every nibble.
+     * @return The shared array.
+     */
+    public static NibbleArray shared(int size, byte value) {
+        byte nibble = (byte) (value & 0xf);
+        return SHARED.computeIfAbsent(size << 4 | nibble, key -> new NibbleArray(size, nibble, true));
+    }
+
+    /**
+     * Wraps the given bytes like {@link #NibbleArray(byte[])}, but returns a
+     * {@link #shared(int, byte) shared} array instead if every nibble has
+     * the same value.
+     * @param data The raw data to use.
+     * @return The array.
+     */
+    public static NibbleArray sharedIfUniform(byte[] data) {
+        if (data.length > 0) {
+            byte first = data[0];
+            if ((first & 0xf) == ((first >> 4) & 0xf)) {
+                boolean uniform = true;
+                for (int i = 1; i < data.length && uniform; i++) {
+                    uniform = data[i] == first;
+                }
+                if (uniform) {
+                    return shared(2 * data.length, first);
+                }
+            }
+        }
+        return new NibbleArray(data);
     }
 
     /**
@@ -63,7 +123,7 @@ public final class NibbleArray {
      * @return The size in nibbles.
      */
     public int size() {
-        return 2 * data.length;
+        return size;
     }
 
     /**
@@ -71,7 +131,33 @@ public final class NibbleArray {
      * @return The size in bytes.
      */
     public int byteSize() {
-        return data.length;
+        return size / 2;
+    }
+
+    /**
+     * Gets whether every nibble has the same value and no byte array is
+     * allocated.
+     * @return Whether the array is uniform.
+     */
+    public boolean isUniform() {
+        return data == null;
+    }
+
+    /**
+     * Gets whether this array is shared, and can't be written to.
+     * @return Whether the array is immutable.
+     */
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    /**
+     * Estimates the number of bytes taken by this array, which is none for
+     * shared arrays.
+     * @return The estimated size in bytes
+     */
+    public int getMemoryUsage() {
+        return immutable || data == null ? 0 : data.length;
     }
 
     /**
@@ -80,8 +166,15 @@ public final class NibbleArray {
      * @return The value of the nibble at that index.
      */
     public byte get(int index) {
-        byte val = data[index / 2];
-        if (index % 2 == 0) {
+        byte[] data = this.data;
+        if (data == null) {
+            if (index < 0 || index >= size) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            return uniform;
+        }
+        byte val = data[index >> 1];
+        if ((index & 1) == 0) {
             return (byte) (val & 0x0f);
         } else {
             return (byte) ((val & 0xf0) >> 4);
@@ -92,12 +185,23 @@ public final class NibbleArray {
      * Set the nibble at the given index to the given value.
      * @param index The nibble index.
      * @param value The new value to store.
+     * @throws UnsupportedOperationException If the array is immutable.
      */
     public void set(int index, byte value) {
+        checkMutable();
         value &= 0xf;
-        int half = index / 2;
+        if (data == null) {
+            if (index < 0 || index >= size) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            if (value == uniform) {
+                return;
+            }
+            expand();
+        }
+        int half = index >> 1;
         byte previous = data[half];
-        if (index % 2 == 0) {
+        if ((index & 1) == 0) {
             data[half] = (byte) ((previous & 0xf0) | value);
         } else {
             data[half] = (byte) ((previous & 0x0f) | (value << 4));
@@ -105,38 +209,94 @@ public final class NibbleArray {
     }
 
     /**
-     * Fill the nibble array with the specified value.
+     * Fill the nibble array with the specified value. This releases the
+     * byte array of the nibbles.
      * @param value The value nibble to fill with.
+     * @throws UnsupportedOperationException If the array is immutable.
      */
     public void fill(byte value) {
-        value &= 0xf;
-        Arrays.fill(data, (byte) ((value << 4) | value));
+        checkMutable();
+        data = null;
+        uniform = (byte) (value & 0xf);
     }
 
     /**
      * Get the raw bytes of this nibble array. Modifying the returned array
-     * will modify the internal representation of this nibble array.
+     * will modify the internal representation of this nibble array, so a
+     * uniform array is expanded by this call, unless it is immutable in
+     * which case a new array is returned.
      * @return The raw bytes.
      */
     public byte[] getRawData() {
+        if (data == null) {
+            if (immutable) {
+                return filled();
+            }
+            expand();
+        }
         return data;
     }
 
+    /**
+     * Get the raw bytes of this nibble array for reading. The returned array
+     * must not be modified, and a uniform array returns a new array instead
+     * of being expanded.
+     * @return The raw bytes.
+     */
+    public byte[] getRawDataView() {
+        byte[] data = this.data;
+        return data != null ? data : filled();
+    }
+
     /**
      * Copies into the raw bytes of this nibble array from the given source.
      * @param source The array to copy from.
      * @throws IllegalArgumentException If source is not the correct length.
+     * @throws UnsupportedOperationException If the array is immutable.
      */
     public void setRawData(byte[] source) {
-        Validate.isTrue(source.length == data.length, "expected byte array of length " + data.length + ", not " + source.length);
+        checkMutable();
+        Validate.isTrue(source.length == size / 2, "expected byte array of length " + size / 2 + ", not " + source.length);
+        if (data == null) {
+            data = new byte[size / 2];
+        }
         System.arraycopy(source, 0, data, 0, source.length);
     }
 
     /**
      * Take a snapshot of this NibbleArray which will not reflect changes.
+     * Immutable arrays are their own snapshot.
      * @return The snapshot NibbleArray.
      */
     public NibbleArray snapshot() {
+        return immutable ? this : mutableCopy();
+    }
+
+    /**
+     * Creates a mutable copy of this array, which is still uniform if this
+     * array is.
+     * @return The copy.
+     */
+    public NibbleArray mutableCopy() {
+        if (data == null) {
+            return new NibbleArray(size, uniform, false);
+        }
         return new NibbleArray(data.clone());
     }
+
+    private byte[] filled() {
+        byte[] filled = new byte[size / 2];
+        Arrays.fill(filled, (byte) ((uniform << 4) | uniform));
+        return filled;
+    }
+
+    private void expand() {
+        data = filled();
+    }
+
+    private void checkMutable() {
+        if (immutable) {
+            throw new UnsupportedOperationException("Shared nibble arrays are immutable");
+        }
+    }
 }
@@ -0,0 +1,383 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A fixed size array of 16-bit values, packed with as few bits per entry as
+ * the number of distinct values allows.
+ *
+ * <p>While few distinct values are stored, each entry is an index into a
+ * local palette of the values, using 0, 1, 2, 4 or 8 bits. Once a value is
+ * stored which doesn't fit in the palette, the entries are repacked with
+ * twice as many bits, and past 256 distinct values the palette is dropped and
+ * the values themselves are stored with 16 bits each. Entry sizes are powers
+ * of two so that no entry spans two longs.</p>
+ *
+ * <p>An array holding a single value, such as a section of stone, takes no
+ * space besides its palette. Values are looked up in the palette through a
+ * small open addressing table, so that setting an entry doesn't scan the
+ * palette.</p>
+ */
+public final class PaletteArray {
+
+    private static final int MAX_PALETTE_BITS = 8;
+    private static final int DIRECT_BITS = 16;
+
+    private final int size;
+    private int bits;
+    private long[] data;
+    /* the values of the palette, or null once the values are stored directly */
+    private char[] palette;
+    private int paletteSize;
+    /* palette index + 1 by the hash of the value, 0 if the slot is empty; twice as long as the palette */
+    private short[] lookup;
+
+    /**
+     * Creates an array filled with the given value.
+     * @param size The number of entries
+     * @param value The initial value of every entry
+     */
+    public PaletteArray(int size, char value) {
+        this.size = size;
+        this.bits = 0;
+        this.data = new long[0];
+        this.palette = new char[] {value};
+        this.paletteSize = 1;
+        this.lookup = new short[2];
+        insert(lookup, value, 0);
+    }
+
+    /**
+     * Creates an array holding the given values.
+     * @param values The values, which aren't referenced afterwards
+     */
+    public PaletteArray(char[] values) {
+        this.size = values.length;
+
+        // collect the distinct values in the order they first appear, in a table fitting the largest palette
+        char[] distinct = new char[1 << MAX_PALETTE_BITS];
+        short[] table = new short[2 << MAX_PALETTE_BITS];
+        int count = 0;
+        for (char value : values) {
+            if (find(table, distinct, value) < 0) {
+                if (count == distinct.length) {
+                    count++;
+                    break;
+                }
+                distinct[count] = value;
+                insert(table, value, count++);
+            }
+        }
+
+        if (count > distinct.length) {
+            this.palette = null;
+            this.paletteSize = 0;
+            this.bits = DIRECT_BITS;
+            this.data = new long[dataLength(size, bits)];
+            for (int i = 0; i < size; i++) {
+                write(i, values[i]);
+            }
+        } else {
+            this.bits = bitsFor(count);
+            this.data = new long[dataLength(size, bits)];
+            for (int i = 0; i < size; i++) {
+                write(i, find(table, distinct, values[i]));
+            }
+            this.palette = Arrays.copyOf(distinct, 1 << bits);
+            this.paletteSize = Math.max(1, count);
+            this.lookup = createLookup(palette, paletteSize);
+        }
+    }
+
+    private PaletteArray(PaletteArray other) {
+        this.size = other.size;
+        this.bits = other.bits;
+        this.data = other.data.clone();
+        this.palette = other.palette == null ? null : other.palette.clone();
+        this.paletteSize = other.paletteSize;
+        this.lookup = other.lookup == null ? null : other.lookup.clone();
+    }
+
+    /* the smallest supported entry size which can index the given number of values */
+    private static int bitsFor(int values) {
+        int bits = 0;
+        while ((1 << bits) < values) {
+            bits = bits == 0 ? 1 : bits << 1;
+        }
+        return bits;
+    }
+
+    private static int dataLength(int size, int bits) {
+        return bits == 0 ? 0 : (size * bits + 63) / 64;
+    }
+
+    /**
+     * Gets the number of entries.
+     * @return The size of the array
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of bits used by each entry.
+     * @return The bits per entry
+     */
+    public int getBitsPerEntry() {
+        return bits;
+    }
+
+    /**
+     * Estimates the number of bytes taken by the values and palette.
+     * @return The estimated size in bytes
+     */
+    public int getMemoryUsage() {
+        return data.length * 8 + (palette == null ? 0 : palette.length * 2 + lookup.length * 2);
+    }
+
+    /**
+     * Gets the value of an entry.
+     * @param index The entry index
+     * @return The value
+     */
+    public char get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        int raw = read(index);
+        return palette == null ? (char) raw : palette[raw];
+    }
+
+    /**
+     * Sets the value of an entry, growing the entries if the value doesn't
+     * fit in the palette.
+     * @param index The entry index
+     * @param value The new value
+     */
+    public void set(int index, char value) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        if (palette == null) {
+            write(index, value);
+            return;
+        }
+        int id = indexOf(value);
+        if (id < 0) {
+            if (paletteSize == 1 << bits) {
+                grow();
+                if (palette == null) {
+                    write(index, value);
+                    return;
+                }
+            }
+            id = paletteSize;
+            palette[paletteSize++] = value;
+            insert(lookup, value, id);
+        }
+        write(index, id);
+    }
+
+    /**
+     * Copies the values into a new array.
+     * @return The values
+     */
+    public char[] toArray() {
+        return toArray(new char[size]);
+    }
+
+    /**
+     * Copies the values into the given array.
+     * @param values The array to copy to, of at least {@link #size()} length
+     * @return The given array
+     */
+    public char[] toArray(char[] values) {
+        if (values.length < size) {
+            throw new IllegalArgumentException("Array of length " + values.length + " is too small for " + size + " values");
+        }
+        if (bits == 0) {
+            Arrays.fill(values, 0, size, palette[0]);
+            return values;
+        }
+        for (int i = 0; i < size; i++) {
+            int raw = read(i);
+            values[i] = palette == null ? (char) raw : palette[raw];
+        }
+        return values;
+    }
+
+    /**
+     * Counts the entries which aren't 0.
+     * @return The number of non-zero entries
+     */
+    public int countNonZero() {
+        if (palette != null) {
+            int zero = indexOf((char) 0);
+            if (zero < 0) {
+                return size;
+            }
+            if (bits == 0) {
+                return 0;
+            }
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (read(i) != zero) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (read(i) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets whether any entry may hold a value accepted by the filter, by
+     * only testing the palette. The palette may still hold values which
+     * have since been overwritten, and arrays storing their values directly
+     * always may contain them, so a positive result must be confirmed by
+     * looking at the entries.
+     * @param filter The filter of the values
+     * @return False if no entry holds an accepted value
+     */
+    public boolean mayContain(IntPredicate filter) {
+        if (palette == null) {
+            return true;
+        }
+        for (int i = 0; i < paletteSize; i++) {
+            if (filter.test(palette[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a copy of this array which will not reflect future changes.
+     * @return The copy
+     */
+    public PaletteArray snapshot() {
+        return new PaletteArray(this);
+    }
+
+    private int indexOf(char value) {
+        return find(lookup, palette, value);
+    }
+
+    private static int hash(char value) {
+        int hash = value * 0x9e3779b1;
+        return hash ^ hash >>> 16;
+    }
+
+    /* the palette index of the value, or -1 if it isn't in the palette */
+    private static int find(short[] lookup, char[] palette, char value) {
+        int mask = lookup.length - 1;
+        for (int slot = hash(value) & mask; ; slot = (slot + 1) & mask) {
+            int entry = lookup[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (palette[entry - 1] == value) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /* the table is twice as long as the palette, so there is always an empty slot */
+    private static void insert(short[] lookup, char value, int index) {
+        int mask = lookup.length - 1;
+        int slot = hash(value) & mask;
+        while (lookup[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        lookup[slot] = (short) (index + 1);
+    }
+
+    private static short[] createLookup(char[] palette, int paletteSize) {
+        short[] lookup = new short[palette.length * 2];
+        for (int i = 0; i < paletteSize; i++) {
+            insert(lookup, palette[i], i);
+        }
+        return lookup;
+    }
+
+    /* doubles the bits per entry, or stores the values directly past the largest palette */
+    private void grow() {
+        int oldBits = bits;
+        long[] oldData = data;
+        int newBits = bits == 0 ? 1 : bits << 1;
+
+        if (newBits > MAX_PALETTE_BITS) {
+            char[] oldPalette = palette;
+            palette = null;
+            paletteSize = 0;
+            lookup = null;
+            bits = DIRECT_BITS;
+            data = new long[dataLength(size, bits)];
+            for (int i = 0; i < size; i++) {
+                write(i, oldPalette[read(oldData, oldBits, i)]);
+            }
+        } else {
+            // the palette indices are unchanged, only their width grows
+            bits = newBits;
+            data = new long[dataLength(size, bits)];
+            palette = Arrays.copyOf(palette, 1 << bits);
+            lookup = createLookup(palette, paletteSize);
+            for (int i = 0; i < size; i++) {
+                write(i, read(oldData, oldBits, i));
+            }
+        }
+    }
+
+    private int read(int index) {
+        return read(data, bits, index);
+    }
+
+    private static int read(long[] data, int bits, int index) {
+        if (bits == 0) {
+            return 0;
+        }
+        int bitIndex = index * bits;
+        return (int) (data[bitIndex >> 6] >>> (bitIndex & 63)) & ((1 << bits) - 1);
+    }
+
+    private void write(int index, int value) {
+        if (bits == 0) {
+            return;
+        }
+        int bitIndex = index * bits;
+        int shift = bitIndex & 63;
+        long mask = ((1L << bits) - 1) << shift;
+        data[bitIndex >> 6] = (data[bitIndex >> 6] & ~mask) | (((long) value << shift) & mask);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The table shared by the hash maps from primitive keys to objects, using
+ * open addressing with linear probing. A slot is empty while its value is
+ * null, the keys are kept by the subclasses in an array of their primitive
+ * type.
+ *
+ * @param <V> The value type.
+ */
+abstract class PrimitiveHashMapBase<V> {
+
+    static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    Object[] values;
+    int size;
+    int mask;
+    private int resizeAt;
+
+    PrimitiveHashMapBase(int expected) {
+        allocate(tableSize(expected));
+    }
+
+    private static int tableSize(int expected) {
+        int size = Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR)) - 1) << 1;
+        return Math.max(size, 4);
+    }
+
+    /**
+     * Spreads the bits of a key, as packed coordinates tend to only differ
+     * in their low bits.
+     */
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Spreads the bits of a key, as packed coordinates tend to only differ
+     * in their low bits of each half.
+     */
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Replaces the table by an empty one.
+     * @param capacity The number of slots, a power of two
+     */
+    final void allocate(int capacity) {
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+        allocateKeys(capacity);
+    }
+
+    /**
+     * Replaces the keys by an empty array.
+     * @param capacity The number of slots
+     */
+    abstract void allocateKeys(int capacity);
+
+    /**
+     * Gets the hash of the key in a slot.
+     * @param index The slot
+     * @return The hash
+     */
+    abstract int hashAt(int index);
+
+    /**
+     * Copies the key of a slot into another slot.
+     * @param from The slot to copy from
+     * @param to The slot to copy into
+     */
+    abstract void moveKey(int from, int to);
+
+    /**
+     * Moves every entry into a new table.
+     * @param capacity The number of slots of the new table
+     */
+    abstract void rehash(int capacity);
+
+    /**
+     * Gets the slot probed after a slot.
+     * @param index The slot
+     * @return The next slot
+     */
+    final int next(int index) {
+        return (index + 1) & mask;
+    }
+
+    /**
+     * Counts an entry stored into an empty slot, and grows the table once
+     * it is too full.
+     */
+    final void added() {
+        if (++size > resizeAt) {
+            rehash(values.length << 1);
+        }
+    }
+
+    /**
+     * Removes the entry of a slot.
+     * @param index The slot, which may not be empty
+     * @return The value of the entry
+     */
+    @SuppressWarnings("unchecked")
+    final V removeAt(int index) {
+        V previous = (V) values[index];
+        size--;
+
+        // shift back any entries of the same probe sequence into the hole
+        int hole = index;
+        int next = next(hole);
+        while (values[next] != null) {
+            int ideal = hashAt(next) & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                moveKey(next, hole);
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = next(next);
+        }
+        values[hole] = null;
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Passes every value of the map to the consumer, without allocating an
+     * iterator. The map must not be modified while this runs.
+     * @param consumer The consumer.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> consumer) {
+        Object[] values = this.values;
+        for (Object value : values) {
+            if (value != null) {
+                consumer.accept((V) value);
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util.nbt;
+
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.api.data.MemoryDataContainer;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads uncompressed NBT directly from a heap or direct {@link ByteBuffer}
+ * and produces the same {@link DataContainer} as {@link NbtDataInputStream}.
+ *
+ * <p>Tag names are looked up in a shared table by their encoded bytes, so
+ * repeated names are neither decoded nor turned into queries again. Byte and
+ * int arrays are copied out with a single bulk transfer each.</p>
+ */
+public class NbtBufferReader {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a new reader over the remaining bytes of the given buffer. The
+     * position of the buffer itself is left untouched.
+     * @param buffer The buffer holding the uncompressed NBT.
+     */
+    public NbtBufferReader(ByteBuffer buffer) {
+        this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Creates a reader at an absolute position of a buffer which is already
+     * big endian, as used by {@link NbtLazyCompound}.
+     */
+    NbtBufferReader(ByteBuffer buffer, int position) {
+        this.buffer = buffer.duplicate();
+        this.buffer.position(position);
+    }
+
+    /**
+     * Reads the root compound tag.
+     * @return The data of the root tag
+     * @throws IOException if the data is malformed
+     */
+    public DataContainer read() throws IOException {
+        try {
+            TagType type = TagType.byIdOrError(buffer.get() & 0xff);
+            if (type != TagType.COMPOUND) {
+                throw new IOException("Root of NBT buffer was " + type + ", not COMPOUND");
+            }
+
+            // for now, throw away name
+            skip(buffer.getShort() & 0xffff);
+
+            return readCompound();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated NBT data", e);
+        }
+    }
+
+    /**
+     * Reads the root compound tag as a lazy view, which only decodes the
+     * children which are accessed.
+     * @return The view of the root tag
+     * @throws IOException if the data is malformed
+     */
+    public NbtLazyCompound readLazy() throws IOException {
+        try {
+            TagType type = TagType.byIdOrError(buffer.get() & 0xff);
+            if (type != TagType.COMPOUND) {
+                throw new IOException("Root of NBT buffer was " + type + ", not COMPOUND");
+            }
+            skip(buffer.getShort() & 0xffff);
+            return new NbtLazyCompound(buffer, buffer.position());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated NBT data", e);
+        }
+    }
+
+    int position() {
+        return buffer.position();
+    }
+
+    TagType readType() throws IOException {
+        try {
+            return TagType.byIdOrError(buffer.get() & 0xff);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated NBT data", e);
+        }
+    }
+
+    NbtNameTable.Name readEntryName() throws IOException {
+        try {
+            return readName();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated NBT data", e);
+        }
+    }
+
+    Object readEntryPayload(TagType type) throws IOException {
+        try {
+            return readTagPayload(type);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated NBT data", e);
+        }
+    }
+
+    void skipEntryPayload(TagType type) throws IOException {
+        try {
+            skipTagPayload(type);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated NBT data", e);
+        }
+    }
+
+    private DataContainer readCompound() throws IOException {
+        DataContainer result = new MemoryDataContainer();
+
+        while (true) {
+            TagType type = TagType.byIdOrError(buffer.get() & 0xff);
+            if (type == TagType.END) {
+                break;
+            }
+
+            NbtNameTable.Name name = readName();
+            result.set(name.query, readTagPayload(type));
+        }
+
+        return result;
+    }
+
+    private NbtNameTable.Name readName() {
+        int length = buffer.getShort() & 0xffff;
+        int position = buffer.position();
+        skip(length);
+        return NbtNameTable.SHARED.lookup(buffer, position, length);
+    }
+
+    private void skip(int length) {
+        // Buffer.position throws IllegalArgumentException past the limit
+        buffer.position(buffer.position() + length);
+    }
+
+    private int readLength() throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            throw new IOException("Negative length: " + length);
+        }
+        return length;
+    }
+
+    private Object readTagPayload(TagType type) throws IOException {
+        switch (type) {
+            case BYTE:
+                return buffer.get();
+
+            case SHORT:
+                return buffer.getShort();
+
+            case INT:
+                return buffer.getInt();
+
+            case LONG:
+                return buffer.getLong();
+
+            case FLOAT:
+                return buffer.getFloat();
+
+            case DOUBLE:
+                return buffer.getDouble();
+
+            case BYTE_ARRAY:
+                byte[] bytes = new byte[readLength()];
+                buffer.get(bytes);
+                return bytes;
+
+            case STRING:
+                return readString(buffer.getShort() & 0xffff);
+
+            case LIST:
+                TagType childType = TagType.byIdOrError(buffer.get() & 0xff);
+                int length = readLength();
+
+                List<Object> list = new ArrayList<>(Math.min(length, buffer.remaining()));
+                for (int i = 0; i < length; i++) {
+                    list.add(readTagPayload(childType));
+                }
+                return list;
+
+            case COMPOUND:
+                return readCompound();
+
+            case INT_ARRAY:
+                length = readLength();
+                if (length > buffer.remaining() / 4) {
+                    throw new BufferUnderflowException();
+                }
+                int[] ints = new int[length];
+                buffer.asIntBuffer().get(ints);
+                skip(length * 4);
+                return ints;
+
+            default:
+                throw new IOException("Invalid tag type: " + type + ".");
+        }
+    }
+
+    /**
+     * Moves past the payload of a tag without decoding it.
+     * @param type The type
+     * @throws IOException if the data is malformed
+     */
+    private void skipTagPayload(TagType type) throws IOException {
+        switch (type) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                skip(getFixedSize(type));
+                break;
+
+            case BYTE_ARRAY:
+                skip(readLength());
+                break;
+
+            case STRING:
+                skip(buffer.getShort() & 0xffff);
+                break;
+
+            case LIST:
+                TagType childType = TagType.byIdOrError(buffer.get() & 0xff);
+                int length = readLength();
+                int size = getFixedSize(childType);
+                if (size > 0) {
+                    if (length > buffer.remaining() / size) {
+                        throw new BufferUnderflowException();
+                    }
+                    skip(length * size);
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        skipTagPayload(childType);
+                    }
+                }
+                break;
+
+            case COMPOUND:
+                for (TagType child; (child = TagType.byIdOrError(buffer.get() & 0xff)) != TagType.END;) {
+                    skip(buffer.getShort() & 0xffff);
+                    skipTagPayload(child);
+                }
+                break;
+
+            case INT_ARRAY:
+                length = readLength();
+                if (length > buffer.remaining() / 4) {
+                    throw new BufferUnderflowException();
+                }
+                skip(length * 4);
+                break;
+
+            default:
+                throw new IOException("Invalid tag type: " + type + ".");
+        }
+    }
+
+    private static int getFixedSize(TagType type) {
+        switch (type) {
+            case BYTE:
+                return 1;
+            case SHORT:
+                return 2;
+            case INT:
+            case FLOAT:
+                return 4;
+            case LONG:
+            case DOUBLE:
+                return 8;
+            default:
+                return -1;
+        }
+    }
+
+    private String readString(int length) {
+        if (buffer.hasArray()) {
+            int position = buffer.position();
+            skip(length);
+            return new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
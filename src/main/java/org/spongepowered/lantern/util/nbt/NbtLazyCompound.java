@@ -0,0 +1,249 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util.nbt;
+
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.api.data.DataQuery;
+import org.spongepowered.api.data.MemoryDataContainer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A view of an NBT compound tag stored in a {@link ByteBuffer}, which only
+ * decodes the children that are accessed.
+ *
+ * <p>The first access scans the compound once to find where each child is
+ * stored, skipping over the payloads without decoding them. Decoded children
+ * are kept, nested compounds are returned as lazy views themselves. A view
+ * is not thread safe and keeps its whole buffer reachable, use
+ * {@link #retain(DataQuery...)} to keep only a few children around for
+ * longer.</p>
+ */
+public class NbtLazyCompound {
+
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private final ByteBuffer buffer;
+    private final int start;
+
+    private boolean indexed;
+    private int size;
+    private NbtNameTable.Name[] names;
+    private TagType[] types;
+    /* where each entry starts, and where its payload starts */
+    private int[] entryOffsets;
+    private int[] payloadOffsets;
+    private int end;
+    private Object[] values = NO_VALUES;
+
+    NbtLazyCompound(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        this.start = start;
+    }
+
+    private void index() throws IOException {
+        if (indexed) {
+            return;
+        }
+
+        int capacity = 8;
+        names = new NbtNameTable.Name[capacity];
+        types = new TagType[capacity];
+        entryOffsets = new int[capacity];
+        payloadOffsets = new int[capacity];
+
+        NbtBufferReader reader = new NbtBufferReader(buffer, start);
+        while (true) {
+            int entry = reader.position();
+            TagType type = reader.readType();
+            if (type == TagType.END) {
+                break;
+            }
+            NbtNameTable.Name name = reader.readEntryName();
+            int payload = reader.position();
+            reader.skipEntryPayload(type);
+
+            if (size == capacity) {
+                capacity *= 2;
+                names = Arrays.copyOf(names, capacity);
+                types = Arrays.copyOf(types, capacity);
+                entryOffsets = Arrays.copyOf(entryOffsets, capacity);
+                payloadOffsets = Arrays.copyOf(payloadOffsets, capacity);
+            }
+            names[size] = name;
+            types[size] = type;
+            entryOffsets[size] = entry;
+            payloadOffsets[size] = payload;
+            size++;
+        }
+        end = reader.position();
+        values = new Object[size];
+        indexed = true;
+    }
+
+    private int indexOf(DataQuery query) throws IOException {
+        index();
+        for (int i = 0; i < size; i++) {
+            if (names[i].query.equals(query)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the names of the children of this compound, in stored order.
+     * @return The child names
+     * @throws IOException if the data is malformed
+     */
+    public Set<DataQuery> getKeys() throws IOException {
+        index();
+        Set<DataQuery> keys = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            keys.add(names[i].query);
+        }
+        return keys;
+    }
+
+    public boolean contains(DataQuery query) throws IOException {
+        return indexOf(query) != -1;
+    }
+
+    /**
+     * Gets the type of a child, without decoding it.
+     * @param query The name of the child
+     * @return The type, if the child exists
+     * @throws IOException if the data is malformed
+     */
+    public Optional<TagType> getType(DataQuery query) throws IOException {
+        int index = indexOf(query);
+        return index == -1 ? Optional.empty() : Optional.of(types[index]);
+    }
+
+    /**
+     * Gets a child, decoding it on the first access. Compounds are fully
+     * decoded into a {@link DataContainer}, use
+     * {@link #getCompound(DataQuery)} to keep them lazy.
+     * @param query The name of the child
+     * @return The child, if it exists
+     * @throws IOException if the data is malformed
+     */
+    public Optional<Object> get(DataQuery query) throws IOException {
+        int index = indexOf(query);
+        return index == -1 ? Optional.empty() : Optional.of(decode(index));
+    }
+
+    /**
+     * Gets a child compound as a lazy view.
+     * @param query The name of the child
+     * @return The view, if the child exists and is a compound
+     * @throws IOException if the data is malformed
+     */
+    public Optional<NbtLazyCompound> getCompound(DataQuery query) throws IOException {
+        int index = indexOf(query);
+        if (index == -1 || types[index] != TagType.COMPOUND) {
+            return Optional.empty();
+        }
+        if (!(values[index] instanceof NbtLazyCompound)) {
+            values[index] = new NbtLazyCompound(buffer, payloadOffsets[index]);
+        }
+        return Optional.of((NbtLazyCompound) values[index]);
+    }
+
+    private Object decode(int index) throws IOException {
+        Object value = values[index];
+        if (value instanceof NbtLazyCompound) {
+            value = ((NbtLazyCompound) value).toContainer();
+        } else if (value == null) {
+            value = new NbtBufferReader(buffer, payloadOffsets[index]).readEntryPayload(types[index]);
+        }
+        values[index] = value;
+        return value;
+    }
+
+    /**
+     * Decodes this compound, except for the given children.
+     * @param excluded The names of the children to leave out
+     * @return The decoded compound
+     * @throws IOException if the data is malformed
+     */
+    public DataContainer toContainer(DataQuery... excluded) throws IOException {
+        index();
+        DataContainer result = new MemoryDataContainer();
+        for (int i = 0; i < size; i++) {
+            if (!isListed(names[i].query, excluded)) {
+                result.set(names[i].query, decode(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies the stored form of the given children into a new, compact
+     * compound which no longer refers to this buffer.
+     * @param retained The names of the children to keep
+     * @return The compound holding only the retained children
+     * @throws IOException if the data is malformed
+     */
+    public NbtLazyCompound retain(DataQuery... retained) throws IOException {
+        index();
+        int length = 1;
+        for (int i = 0; i < size; i++) {
+            if (isListed(names[i].query, retained)) {
+                length += entryEnd(i) - entryOffsets[i];
+            }
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        for (int i = 0; i < size; i++) {
+            if (isListed(names[i].query, retained)) {
+                ByteBuffer entry = buffer.duplicate();
+                entry.limit(entryEnd(i));
+                entry.position(entryOffsets[i]);
+                copy.put(entry);
+            }
+        }
+        copy.put(TagType.END.getId());
+        return new NbtLazyCompound(copy, 0);
+    }
+
+    private int entryEnd(int index) {
+        return index + 1 < size ? entryOffsets[index + 1] : end - 1;
+    }
+
+    private static boolean isListed(DataQuery query, DataQuery[] queries) {
+        for (DataQuery listed : queries) {
+            if (listed.equals(query)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.util.nbt;
+
+import org.spongepowered.api.data.DataQuery;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interns tag names by their encoded bytes, so that decoding a name which
+ * was seen before neither allocates a {@link String} nor a
+ * {@link DataQuery}.
+ *
+ * <p>Lookups are lock free against a table which is copied on insertion.
+ * Chunk data only uses a small, fixed set of names, so the table stops
+ * interning once it holds {@link #MAX_NAMES} names to stay bounded when
+ * reading arbitrary data.</p>
+ */
+final class NbtNameTable {
+
+    static final NbtNameTable SHARED = new NbtNameTable();
+
+    private static final int MAX_NAMES = 2048;
+
+    private volatile Name[] table = new Name[256];
+    private int size;
+
+    /**
+     * Gets the name encoded in the given range of the buffer.
+     * @param buffer The buffer
+     * @param position The absolute position of the first byte
+     * @param length The number of encoded bytes
+     * @return The name
+     */
+    Name lookup(ByteBuffer buffer, int position, int length) {
+        int hash = hash(buffer, position, length);
+        Name[] table = this.table;
+        int mask = table.length - 1;
+        for (int i = hash & mask; table[i] != null; i = (i + 1) & mask) {
+            if (table[i].matches(hash, buffer, position, length)) {
+                return table[i];
+            }
+        }
+        return insert(hash, buffer, position, length);
+    }
+
+    private synchronized Name insert(int hash, ByteBuffer buffer, int position, int length) {
+        Name[] table = this.table;
+        int mask = table.length - 1;
+        int index = hash & mask;
+        for (; table[index] != null; index = (index + 1) & mask) {
+            if (table[index].matches(hash, buffer, position, length)) {
+                return table[index];
+            }
+        }
+
+        Name name = new Name(hash, buffer, position, length);
+        if (size >= MAX_NAMES) {
+            return name;
+        }
+
+        Name[] copy;
+        if ((size + 1) * 2 > table.length) {
+            copy = new Name[table.length * 2];
+            int copyMask = copy.length - 1;
+            for (Name existing : table) {
+                if (existing != null) {
+                    int i = existing.hash & copyMask;
+                    while (copy[i] != null) {
+                        i = (i + 1) & copyMask;
+                    }
+                    copy[i] = existing;
+                }
+            }
+            index = hash & copyMask;
+            while (copy[index] != null) {
+                index = (index + 1) & copyMask;
+            }
+        } else {
+            copy = table.clone();
+        }
+        copy[index] = name;
+        size++;
+        this.table = copy;
+        return name;
+    }
+
+    private static int hash(ByteBuffer buffer, int position, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer.get(position + i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    static final class Name {
+
+        private final int hash;
+        private final byte[] bytes;
+        final String name;
+        final DataQuery query;
+
+        private Name(int hash, ByteBuffer buffer, int position, int length) {
+            this.hash = hash;
+            this.bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                this.bytes[i] = buffer.get(position + i);
+            }
+            this.name = new String(this.bytes, StandardCharsets.UTF_8);
+            this.query = DataQuery.of(this.name);
+        }
+
+        private boolean matches(int hash, ByteBuffer buffer, int position, int length) {
+            if (this.hash != hash || bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != buffer.get(position + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
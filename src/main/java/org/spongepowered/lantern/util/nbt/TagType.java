@@ -46,6 +46,8 @@ public enum TagType {
     COMPOUND,
     INT_ARRAY;
 
+    private static final TagType[] BY_ID = values();
+
     TagType() {
     }
 
@@ -54,8 +56,8 @@ public enum TagType {
     }
 
     public static @Nullable TagType byId(int id) {
-        if (id < 0 || id >= values().length) return null;
-        return values()[id];
+        if (id < 0 || id >= BY_ID.length) return null;
+        return BY_ID[id];
     }
 
     static TagType byIdOrError(int id) throws IOException {
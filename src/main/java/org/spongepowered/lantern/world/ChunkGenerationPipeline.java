@@ -0,0 +1,317 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.spongepowered.api.world.gen.Populator;
+import org.spongepowered.api.world.gen.WorldGenerator;
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.util.ConcurrentLongObjectMap;
+import org.spongepowered.lantern.util.LongObjectHashMap;
+import org.spongepowered.lantern.world.gen.ChunkBuffer;
+import org.spongepowered.lantern.world.gen.FlatTerrainGenerator;
+import org.spongepowered.lantern.world.gen.TerrainGenerator;
+import org.spongepowered.lantern.world.storage.LanternChunkLayout;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Generates the chunks of a world in two stages. The terrain of a chunk
+ * only depends on the chunk itself, so it is generated in parallel on a
+ * fork-join pool. Populators may reach into the neighbouring chunks, so a
+ * chunk is only populated by the world thread once the chunks around it
+ * have their terrain.
+ */
+public class ChunkGenerationPipeline {
+
+    /**
+     * The time spent populating chunks per tick.
+     */
+    private static final long POPULATE_BUDGET_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final LanternWorld world;
+    private final ChunkManager manager;
+    /**
+     * The terrain generator of the generator type of the world, or null if
+     * there is none, in which case chunks which don't exist are left
+     * ungenerated instead of being stored empty.
+     */
+    @Nullable private final TerrainGenerator terrainGenerator;
+    private final ForkJoinPool pool;
+
+    /**
+     * The terrain generations in progress, keyed by
+     * {@link LanternChunkLayout#toKey(int, int)}. The futures complete with
+     * whether the chunk has been generated.
+     */
+    private final ConcurrentLongObjectMap<SettableFuture<Boolean>> generations = new ConcurrentLongObjectMap<>();
+
+    /**
+     * The loaded chunks which have not been populated yet. Only used by the
+     * world thread.
+     */
+    private final LongObjectHashMap<Pending> unpopulated = new LongObjectHashMap<>();
+
+    /**
+     * The unpopulated chunks of which all neighbours have their terrain.
+     */
+    private final Queue<Pending> ready = new ArrayDeque<>();
+
+    public ChunkGenerationPipeline(LanternWorld world, ChunkManager manager, int threads) {
+        this.world = world;
+        this.manager = manager;
+        this.terrainGenerator = "flat".equals(world.getProperties().getGeneratorType().getId())
+                ? new FlatTerrainGenerator() : null;
+        if (threads <= 0) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+        String name = world.getProperties().getWorldName();
+        this.pool = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Lantern-worldgen-" + name + "-" + thread.getPoolIndex());
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * Generates the terrain of a chunk which doesn't exist. Requests for a
+     * chunk which is already being generated share its generation.
+     * @param chunk The chunk to generate
+     * @return The future which completes with whether the chunk was
+     *     generated, errors are logged
+     */
+    public ListenableFuture<Boolean> generateTerrain(LanternChunk chunk) {
+        if (terrainGenerator == null) {
+            return Futures.immediateFuture(false);
+        }
+        int x = chunk.getPosition().getX();
+        int z = chunk.getPosition().getZ();
+        long key = LanternChunkLayout.toKey(x, z);
+        SettableFuture<Boolean> future = generations.get(key);
+        if (future != null) {
+            return future;
+        }
+        SettableFuture<Boolean> created = SettableFuture.create();
+        future = generations.putIfAbsent(key, created);
+        if (future != null) {
+            return future;
+        }
+        try {
+            pool.execute(() -> {
+                try {
+                    generate(chunk);
+                    created.set(true);
+                } catch (Throwable ex) {
+                    SpongeImpl.getLogger().error("Error while generating chunk (" + x + "," + z + ")", ex);
+                    created.set(false);
+                } finally {
+                    generations.remove(key, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            generations.remove(key, created);
+            created.set(false);
+        }
+        return created;
+    }
+
+    /**
+     * Gets whether the chunks of the world can be generated, which requires
+     * a terrain generator for its generator type.
+     * @return Whether chunks can be generated
+     */
+    public boolean canGenerate() {
+        return terrainGenerator != null;
+    }
+
+    /**
+     * Generates the terrain of a chunk on the calling thread, unless it has
+     * been loaded in the meantime. The chunk is left unpopulated.
+     * @param chunk The chunk to generate
+     * @return Whether the chunk was generated, false if it was loaded in the
+     *     meantime or chunks can't be generated
+     */
+    boolean generate(LanternChunk chunk) {
+        if (terrainGenerator == null || chunk.isLoaded()) {
+            return false;
+        }
+        ChunkBuffer buffer = new ChunkBuffer();
+        terrainGenerator.generate(chunk.getPosition().getX(), chunk.getPosition().getZ(), buffer);
+        synchronized (chunk) {
+            if (chunk.isLoaded()) {
+                return false;
+            }
+            chunk.initializeSections(buffer.toSections(world.getDimension().hasSky() ? (byte) 15 : 0));
+            chunk.setBiomes(buffer.getBiomes());
+            chunk.automaticHeightMap();
+            manager.getLightEngine().lightChunk(chunk);
+            chunk.setPopulated(false);
+            chunk.setDirty(true);
+        }
+        return true;
+    }
+
+    /**
+     * Registers a chunk which has finished loading, queueing it and its
+     * neighbours to be populated once their neighbours have their terrain.
+     * Must be called from the world thread.
+     * @param chunk The loaded chunk
+     */
+    void onTerrain(LanternChunk chunk) {
+        int x = chunk.getPosition().getX();
+        int z = chunk.getPosition().getZ();
+        if (!chunk.isPopulated()) {
+            long key = LanternChunkLayout.toKey(x, z);
+            Pending pending = unpopulated.get(key);
+            if (pending == null || pending.chunk != chunk) {
+                unpopulated.put(key, new Pending(chunk));
+            }
+        }
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dz = -1; dz <= 1; dz++) {
+                Pending pending = unpopulated.get(LanternChunkLayout.toKey(x + dx, z + dz));
+                if (pending != null && !pending.queued && hasNeighbours(x + dx, z + dz)) {
+                    pending.queued = true;
+                    ready.add(pending);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets a chunk which is being unloaded. Must be called from the world
+     * thread.
+     * @param chunk The chunk
+     */
+    void onUnload(LanternChunk chunk) {
+        long key = LanternChunkLayout.toKey(chunk.getPosition().getX(), chunk.getPosition().getZ());
+        Pending pending = unpopulated.get(key);
+        if (pending != null && pending.chunk == chunk) {
+            unpopulated.remove(key);
+        }
+    }
+
+    /**
+     * Populates the chunks which are ready, for as long as the time budget
+     * of a tick allows. Called by the world thread.
+     */
+    public void pulse() {
+        long deadline = System.nanoTime() + POPULATE_BUDGET_NS;
+        Pending pending;
+        while ((pending = ready.poll()) != null) {
+            pending.queued = false;
+            LanternChunk chunk = pending.chunk;
+            int x = chunk.getPosition().getX();
+            int z = chunk.getPosition().getZ();
+            long key = LanternChunkLayout.toKey(x, z);
+            if (unpopulated.get(key) != pending) {
+                continue;
+            }
+            if (!chunk.isLoaded() || chunk.isPopulated()) {
+                unpopulated.remove(key);
+                continue;
+            }
+            // a neighbour may have been unloaded since, it's queued again once it's back
+            if (!hasNeighbours(x, z)) {
+                continue;
+            }
+            unpopulated.remove(key);
+            try {
+                populate(chunk, x, z);
+            } catch (Throwable ex) {
+                SpongeImpl.getLogger().error("Error while populating chunk (" + x + "," + z + ")", ex);
+            }
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+    }
+
+    private void populate(LanternChunk chunk, int x, int z) {
+        WorldGenerator generator = world.getWorldGenerator();
+        if (generator != null) {
+            long seed = world.getProperties().getSeed();
+            Random random = new Random(seed);
+            long xRand = random.nextLong() / 2 * 2 + 1;
+            long zRand = random.nextLong() / 2 * 2 + 1;
+            random.setSeed(x * xRand + z * zRand ^ seed);
+            for (Populator populator : generator.getPopulators()) {
+                populator.populate(chunk, random);
+            }
+        }
+        chunk.setPopulated(true);
+        chunk.setDirty(true);
+    }
+
+    private boolean hasNeighbours(int x, int z) {
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dz = -1; dz <= 1; dz++) {
+                if (!manager.isChunkLoaded(x + dx, z + dz)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of chunks which are waiting to be populated.
+     * @return The number of unpopulated chunks
+     */
+    public int getUnpopulatedCount() {
+        return unpopulated.size();
+    }
+
+    /**
+     * Stops generating terrain. Generations in progress are cancelled.
+     */
+    public void close() {
+        pool.shutdownNow();
+        generations.forEachValue(future -> future.cancel(false));
+    }
+
+    /**
+     * A loaded chunk which is waiting to be populated.
+     */
+    private static final class Pending {
+
+        final LanternChunk chunk;
+        boolean queued;
+
+        Pending(LanternChunk chunk) {
+            this.chunk = chunk;
+        }
+    }
+}
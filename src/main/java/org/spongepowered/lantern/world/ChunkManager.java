@@ -24,21 +24,74 @@
  */
 package org.spongepowered.lantern.world;
 
+import static com.google.common.base.Preconditions.checkState;
+
+import com.flowpowered.math.vector.Vector3d;
 import com.flowpowered.math.vector.Vector3i;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.spongepowered.api.Sponge;
-import org.spongepowered.api.data.DataContainer;
 import org.spongepowered.api.event.SpongeEventFactory;
 import org.spongepowered.api.event.cause.Cause;
+import org.spongepowered.api.world.storage.WorldProperties;
 import org.spongepowered.lantern.Lantern;
 import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.config.LanternConfig;
+import org.spongepowered.lantern.util.ConcurrentLongObjectMap;
+import org.spongepowered.lantern.util.nbt.NbtLazyCompound;
+import org.spongepowered.lantern.world.storage.AnvilChunkIoService;
+import org.spongepowered.lantern.world.storage.LanternChunkLayout;
+import org.spongepowered.lantern.world.storage.LanternWorldProperties;
 import org.spongepowered.lantern.world.storage.LanternWorldStorage;
 
+import java.io.IOException;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
 
 public class ChunkManager {
 
+    /**
+     * The stages of loading a chunk.
+     */
+    public enum LoadState {
+        /**
+         * The load is waiting for a thread to read the chunk.
+         */
+        PENDING,
+        /**
+         * The chunk is being read, or waits for the world thread to load
+         * its entities.
+         */
+        LOADING,
+        /**
+         * The chunk didn't exist and is being generated.
+         */
+        GENERATING,
+        /**
+         * The chunk is loaded.
+         */
+        LOADED,
+        /**
+         * The chunk could not be loaded, because reading or generating it
+         * failed or it doesn't exist and wasn't to be generated.
+         */
+        FAILED
+    }
+
     /**
      * The world this ChunkManager is managing.
      */
@@ -50,73 +103,655 @@ public class ChunkManager {
     private final LanternWorldStorage storage;
 
     /**
-     * A map of chunks currently loaded in memory.
+     * A map of chunks currently loaded in memory, keyed by
+     * {@link LanternChunkLayout#toKey(int, int)}.
+     */
+    private final ConcurrentLongObjectMap<LanternChunk> chunks = new ConcurrentLongObjectMap<>(1024);
+
+    /**
+     * The chunk loads in progress, keyed like the chunks. A load is removed
+     * once it is finished.
+     */
+    private final ConcurrentLongObjectMap<LoadTask> loads = new ConcurrentLongObjectMap<>();
+
+    /**
+     * Held in the loads while an unloaded chunk is removed, so that no load
+     * of it can start in the meantime.
+     */
+    private static final LoadTask EVICTING = new LoadTask(false);
+
+    static {
+        EVICTING.finished = true;
+    }
+
+    /**
+     * The loads of which the chunk has been read, waiting for the world
+     * thread to finish them.
+     */
+    private final Queue<LoadTask> readLoads = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Reads the chunks being loaded.
+     */
+    private final ExecutorService loadExecutor;
+
+    /**
+     * Reads chunks ahead of moving players.
+     */
+    private final ChunkPrefetcher prefetcher;
+
+    /**
+     * Decides which chunks stay loaded.
+     */
+    private final ChunkRetention retention;
+
+    /**
+     * Generates the chunks which don't exist yet.
+     */
+    private final ChunkGenerationPipeline generation;
+
+    /**
+     * Generates chunks ahead of time, straight to the storage.
+     */
+    private final ChunkPregenerator pregenerator;
+
+    /**
+     * Computes the light of the loaded chunks.
+     */
+    private final LightEngine lightEngine;
+
+    /**
+     * The number of times this manager has been pulsed.
      */
-    private final ConcurrentMap<Vector3i, LanternChunk> chunks = new ConcurrentHashMap<>();
+    private int ticks;
 
     public ChunkManager(LanternWorld world) {
         this.world = world;
         this.storage = world.getWorldStorage();
         //TODO: Biome Grid
+
+        LanternConfig.GlobalConfig config = SpongeImpl.getGlobalConfig().getConfig();
+        LanternConfig.WorldCategory worldConfig = config.getWorld();
+        WorldProperties properties = world.getProperties();
+        if (properties instanceof LanternWorldProperties && ((LanternWorldProperties) properties).getWorldConfig() != null) {
+            worldConfig = ((LanternWorldProperties) properties).getWorldConfig().getWorld();
+        }
+        int viewDistance = worldConfig.getViewDistance();
+        this.retention = new ChunkRetention(this, world, worldConfig.getChunkUnloadDelay() * 20,
+                worldConfig.getChunkMemoryBudget() * 1024L * 1024L, viewDistance);
+        this.prefetcher = new ChunkPrefetcher(this, storage, config.getChunkIo().getPrefetchDepth(), viewDistance);
+        this.loadExecutor = Executors.newFixedThreadPool(Math.max(1, config.getChunkIo().getLoadThreads()),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Lantern-chunk-load-" + properties.getWorldName() + "-%d")
+                        .setDaemon(true)
+                        .build());
+        this.lightEngine = new LightEngine(properties.getWorldName(), world.getDimension().hasSky(),
+                config.getChunkIo().getLightThreads());
+        this.generation = new ChunkGenerationPipeline(world, this, config.getChunkIo().getGenerationThreads());
+        this.pregenerator = new ChunkPregenerator(world, this, generation, config.getChunkIo().getPregenThreads(),
+                config.getChunkIo().getPregenMaxTickTime());
+    }
+
+    /**
+     * Gets the prefetcher which reads chunks ahead of moving players.
+     * @return The chunk prefetcher
+     */
+    public ChunkPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Gets the tickets and policy deciding which chunks stay loaded.
+     * @return The chunk retention
+     */
+    public ChunkRetention getRetention() {
+        return retention;
+    }
+
+    /**
+     * Gets the pipeline which generates the chunks that don't exist yet.
+     * @return The generation pipeline
+     */
+    public ChunkGenerationPipeline getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets the service which generates chunks ahead of time.
+     * @return The chunk pre-generator
+     */
+    public ChunkPregenerator getPregenerator() {
+        return pregenerator;
+    }
+
+    /**
+     * Gets the engine which computes the light of the loaded chunks.
+     * @return The light engine
+     */
+    public LightEngine getLightEngine() {
+        return lightEngine;
+    }
+
+    /**
+     * Tracks the position of a player in this world, which keeps the chunks
+     * in its view loaded and reads the chunks it moves towards ahead of it.
+     * Called whenever the player moves, and when it joins the world. Must be
+     * called from the world thread.
+     * @param viewer The unique id of the player
+     * @param position The position of the player
+     */
+    public void updateViewer(UUID viewer, Vector3d position) {
+        retention.updateViewer(viewer, (int) Math.floor(position.getX()) >> 4, (int) Math.floor(position.getZ()) >> 4);
+        prefetcher.update(viewer, position);
+    }
+
+    /**
+     * Stops tracking a player added with
+     * {@link #updateViewer(UUID, Vector3d)}, once it left the world. Must be
+     * called from the world thread.
+     * @param viewer The unique id of the player
+     */
+    public void removeViewer(UUID viewer) {
+        retention.removeViewer(viewer);
+        prefetcher.remove(viewer);
     }
 
+    /**
+     * Gets the chunk at the specified coordinates, adding an unloaded chunk
+     * to be loaded if there is none. Unloaded chunks which aren't being
+     * loaded are removed again by {@link #evictUnloaded(LanternChunk)}.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @return The chunk, which may not be loaded.
+     */
     public LanternChunk getChunk(int x, int z) {
-        Vector3i location = new Vector3i(x, 0, z);
-        if(chunks.containsKey(location)) {
-            return chunks.get(location);
+        long key = LanternChunkLayout.toKey(x, z);
+        LanternChunk chunk = chunks.get(key);
+        if (chunk == null) {
+            // If a chunk is added by the time we check, use that one instead
+            chunk = chunks.computeIfAbsent(key, k -> new LanternChunk(world, new Vector3i(x, 0, z)));
         }
+        chunk.touch(ticks);
+        return chunk;
+    }
 
-        LanternChunk chunk = new LanternChunk(world, location);
-        LanternChunk prev = chunks.putIfAbsent(location, chunk);
-        // If a chunk is loaded by the time we check, use that one instead
-        return prev == null ? chunk : prev;
+    /**
+     * Gets the chunk at the specified coordinates if it is loaded. A chunk
+     * only counts as loaded once its load has been finished by the world
+     * thread, before that its terrain may still be written by other threads.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @return The chunk, or null if it isn't loaded.
+     */
+    @Nullable
+    public LanternChunk getLoadedChunk(int x, int z) {
+        LanternChunk chunk = chunks.get(LanternChunkLayout.toKey(x, z));
+        if (chunk == null || !chunk.isActive()) {
+            return null;
+        }
+        chunk.touch(ticks);
+        return chunk;
     }
 
     /**
-     * Checks if the Chunk at the specified coordinates is loaded.
+     * Checks if the Chunk at the specified coordinates is loaded, see
+     * {@link #getLoadedChunk(int, int)}.
      * @param x The X coordinate.
      * @param z The Z coordinate.
      * @return true if the chunk is loaded, otherwise false.
      */
     public boolean isChunkLoaded(int x, int z) {
-        Vector3i key = new Vector3i(x, 0, z);
-        return chunks.containsKey(key) && chunks.get(key).isLoaded();
+        LanternChunk chunk = chunks.get(LanternChunkLayout.toKey(x, z));
+        return chunk != null && chunk.isActive();
     }
 
-    public boolean loadChunk(int x, int z, boolean generate) {
-        Vector3i location = new Vector3i(x, 0, z);
-        LanternChunk chunk = getChunk(x, z);
+    /**
+     * Saves a chunk if it has changed and removes it from this manager,
+     * unless a ticket keeps it loaded. Must be called from the world thread.
+     * @param chunk The chunk to unload.
+     * @return true if the chunk was unloaded, false if it is kept loaded, is
+     *     being loaded or could not be queued to be saved.
+     */
+    public boolean unloadChunk(LanternChunk chunk) {
+        int x = chunk.getPosition().getX();
+        int z = chunk.getPosition().getZ();
+        long key = LanternChunkLayout.toKey(x, z);
+        if (!chunk.isLoaded() || chunks.get(key) != chunk || loads.containsKey(key) || retention.hasTickets(x, z)) {
+            return false;
+        }
+        if (chunk.isDirty() && !storage.getChunkIoService().offer(chunk)) {
+            return false;
+        }
+        prefetcher.invalidate(x, z);
+        chunks.remove(key, chunk);
+        generation.onUnload(chunk);
+        lightEngine.onChunkUnloaded(chunk);
+        chunk.unload();
+        return true;
+    }
 
-        // try to load chunk
+    /**
+     * Removes a chunk which isn't loaded from this manager, such as the
+     * chunk of a load which failed or found no stored chunk, unless a load of
+     * it is in progress. Must be called from the world thread.
+     * @param chunk The chunk
+     * @return Whether the chunk was removed
+     */
+    boolean evictUnloaded(LanternChunk chunk) {
+        long key = LanternChunkLayout.toKey(chunk.getPosition().getX(), chunk.getPosition().getZ());
+        if (chunk.isLoaded() || loads.putIfAbsent(key, EVICTING) != null) {
+            return false;
+        }
         try {
-            Optional<DataContainer> data = storage.getChunkData(location).get();
-            if(data.isPresent()) {
-                chunk.load(data.get());
-                Lantern.post(SpongeEventFactory.createLoadChunkEvent(Sponge.getGame(), Cause.of(SpongeImpl.getGame().getServer()), chunk));
+            return removeUnloaded(key, chunk);
+        } finally {
+            loads.remove(key, EVICTING);
+        }
+    }
+
+    /* removes an unloaded chunk, the caller holds the load slot of the chunk */
+    private boolean removeUnloaded(long key, LanternChunk chunk) {
+        // loadChunkTerrain reads without a load slot, but under the chunk's lock
+        synchronized (chunk) {
+            return !chunk.isLoaded() && chunks.remove(key, chunk);
+        }
+    }
+
+    /**
+     * Passes every chunk of this manager to the consumer, loaded or not.
+     * @param consumer The consumer.
+     */
+    void forEachChunk(Consumer<LanternChunk> consumer) {
+        chunks.forEachValue(consumer);
+    }
+
+    /**
+     * Gets the number of times this manager has been pulsed.
+     * @return The current tick
+     */
+    int getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Loads the chunk at the specified coordinates, blocking until it has
+     * been read or generated. A load of the chunk which is already in
+     * progress is joined.
+     *
+     * <p>On the world thread, the chunk is read or generated while the tick
+     * waits, so this is only meant for API callers which need the chunk right
+     * away. Code running as part of the tick uses
+     * {@link #loadChunkAsync(int, int, boolean)} instead. Other threads wait
+     * for the world thread to finish the load, as only it may load the
+     * entities and post the event.</p>
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @param generate Whether to generate the chunk if it doesn't exist.
+     * @return true if the chunk is loaded, otherwise false.
+     */
+    public boolean loadChunk(int x, int z, boolean generate) {
+        if (getLoadedChunk(x, z) != null) {
+            return true;
+        }
+        if (!world.isWorldThread()) {
+            try {
+                return loadChunkAsync(x, z, generate).get().isPresent();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException | CancellationException e) {
+                return false;
+            }
+        }
+
+        LoadTask task = attach(x, z, generate);
+        if (task.claim()) {
+            read(task);
+        } else {
+            try {
+                task.read.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        // an asynchronous load of the chunk may already be generating it, which is joined
+        ListenableFuture<Boolean> generated = startGenerating(task);
+        if (generated != null) {
+            try {
+                generated.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException | CancellationException e) {
+                // the chunk isn't loaded, so the load fails
+            }
+        }
+        finish(task);
+        return task.state == LoadState.LOADED;
+    }
+
+    /**
+     * Starts generating the chunk of a load, if the chunk didn't exist and
+     * is to be generated. The load is finished again once the generation is
+     * done.
+     * @return The generation of the chunk, which may have been started
+     *     before, or null if the chunk isn't generated
+     */
+    @Nullable
+    private ListenableFuture<Boolean> startGenerating(LoadTask task) {
+        synchronized (task) {
+            if (task.generated != null) {
+                return task.generated;
+            }
+            if (task.finished || task.chunk.isLoaded() || task.error || !task.generate) {
+                return null;
+            }
+            task.state = LoadState.GENERATING;
+            task.generated = generation.generateTerrain(task.chunk);
+            task.generated.addListener(() -> readLoads.add(task), Runnable::run);
+            return task.generated;
+        }
+    }
+
+    /**
+     * Starts loading the chunk at the specified coordinates without
+     * blocking. The chunk is read or generated by other threads, and its
+     * entities are loaded by the world thread, which also completes the
+     * returned future. Requests for a chunk which is already being loaded
+     * share its load.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @param generate Whether to generate the chunk if it doesn't exist.
+     * @return The future of the chunk, which is empty if the chunk could
+     *     not be loaded.
+     */
+    public ListenableFuture<Optional<LanternChunk>> loadChunkAsync(int x, int z, boolean generate) {
+        LanternChunk chunk = getLoadedChunk(x, z);
+        if (chunk != null) {
+            SettableFuture<Optional<LanternChunk>> loaded = SettableFuture.create();
+            loaded.set(Optional.of(chunk));
+            return loaded;
+        }
+        return attach(x, z, generate).future;
+    }
+
+    /**
+     * Gets how far the chunk at the specified coordinates is loaded.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @return The state of the chunk, if it is loaded or being loaded.
+     */
+    public Optional<LoadState> getLoadState(int x, int z) {
+        LoadTask task = loads.get(LanternChunkLayout.toKey(x, z));
+        if (task != null && task != EVICTING) {
+            return Optional.of(task.state);
+        }
+        return isChunkLoaded(x, z) ? Optional.of(LoadState.LOADED) : Optional.empty();
+    }
+
+    /**
+     * Loads the terrain of the chunk at the specified coordinates, without
+     * loading its entities and tile entities. They are loaded once the chunk
+     * is loaded through {@link #loadChunk(int, int, boolean)}.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @return true if the chunk is loaded, otherwise false.
+     */
+    public boolean loadChunkTerrain(int x, int z) {
+        long key = LanternChunkLayout.toKey(x, z);
+        while (true) {
+            LanternChunk chunk = getChunk(x, z);
+            if (chunk.isLoaded()) {
                 return true;
             }
-        } catch (Exception e) {
-            SpongeImpl.getLogger().error("Error while loading chunk (" + x + "," + z + ")", e);
-            // an error in chunk reading may have left the chunk in an invalid state
-            // (i.e. double initialization errors), so it's forcibly unloaded here
-            chunk.unloadChunk();
+
+            boolean loaded;
+            try {
+                loaded = readTerrain(chunk, x, z);
+            } catch (Exception e) {
+                SpongeImpl.getLogger().error("Error while loading chunk (" + x + "," + z + ")", e);
+                return false;
+            }
+            if (chunks.get(key) == chunk) {
+                return loaded;
+            }
+            // the chunk was evicted before it was read, read it again into the current one
+            synchronized (chunk) {
+                chunk.unload();
+            }
+        }
+    }
+
+    /**
+     * Finishes the loads of which the chunk has been read, loading their
+     * entities and completing their futures, populates the chunks which are
+     * ready, lights the blocks changed during the tick and unloads the
+     * chunks which are no longer kept loaded. Called by the world thread.
+     */
+    public void pulse() {
+        ticks++;
+        LoadTask task;
+        while ((task = readLoads.poll()) != null) {
+            finish(task);
+        }
+        generation.pulse();
+        lightEngine.pulse();
+        retention.pulse();
+    }
+
+    /**
+     * Gets the load of a chunk, starting it if no load is in progress.
+     */
+    private LoadTask attach(int x, int z, boolean generate) {
+        long key = LanternChunkLayout.toKey(x, z);
+        while (true) {
+            LoadTask task = loads.get(key);
+            if (task == null) {
+                LoadTask created = new LoadTask(generate);
+                synchronized (created) {
+                    task = loads.putIfAbsent(key, created);
+                    if (task == null) {
+                        // the chunk can't be evicted while its load is held, others joining wait for it here
+                        created.chunk = getChunk(x, z);
+                    }
+                }
+                if (task == null) {
+                    submit(key, created);
+                    return created;
+                }
+            }
+            synchronized (task) {
+                if (!task.finished) {
+                    task.generate |= generate;
+                    return task;
+                }
+            }
+            // it was finished and removed in the meantime, start a new one
         }
+    }
 
-        // No generation needed
-        if(!generate) return false;
+    private void submit(long key, LoadTask task) {
+        try {
+            loadExecutor.execute(() -> {
+                if (task.claim()) {
+                    read(task);
+                    readLoads.add(task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loads.remove(key, task);
+            task.future.cancel(false);
+        }
+    }
 
+    /**
+     * Reads the terrain of the chunk of a load. Entities are left to the
+     * world thread.
+     */
+    private void read(LoadTask task) {
+        LanternChunk chunk = task.chunk;
+        task.state = LoadState.LOADING;
         try {
-            generateChunk(chunk, x, z);
-        } catch (Throwable ex) {
-             SpongeImpl.getLogger().error("Error while generating chunk (" + x + "," + z + ")", ex);
-            return false;
+            readTerrain(chunk, chunk.getPosition().getX(), chunk.getPosition().getZ());
+        } catch (Exception e) {
+            SpongeImpl.getLogger().error("Error while loading chunk (" + chunk.getPosition().getX() + ","
+                    + chunk.getPosition().getZ() + ")", e);
+            task.error = true;
+        } finally {
+            task.read.countDown();
         }
+    }
 
-        Lantern.post(SpongeEventFactory.createLoadChunkEvent(Sponge.getGame(), Cause.of(SpongeImpl.getGame().getServer()), chunk));
-        return true;
+    /**
+     * Reads the terrain of a chunk from the prefetched data or the storage.
+     * Readers of the same chunk are serialized, so only the first one reads.
+     * If the read fails, the chunk is reset to its unloaded state.
+     */
+    private boolean readTerrain(LanternChunk chunk, int x, int z) throws IOException {
+        synchronized (chunk) {
+            if (chunk.isLoaded()) {
+                prefetcher.invalidate(x, z);
+                return true;
+            }
+            try {
+                NbtLazyCompound prefetched = prefetcher.take(x, z);
+                if (prefetched != null) {
+                    chunk.loadDeferred(prefetched);
+                    return true;
+                }
+                return storage.getChunkIoService().readDeferred(chunk);
+            } catch (IOException | RuntimeException e) {
+                // an error in chunk reading may have left the chunk partly initialized, it's reset
+                // directly as unloadChunk refuses chunks which are being loaded
+                chunk.unload();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Finishes a load of which the chunk has been read. If the chunk didn't
+     * exist, it is handed to the generation pipeline and the load is finished
+     * again once the terrain has been generated, a load is never finished
+     * while its chunk is being generated. Must be called from the world
+     * thread.
+     */
+    private void finish(LoadTask task) {
+        checkState(world.isWorldThread(), "Chunk loads must be finished by the world thread");
+        LanternChunk chunk = task.chunk;
+        ListenableFuture<Boolean> generated = startGenerating(task);
+        if (generated != null && !generated.isDone()) {
+            return;
+        }
+        synchronized (task) {
+            if (task.finished) {
+                return;
+            }
+            task.state = !task.error && chunk.isLoaded() ? LoadState.LOADED : LoadState.FAILED;
+            task.finished = true;
+            long key = LanternChunkLayout.toKey(chunk.getPosition().getX(), chunk.getPosition().getZ());
+            if (task.state == LoadState.FAILED) {
+                // nothing else keeps the unloaded chunk around
+                removeUnloaded(key, chunk);
+            }
+            loads.remove(key, task);
+        }
+
+        if (task.state == LoadState.LOADED) {
+            chunk.activate();
+            lightEngine.onChunkLoaded(chunk);
+            generation.onTerrain(chunk);
+            Lantern.post(SpongeEventFactory.createLoadChunkEvent(Sponge.getGame(), Cause.of(SpongeImpl.getGame().getServer()), chunk));
+            task.future.set(Optional.of(chunk));
+        } else {
+            task.future.set(Optional.empty());
+        }
+    }
+
+    /**
+     * Queues every loaded chunk with unsaved changes to be written, without
+     * blocking. Chunks which don't fit in the write queue stay dirty and are
+     * picked up again by the next call.
+     * @return The number of chunks queued.
+     */
+    public int saveDirtyChunks() {
+        AnvilChunkIoService chunkIo = storage.getChunkIoService();
+        int[] queued = new int[1];
+        chunks.forEachValueWhile(chunk -> {
+            if (!chunk.isLoaded() || !chunk.isDirty()) {
+                return true;
+            }
+            if (!chunkIo.offer(chunk)) {
+                return false;
+            }
+            prefetcher.invalidate(chunk.getPosition().getX(), chunk.getPosition().getZ());
+            queued[0]++;
+            return true;
+        });
+        return queued[0];
+    }
+
+    /**
+     * Queues every loaded chunk with unsaved changes to be written, waiting
+     * for room in the write queue where necessary.
+     * @throws IOException if a chunk could not be queued.
+     */
+    public void saveAllChunks() throws IOException {
+        AnvilChunkIoService chunkIo = storage.getChunkIoService();
+        for (LanternChunk chunk : chunks.values()) {
+            if (chunk.isLoaded() && chunk.isDirty()) {
+                chunkIo.write(chunk);
+                prefetcher.invalidate(chunk.getPosition().getX(), chunk.getPosition().getZ());
+            }
+        }
     }
 
-    private void generateChunk(LanternChunk chunk, int x, int z) {
-        //TODO: Implement
+    /**
+     * Stops reading chunks ahead of players, loading chunks and generating
+     * them. Loads in progress are cancelled, a running pre-generation is
+     * saved to be resumed later.
+     */
+    public void close() {
+        pregenerator.stop();
+        prefetcher.close();
+        generation.close();
+        lightEngine.close();
+        loadExecutor.shutdownNow();
+        try {
+            loadExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        loads.forEachValue(task -> task.future.cancel(false));
+    }
+
+    /**
+     * A load of a chunk, shared by everything requesting the chunk while it
+     * is in progress.
+     */
+    private static final class LoadTask {
+
+        LanternChunk chunk; // set once, while this is locked and before it is shared
+        final SettableFuture<Optional<LanternChunk>> future = SettableFuture.create();
+        final CountDownLatch read = new CountDownLatch(1);
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        volatile LoadState state = LoadState.PENDING;
+        volatile boolean generate;
+        volatile boolean error;
+        @Nullable ListenableFuture<Boolean> generated; // guarded by this
+        boolean finished; // guarded by this
+
+        LoadTask(boolean generate) {
+            this.generate = generate;
+        }
+
+        /**
+         * Claims the read of the chunk, so that it's read only once.
+         * @return Whether the caller has to read the chunk
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
     }
 }
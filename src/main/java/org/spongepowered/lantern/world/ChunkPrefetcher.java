@@ -0,0 +1,373 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+import com.flowpowered.math.vector.Vector3d;
+import com.flowpowered.math.vector.Vector3i;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.util.ConcurrentLongObjectMap;
+import org.spongepowered.lantern.util.LongObjectHashMap;
+import org.spongepowered.lantern.util.nbt.NbtLazyCompound;
+import org.spongepowered.lantern.world.storage.LanternChunkLayout;
+import org.spongepowered.lantern.world.storage.LanternWorldStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads chunks ahead of moving players before they are asked for.
+ *
+ * <p>The position of every player is reported through
+ * {@link ChunkManager#updateViewer(UUID, Vector3d)}, from which its velocity
+ * is estimated.
+ * Every few ticks the positions the agents will reach are predicted up to the
+ * prefetch depth, and the chunks which will come into their view there are
+ * read in the background, as a single batch per region through
+ * {@link LanternWorldStorage#getLazyChunkData(java.util.Collection)}. The data
+ * is kept until the chunk is loaded through the {@link ChunkManager}, or
+ * dropped once the agents moved elsewhere.</p>
+ *
+ * <p>Only the stored data is read ahead, the chunks themselves are still
+ * loaded by the world thread.</p>
+ */
+public class ChunkPrefetcher {
+
+    /* agents slower than this, in blocks per second, don't outrun their view */
+    private static final double MIN_SPEED = 6;
+    /* how far ahead the positions of agents are predicted */
+    private static final double LOOKAHEAD_SECONDS = 4;
+    /* agents moving further than this between updates teleported */
+    private static final double MAX_MOVE = 128;
+    private static final int PLAN_INTERVAL_TICKS = 5;
+
+    private final ChunkManager manager;
+    private final LanternWorldStorage storage;
+    private final int depth;
+    private final int viewDistance;
+    private volatile boolean closed;
+
+    private final Map<UUID, Agent> agents = new ConcurrentHashMap<>();
+    private final ConcurrentLongObjectMap<NbtLazyCompound> prefetched = new ConcurrentLongObjectMap<>();
+    /* the reads in progress */
+    private final ConcurrentLongObjectMap<Read> reads = new ConcurrentLongObjectMap<>();
+    /* the last plan, which is no longer modified once it is published */
+    private volatile LongObjectHashMap<Vector3i> wanted = new LongObjectHashMap<>();
+    private long ticks;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a new prefetcher.
+     * @param manager The chunk manager of the world
+     * @param storage The storage to read the chunks from
+     * @param depth How many chunks ahead of an agent may be read, 0 to
+     *     disable prefetching
+     * @param viewDistance The view distance of the agents in chunks
+     */
+    public ChunkPrefetcher(ChunkManager manager, LanternWorldStorage storage, int depth, int viewDistance) {
+        this.manager = manager;
+        this.storage = storage;
+        this.depth = depth;
+        this.viewDistance = viewDistance;
+    }
+
+    /**
+     * Reports the position of an agent whenever it moves, see
+     * {@link ChunkManager#updateViewer(UUID, Vector3d)}.
+     * @param agent The unique id of the agent
+     * @param position The new position
+     */
+    void update(UUID agent, Vector3d position) {
+        if (depth > 0) {
+            agents.computeIfAbsent(agent, id -> new Agent()).move(position, System.nanoTime());
+        }
+    }
+
+    /**
+     * Stops tracking an agent, for example when it leaves the world.
+     * @param agent The unique id of the agent
+     */
+    void remove(UUID agent) {
+        agents.remove(agent);
+    }
+
+    /**
+     * Plans and queues the prefetches, called every tick by the world.
+     */
+    public void pulse() {
+        if (depth <= 0 || closed || ++ticks % PLAN_INTERVAL_TICKS != 0) {
+            return;
+        }
+
+        LongObjectHashMap<Vector3i> plan = new LongObjectHashMap<>();
+        for (Agent agent : agents.values()) {
+            agent.plan(plan);
+        }
+        wanted = plan;
+
+        // drop what the agents moved away from before it was used
+        prefetched.forEach((key, data) -> {
+            if (!plan.containsKey(key) && !isInView(LanternChunkLayout.keyX(key), LanternChunkLayout.keyZ(key))
+                    && prefetched.remove(key, data) != null) {
+                dropped.incrementAndGet();
+            }
+        });
+
+        List<Vector3i> batch = new ArrayList<>();
+        plan.forEach((key, chunk) -> {
+            if (!prefetched.containsKey(key) && !manager.isChunkLoaded(chunk.getX(), chunk.getZ())
+                    && reads.putIfAbsent(key, new Read()) == null) {
+                batch.add(chunk);
+            }
+        });
+        if (batch.isEmpty()) {
+            return;
+        }
+        requests.addAndGet(batch.size());
+        storage.getLazyChunkData(batch).forEach((chunk, future) -> future.addListener(() -> prefetched(chunk, future), Runnable::run));
+    }
+
+    private boolean isInView(int x, int z) {
+        for (Agent agent : agents.values()) {
+            if (agent.isInView(x, z)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void prefetched(Vector3i chunk, ListenableFuture<Optional<NbtLazyCompound>> future) {
+        long key = LanternChunkLayout.toKey(chunk.getX(), chunk.getZ());
+        Read read = reads.get(key);
+        try {
+            Optional<NbtLazyCompound> data = future.get();
+            if (!data.isPresent() || closed) {
+                return;
+            }
+            // the agent may have turned or passed the chunk while it was read
+            if (!wanted.containsKey(key)) {
+                dropped.incrementAndGet();
+                return;
+            }
+            prefetched.put(key, data.get());
+            // the chunk may have been loaded or saved while it was read, see invalidate
+            if (read.stale || manager.isChunkLoaded(chunk.getX(), chunk.getZ())) {
+                prefetched.remove(key, data.get());
+            }
+        } catch (ExecutionException e) {
+            SpongeImpl.getLogger().warn("Error while prefetching chunk (" + chunk.getX() + "," + chunk.getZ() + ")", e.getCause());
+        } catch (InterruptedException e) {
+            // the future is done, so this isn't thrown
+            Thread.currentThread().interrupt();
+        } finally {
+            reads.remove(key, read);
+        }
+    }
+
+    /**
+     * Takes the prefetched data of a chunk which is about to be loaded, and
+     * counts whether it was prefetched in time.
+     * @param x The chunk x coordinate
+     * @param z The chunk z coordinate
+     * @return The prefetched data, or null if the chunk has to be read
+     */
+    @Nullable
+    NbtLazyCompound take(int x, int z) {
+        if (depth <= 0) {
+            return null;
+        }
+        long key = LanternChunkLayout.toKey(x, z);
+        NbtLazyCompound data = prefetched.remove(key);
+        if (data != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            // the chunk is read by the loader, so a read still in progress is of no use
+            markStale(key);
+        }
+        return data;
+    }
+
+    /**
+     * Forgets the prefetched data of a chunk, which has to be done whenever
+     * the chunk is loaded or saved, as the data is outdated from then on. A
+     * read of the chunk in progress is discarded as well.
+     * @param x The chunk x coordinate
+     * @param z The chunk z coordinate
+     */
+    void invalidate(int x, int z) {
+        if (depth <= 0) {
+            return;
+        }
+        long key = LanternChunkLayout.toKey(x, z);
+        markStale(key);
+        prefetched.remove(key);
+    }
+
+    private void markStale(long key) {
+        Read read = reads.get(key);
+        if (read != null) {
+            read.stale = true;
+        }
+    }
+
+    /**
+     * Gets the number of chunks read ahead.
+     * @return The number of prefetched chunks
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of chunk loads served by prefetched data.
+     * @return The number of hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of chunk loads which had to read the chunk.
+     * @return The number of misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of prefetches dropped because the agents moved away
+     * before the chunk was read or used.
+     * @return The number of dropped prefetches
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the share of chunk loads served by prefetched data.
+     * @return The hit rate between 0 and 1
+     */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Stops prefetching and forgets the prefetched data.
+     */
+    public void close() {
+        // reads still in progress are discarded once they complete
+        closed = true;
+        agents.clear();
+        prefetched.clear();
+    }
+
+    /**
+     * The position and estimated velocity of a tracked agent.
+     */
+    private final class Agent {
+
+        @Nullable private Vector3d position;
+        private long time;
+        private double velocityX;
+        private double velocityZ;
+
+        synchronized void move(Vector3d position, long time) {
+            if (this.position != null) {
+                double dx = position.getX() - this.position.getX();
+                double dz = position.getZ() - this.position.getZ();
+                double seconds = (time - this.time) / 1e9;
+                if (dx * dx + dz * dz > MAX_MOVE * MAX_MOVE) {
+                    velocityX = velocityZ = 0;
+                } else if (seconds > 0.001) {
+                    // smooth out the jitter of individual movements
+                    velocityX = (velocityX + dx / seconds) / 2;
+                    velocityZ = (velocityZ + dz / seconds) / 2;
+                } else {
+                    return;
+                }
+            }
+            this.position = position;
+            this.time = time;
+        }
+
+        synchronized boolean isInView(int x, int z) {
+            return position != null && Math.abs(x - ((int) Math.floor(position.getX()) >> 4)) <= viewDistance
+                    && Math.abs(z - ((int) Math.floor(position.getZ()) >> 4)) <= viewDistance;
+        }
+
+        synchronized void plan(LongObjectHashMap<Vector3i> plan) {
+            double speed = Math.sqrt(velocityX * velocityX + velocityZ * velocityZ);
+            if (position == null || speed < MIN_SPEED) {
+                return;
+            }
+
+            // predict a position every chunk along the way, nearest first
+            int steps = (int) Math.min(depth, speed * LOOKAHEAD_SECONDS / 16);
+            int lastX = (int) Math.floor(position.getX()) >> 4;
+            int lastZ = (int) Math.floor(position.getZ()) >> 4;
+            for (int step = 1; step <= steps; step++) {
+                double distance = step * 16;
+                int chunkX = (int) Math.floor(position.getX() + velocityX / speed * distance) >> 4;
+                int chunkZ = (int) Math.floor(position.getZ() + velocityZ / speed * distance) >> 4;
+
+                // the chunks which come into view at the predicted position
+                for (int x = chunkX - viewDistance; x <= chunkX + viewDistance; x++) {
+                    for (int z = chunkZ - viewDistance; z <= chunkZ + viewDistance; z++) {
+                        long key = LanternChunkLayout.toKey(x, z);
+                        if ((Math.abs(x - lastX) > viewDistance || Math.abs(z - lastZ) > viewDistance) && !plan.containsKey(key)) {
+                            plan.put(key, new Vector3i(x, 0, z));
+                        }
+                    }
+                }
+                lastX = chunkX;
+                lastZ = chunkZ;
+            }
+        }
+    }
+
+    /**
+     * A read of a chunk in progress.
+     */
+    private static final class Read {
+
+        /* whether the chunk was loaded or saved while it was read */
+        volatile boolean stale;
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+import static org.spongepowered.api.data.DataQuery.of;
+
+import com.flowpowered.math.vector.Vector3d;
+import com.flowpowered.math.vector.Vector3i;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.api.data.DataQuery;
+import org.spongepowered.api.data.MemoryDataContainer;
+import org.spongepowered.api.world.storage.WorldProperties;
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.scheduler.LanternScheduler;
+import org.spongepowered.lantern.util.nbt.NbtDataInputStream;
+import org.spongepowered.lantern.util.nbt.NbtDataOutputStream;
+import org.spongepowered.lantern.world.storage.AnvilChunkIoService;
+import org.spongepowered.lantern.world.storage.ChunkPresenceIndex;
+import org.spongepowered.lantern.world.storage.LanternWorldStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Generates every chunk within a square around a center ahead of time, so
+ * players don't have to wait for new terrain.
+ *
+ * <p>Chunks are generated in a spiral outwards from the center by a pool of
+ * workers and written straight to the region files, without being loaded
+ * into the world. Chunks which are already stored or loaded are skipped.
+ * The workers pause while the average tick time is above its budget, and
+ * the progress is saved to the world directory so that a pre-generation
+ * resumes when the world is loaded again.</p>
+ *
+ * <p>Pre-generated chunks only have their terrain. They are populated once
+ * they are loaded with their neighbours, like any other generated chunk.</p>
+ */
+public class ChunkPregenerator {
+
+    private static final String FILE_NAME = "pregen.dat";
+
+    private static final DataQuery CENTER_X = of("CenterX");
+    private static final DataQuery CENTER_Z = of("CenterZ");
+    private static final DataQuery RADIUS = of("Radius");
+    private static final DataQuery NEXT = of("Next");
+
+    /**
+     * The interval between progress reports, which also save the progress.
+     */
+    private static final long REPORT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The time a worker waits before checking the tick time again.
+     */
+    private static final long THROTTLE_SLEEP_MS = 50;
+
+    private final LanternWorld world;
+    private final ChunkManager manager;
+    private final ChunkGenerationPipeline generation;
+    private final AnvilChunkIoService chunkIo;
+    private final ChunkPresenceIndex presence;
+    private final Path file;
+    private final int threads;
+    private final double maxTickTime;
+
+    @Nullable private volatile Run run;
+
+    public ChunkPregenerator(LanternWorld world, ChunkManager manager, ChunkGenerationPipeline generation, int threads,
+            double maxTickTime) {
+        LanternWorldStorage storage = world.getWorldStorage();
+        this.world = world;
+        this.manager = manager;
+        this.generation = generation;
+        this.chunkIo = storage.getChunkIoService();
+        this.presence = storage.getPresenceIndex();
+        this.file = storage.getWorldDirectory().resolve(FILE_NAME);
+        this.threads = Math.max(1, threads);
+        this.maxTickTime = maxTickTime;
+    }
+
+    /**
+     * Starts generating the chunks within a square around a chunk.
+     * @param centerX The x coordinate of the center chunk
+     * @param centerZ The z coordinate of the center chunk
+     * @param radius The radius of the square in chunks
+     * @throws IllegalStateException if a pre-generation is already running,
+     *     or the world has no terrain generator
+     */
+    public synchronized void start(int centerX, int centerZ, int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("Radius must not be negative: " + radius);
+        }
+        if (run != null) {
+            throw new IllegalStateException("Already pre-generating world " + world.getName());
+        }
+        if (!generation.canGenerate()) {
+            throw new IllegalStateException("World " + world.getName() + " has no terrain generator");
+        }
+        Run started = new Run(centerX, centerZ, radius, 0);
+        saveProgress(started);
+        start(started);
+    }
+
+    /**
+     * Starts generating the chunks within the world border.
+     * @throws IllegalStateException if a pre-generation is already running,
+     *     or the world has no terrain generator
+     */
+    public void startBorder() {
+        WorldProperties properties = world.getProperties();
+        Vector3d center = properties.getWorldBorderCenter();
+        int radius = (int) Math.ceil(properties.getWorldBorderDiameter() / 2 / 16);
+        start((int) Math.floor(center.getX()) >> 4, (int) Math.floor(center.getZ()) >> 4, radius);
+    }
+
+    /**
+     * Resumes the pre-generation which was running when the world was last
+     * closed, if any.
+     * @return Whether a pre-generation was resumed
+     */
+    public synchronized boolean resume() {
+        if (run != null || !generation.canGenerate() || !Files.isRegularFile(file)) {
+            return false;
+        }
+        Run resumed;
+        try (NbtDataInputStream in = new NbtDataInputStream(Files.newInputStream(file))) {
+            DataContainer data = in.read();
+            resumed = new Run(data.getInt(CENTER_X).get(), data.getInt(CENTER_Z).get(), data.getInt(RADIUS).get(),
+                    data.getLong(NEXT).get());
+        } catch (IOException | RuntimeException e) {
+            SpongeImpl.getLogger().error("Unable to resume the pre-generation of world " + world.getName(), e);
+            return false;
+        }
+        if (resumed.isDone()) {
+            deleteProgress();
+            return false;
+        }
+        SpongeImpl.getLogger().info("Resuming pre-generation of world " + world.getName() + " at " + resumed.next + "/"
+                + resumed.total + " chunks");
+        start(resumed);
+        return true;
+    }
+
+    private void start(Run started) {
+        run = started;
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("Lantern-pregen-" + world.getName() + "-%d")
+                .setDaemon(true)
+                .build());
+        started.workers = workers;
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> work(started));
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Stops the running pre-generation, saving its progress so that it is
+     * resumed when the world is loaded again.
+     */
+    public void stop() {
+        Run stopped = halt();
+        if (stopped == null) {
+            return;
+        }
+        if (stopped.isDone()) {
+            deleteProgress();
+        } else {
+            saveProgress(stopped);
+        }
+    }
+
+    /**
+     * Stops the running pre-generation without resuming it later.
+     */
+    public void cancel() {
+        if (halt() != null) {
+            deleteProgress();
+        }
+    }
+
+    /**
+     * Stops the workers of the running pre-generation and waits for the
+     * chunks they are generating.
+     */
+    @Nullable
+    private Run halt() {
+        Run stopped;
+        synchronized (this) {
+            stopped = run;
+            if (stopped == null) {
+                return null;
+            }
+            run = null;
+            stopped.stopped = true;
+        }
+        try {
+            stopped.workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return stopped;
+    }
+
+    /**
+     * Gets whether a pre-generation is running.
+     * @return Whether chunks are being pre-generated
+     */
+    public boolean isRunning() {
+        return run != null;
+    }
+
+    /**
+     * Gets whether the running pre-generation is paused because the server
+     * is lagging.
+     * @return Whether the pre-generation is paused
+     */
+    public boolean isThrottled() {
+        Run current = run;
+        return current != null && current.throttled;
+    }
+
+    /**
+     * Gets the part of the chunks the running pre-generation has processed.
+     * @return The progress between 0 and 1, or 0 if nothing is running
+     */
+    public double getProgress() {
+        Run current = run;
+        return current == null ? 0 : (double) current.getCompleted() / current.total;
+    }
+
+    /**
+     * Gets the number of chunks generated per second by the running
+     * pre-generation, measured over the last report interval.
+     * @return The chunks per second
+     */
+    public double getChunksPerSecond() {
+        Run current = run;
+        return current == null ? 0 : current.rate;
+    }
+
+    private void work(Run run) {
+        int[] offset = new int[2];
+        while (!run.stopped) {
+            if (LanternScheduler.getInstance().getAverageTickTime() > maxTickTime) {
+                if (!run.throttled) {
+                    run.throttled = true;
+                    SpongeImpl.getLogger().info("Pausing pre-generation of world " + world.getName() + ", the server is lagging");
+                }
+                try {
+                    Thread.sleep(THROTTLE_SLEEP_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            run.throttled = false;
+
+            long index = run.claim();
+            if (index < 0) {
+                return;
+            }
+            spiral(index, offset);
+            int x = run.centerX + offset[0];
+            int z = run.centerZ + offset[1];
+            try {
+                if (exists(x, z)) {
+                    run.skipped.incrementAndGet();
+                } else {
+                    LanternChunk chunk = new LanternChunk(world, new Vector3i(x, 0, z));
+                    // the world may have loaded it in the meantime, its version wins
+                    if (generation.generate(chunk) && !exists(x, z)) {
+                        chunkIo.write(chunk);
+                    }
+                    run.generated.incrementAndGet();
+                }
+            } catch (Exception e) {
+                SpongeImpl.getLogger().error("Error while pre-generating chunk (" + x + "," + z + ")", e);
+            }
+            if (run.complete(index)) {
+                finish(run);
+                return;
+            }
+            report(run);
+        }
+    }
+
+    private boolean exists(int x, int z) {
+        return presence.contains(x, z) || chunkIo.isPending(x, z) || manager.getLoadState(x, z).isPresent();
+    }
+
+    private void report(Run run) {
+        long now = System.nanoTime();
+        long last = run.lastReport.get();
+        if (now - last < REPORT_INTERVAL_NS || !run.lastReport.compareAndSet(last, now)) {
+            return;
+        }
+        long generated = run.generated.get();
+        run.rate = (generated - run.lastGenerated) * 1e9 / (now - last);
+        run.lastGenerated = generated;
+        long completed = run.getCompleted();
+        SpongeImpl.getLogger().info(String.format("Pre-generating world %s: %d/%d chunks (%.1f%%), %.1f chunks/s", world.getName(),
+                completed, run.total, completed * 100.0 / run.total, run.rate));
+        saveProgress(run);
+    }
+
+    private void finish(Run run) {
+        synchronized (this) {
+            if (this.run != run) {
+                // stopped in the meantime, which takes care of the progress
+                return;
+            }
+            this.run = null;
+        }
+        double seconds = (System.nanoTime() - run.started) / 1e9;
+        SpongeImpl.getLogger().info(String.format("Finished pre-generating world %s: %d chunks generated, %d skipped in %.0f s "
+                + "(%.1f chunks/s)", world.getName(), run.generated.get(), run.skipped.get(), seconds, run.generated.get() / seconds));
+        deleteProgress();
+    }
+
+    private synchronized void saveProgress(Run run) {
+        DataContainer data = new MemoryDataContainer();
+        data.set(CENTER_X, run.centerX);
+        data.set(CENTER_Z, run.centerZ);
+        data.set(RADIUS, run.radius);
+        data.set(NEXT, run.getCompleted());
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (NbtDataOutputStream out = new NbtDataOutputStream(Files.newOutputStream(temp))) {
+                out.write(data);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            SpongeImpl.getLogger().error("Unable to save the pre-generation progress of world " + world.getName(), e);
+        }
+    }
+
+    private synchronized void deleteProgress() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            SpongeImpl.getLogger().error("Unable to delete the pre-generation progress of world " + world.getName(), e);
+        }
+    }
+
+    /**
+     * Gets the offset from the center of a chunk in the spiral, which walks
+     * the rings around the center one after the other.
+     * @param index The index of the chunk in the spiral
+     * @param offset The array to store the x and z offset in
+     */
+    static void spiral(long index, int[] offset) {
+        if (index == 0) {
+            offset[0] = 0;
+            offset[1] = 0;
+            return;
+        }
+        int ring = (int) Math.ceil((Math.sqrt(index + 1) - 1) / 2);
+        long inner = 2L * ring - 1;
+        int pos = (int) (index - inner * inner);
+        int side = pos / (2 * ring);
+        int step = pos % (2 * ring);
+        switch (side) {
+            case 0:
+                offset[0] = ring;
+                offset[1] = -ring + 1 + step;
+                break;
+            case 1:
+                offset[0] = ring - 1 - step;
+                offset[1] = ring;
+                break;
+            case 2:
+                offset[0] = -ring;
+                offset[1] = ring - 1 - step;
+                break;
+            default:
+                offset[0] = -ring + 1 + step;
+                offset[1] = -ring;
+                break;
+        }
+    }
+
+    /**
+     * A running pre-generation.
+     */
+    private static final class Run {
+
+        final int centerX;
+        final int centerZ;
+        final int radius;
+        final long total;
+        final long started = System.nanoTime();
+        final AtomicLong generated = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong lastReport = new AtomicLong(started);
+        ExecutorService workers;
+        volatile boolean stopped;
+        volatile boolean throttled;
+        volatile double rate;
+        long lastGenerated; // guarded by lastReport
+
+        // the next chunk to hand out and the chunks being generated, guarded by this
+        long next;
+        final TreeSet<Long> inFlight = new TreeSet<>();
+
+        Run(int centerX, int centerZ, int radius, long next) {
+            this.centerX = centerX;
+            this.centerZ = centerZ;
+            this.radius = radius;
+            this.total = (2L * radius + 1) * (2L * radius + 1);
+            this.next = next;
+        }
+
+        /**
+         * Hands out the next chunk to generate.
+         * @return The index of the chunk, or -1 if all chunks are handed out
+         */
+        synchronized long claim() {
+            if (next >= total) {
+                return -1;
+            }
+            inFlight.add(next);
+            return next++;
+        }
+
+        /**
+         * Marks a chunk as done.
+         * @return Whether it was the last chunk
+         */
+        synchronized boolean complete(long index) {
+            inFlight.remove(index);
+            return isDone();
+        }
+
+        /**
+         * Gets whether every chunk is done.
+         */
+        synchronized boolean isDone() {
+            return next >= total && inFlight.isEmpty();
+        }
+
+        /**
+         * Gets the number of chunks before which every chunk is done, which
+         * is where a resumed pre-generation starts.
+         */
+        synchronized long getCompleted() {
+            return inFlight.isEmpty() ? next : inFlight.first();
+        }
+    }
+}
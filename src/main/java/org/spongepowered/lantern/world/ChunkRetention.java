@@ -0,0 +1,423 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.lantern.util.LongObjectHashMap;
+import org.spongepowered.lantern.world.storage.LanternChunkLayout;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * Decides which loaded chunks of a world stay loaded. Chunks are kept by
+ * tickets, and chunks without any ticket are unloaded once they have gone
+ * without one for the unload delay. Unloading saves a chunk first if it has
+ * changed.
+ *
+ * <p>While the loaded chunks take more memory than the budget of the world,
+ * chunks without a ticket are unloaded right away instead, starting with the
+ * ones which have been requested least recently. Chunks with a ticket are
+ * never evicted.</p>
+ *
+ * <p>Tickets only keep chunks loaded, they don't load them. This class is not
+ * thread safe, it's used from the world thread.</p>
+ */
+public class ChunkRetention {
+
+    /**
+     * The reasons a chunk is kept loaded.
+     */
+    public enum TicketType {
+        /**
+         * The chunk is in the view of a player.
+         */
+        PLAYER,
+        /**
+         * The chunk is near the spawn of a world which keeps its spawn loaded.
+         */
+        SPAWN,
+        /**
+         * A plugin forces the chunk to stay loaded.
+         */
+        FORCED,
+        /**
+         * The chunk is kept loaded for a limited number of ticks.
+         */
+        TEMPORARY
+    }
+
+    /* the radius in chunks around the spawn which is kept loaded, like vanilla */
+    private static final int SPAWN_RADIUS = 8;
+    private static final int SCAN_INTERVAL_TICKS = 20;
+    /* the most unloads attempted per tick, to spread out the saving */
+    private static final int MAX_UNLOADS_PER_TICK = 64;
+
+    private final ChunkManager manager;
+    private final LanternWorld world;
+    private final int unloadDelay;
+    private final long memoryBudget;
+    private final int viewDistance;
+
+    /* the number of tickets of each type per chunk */
+    private final LongObjectHashMap<int[]> tickets = new LongObjectHashMap<>();
+    private final PriorityQueue<Temporary> temporary = new PriorityQueue<>();
+    private final Map<UUID, Long> viewers = new HashMap<>();
+    private boolean keepingSpawn;
+    private long spawnKey;
+
+    /* the chunks without tickets, in the order they were found */
+    private final LongObjectHashMap<Idle> idle = new LongObjectHashMap<>();
+    private final ArrayDeque<Idle> unloadQueue = new ArrayDeque<>();
+
+    private long memoryUsage;
+    private long unloaded;
+    private long evicted;
+
+    /**
+     * Creates a new retention policy.
+     * @param manager The chunk manager of the world
+     * @param world The world
+     * @param unloadDelay The number of ticks a chunk without tickets stays loaded
+     * @param memoryBudget The number of bytes the chunks may take, or 0 for no limit
+     * @param viewDistance The view distance of players in chunks
+     */
+    public ChunkRetention(ChunkManager manager, LanternWorld world, int unloadDelay, long memoryBudget, int viewDistance) {
+        this.manager = manager;
+        this.world = world;
+        this.unloadDelay = unloadDelay;
+        this.memoryBudget = memoryBudget;
+        this.viewDistance = viewDistance;
+    }
+
+    /**
+     * Adds a ticket keeping a chunk loaded.
+     * @param x The chunk x coordinate
+     * @param z The chunk z coordinate
+     * @param type The type of the ticket
+     */
+    public void addTicket(int x, int z, TicketType type) {
+        long key = LanternChunkLayout.toKey(x, z);
+        int[] counts = tickets.get(key);
+        if (counts == null) {
+            counts = new int[TicketType.values().length];
+            tickets.put(key, counts);
+        }
+        counts[type.ordinal()]++;
+        // the stale entry in the unload queue is skipped
+        idle.remove(key);
+    }
+
+    /**
+     * Removes a ticket added with {@link #addTicket(int, int, TicketType)}.
+     * @param x The chunk x coordinate
+     * @param z The chunk z coordinate
+     * @param type The type of the ticket
+     * @return Whether the chunk had a ticket of the type
+     */
+    public boolean removeTicket(int x, int z, TicketType type) {
+        long key = LanternChunkLayout.toKey(x, z);
+        int[] counts = tickets.get(key);
+        if (counts == null || counts[type.ordinal()] == 0) {
+            return false;
+        }
+        counts[type.ordinal()]--;
+        for (int count : counts) {
+            if (count != 0) {
+                return true;
+            }
+        }
+        tickets.remove(key);
+        return true;
+    }
+
+    /**
+     * Keeps a chunk loaded for a number of ticks.
+     * @param x The chunk x coordinate
+     * @param z The chunk z coordinate
+     * @param ticks The number of ticks
+     */
+    public void addTemporaryTicket(int x, int z, int ticks) {
+        addTicket(x, z, TicketType.TEMPORARY);
+        temporary.add(new Temporary(LanternChunkLayout.toKey(x, z), manager.getTicks() + ticks));
+    }
+
+    /**
+     * Gets whether any ticket keeps a chunk loaded.
+     * @param x The chunk x coordinate
+     * @param z The chunk z coordinate
+     * @return Whether the chunk has a ticket
+     */
+    public boolean hasTickets(int x, int z) {
+        return tickets.containsKey(LanternChunkLayout.toKey(x, z));
+    }
+
+    /**
+     * Moves the view of a player, which keeps the chunks within the view
+     * distance of the chunk it's in loaded, see
+     * {@link ChunkManager#updateViewer(UUID, com.flowpowered.math.vector.Vector3d)}.
+     * @param viewer The unique id of the player
+     * @param x The x coordinate of the chunk the player is in
+     * @param z The z coordinate of the chunk the player is in
+     */
+    void updateViewer(UUID viewer, int x, int z) {
+        long key = LanternChunkLayout.toKey(x, z);
+        Long previous = viewers.put(viewer, key);
+        if (previous != null && previous == key) {
+            return;
+        }
+        // add the new tickets first, so the overlap never loses its tickets
+        addSquare(key, viewDistance, TicketType.PLAYER);
+        if (previous != null) {
+            removeSquare(previous, viewDistance, TicketType.PLAYER);
+        }
+    }
+
+    /**
+     * Removes the view of a player added with {@link #updateViewer(UUID, int, int)}.
+     * @param viewer The unique id of the player
+     */
+    void removeViewer(UUID viewer) {
+        Long previous = viewers.remove(viewer);
+        if (previous != null) {
+            removeSquare(previous, viewDistance, TicketType.PLAYER);
+        }
+    }
+
+    private void addSquare(long center, int radius, TicketType type) {
+        int cx = LanternChunkLayout.keyX(center);
+        int cz = LanternChunkLayout.keyZ(center);
+        for (int x = cx - radius; x <= cx + radius; x++) {
+            for (int z = cz - radius; z <= cz + radius; z++) {
+                addTicket(x, z, type);
+            }
+        }
+    }
+
+    private void removeSquare(long center, int radius, TicketType type) {
+        int cx = LanternChunkLayout.keyX(center);
+        int cz = LanternChunkLayout.keyZ(center);
+        for (int x = cx - radius; x <= cx + radius; x++) {
+            for (int z = cz - radius; z <= cz + radius; z++) {
+                removeTicket(x, z, type);
+            }
+        }
+    }
+
+    /**
+     * Expires temporary tickets and unloads the chunks which have gone
+     * without tickets for long enough, or which exceed the memory budget.
+     */
+    public void pulse() {
+        int ticks = manager.getTicks();
+        Temporary expired;
+        while ((expired = temporary.peek()) != null && expired.expiresAt <= ticks) {
+            temporary.poll();
+            removeTicket(LanternChunkLayout.keyX(expired.key), LanternChunkLayout.keyZ(expired.key), TicketType.TEMPORARY);
+        }
+
+        if (ticks % SCAN_INTERVAL_TICKS == 0) {
+            updateSpawn();
+            scan(ticks);
+            if (memoryBudget > 0 && memoryUsage > memoryBudget) {
+                evict();
+            }
+        }
+        unloadIdle(ticks);
+    }
+
+    /**
+     * Moves the spawn tickets along with the spawn, and adds or removes
+     * them when keeping the spawn loaded is toggled.
+     */
+    private void updateSpawn() {
+        if (world.doesKeepSpawnLoaded()) {
+            Vector3i spawn = world.getProperties().getSpawnPosition();
+            long key = LanternChunkLayout.toKey(spawn.getX() >> 4, spawn.getZ() >> 4);
+            if (!keepingSpawn || key != spawnKey) {
+                addSquare(key, SPAWN_RADIUS, TicketType.SPAWN);
+                if (keepingSpawn) {
+                    removeSquare(spawnKey, SPAWN_RADIUS, TicketType.SPAWN);
+                }
+                keepingSpawn = true;
+                spawnKey = key;
+            }
+        } else if (keepingSpawn) {
+            removeSquare(spawnKey, SPAWN_RADIUS, TicketType.SPAWN);
+            keepingSpawn = false;
+        }
+    }
+
+    /**
+     * Queues the loaded chunks without tickets to be unloaded, adds up the
+     * memory taken by the loaded chunks and removes the unloaded chunks which
+     * haven't been requested since the last scan.
+     */
+    private void scan(int ticks) {
+        long[] usage = new long[1];
+        List<LanternChunk> unloaded = new ArrayList<>();
+        manager.forEachChunk(chunk -> {
+            if (!chunk.isLoaded()) {
+                if (ticks - chunk.getLastAccess() >= SCAN_INTERVAL_TICKS) {
+                    unloaded.add(chunk);
+                }
+                return;
+            }
+            usage[0] += chunk.getMemoryUsage();
+            long key = LanternChunkLayout.toKey(chunk.getPosition().getX(), chunk.getPosition().getZ());
+            if (!tickets.containsKey(key) && !idle.containsKey(key)) {
+                Idle entry = new Idle(key, chunk, ticks);
+                idle.put(key, entry);
+                unloadQueue.add(entry);
+            }
+        });
+        memoryUsage = usage[0];
+        unloaded.forEach(manager::evictUnloaded);
+    }
+
+    private void unloadIdle(int ticks) {
+        Idle entry;
+        int attempts = 0;
+        while (attempts < MAX_UNLOADS_PER_TICK && (entry = unloadQueue.peek()) != null) {
+            if (idle.get(entry.key) != entry) {
+                // a ticket was added, or the chunk was evicted
+                unloadQueue.poll();
+                continue;
+            }
+            int lastAccess = entry.chunk.getLastAccess();
+            if (lastAccess > entry.since) {
+                // the chunk was requested while it was idle, which restarts its delay
+                unloadQueue.poll();
+                Idle touched = new Idle(entry.key, entry.chunk, lastAccess);
+                idle.put(entry.key, touched);
+                unloadQueue.add(touched);
+                continue;
+            }
+            if (ticks - entry.since < unloadDelay) {
+                break;
+            }
+            unloadQueue.poll();
+            attempts++;
+            if (manager.unloadChunk(entry.chunk)) {
+                idle.remove(entry.key);
+                unloaded++;
+            } else if (entry.chunk.isLoaded()) {
+                // it's being loaded or the write queue is full, try again next tick
+                unloadQueue.add(entry);
+                break;
+            } else {
+                idle.remove(entry.key);
+            }
+        }
+    }
+
+    /**
+     * Unloads chunks without tickets, least recently requested first, until
+     * the loaded chunks fit in the memory budget.
+     */
+    private void evict() {
+        List<Idle> candidates = new ArrayList<>(idle.size());
+        idle.forEachValue(candidates::add);
+        candidates.sort(Comparator.comparingInt(entry -> entry.chunk.getLastAccess()));
+        for (Idle entry : candidates) {
+            if (memoryUsage <= memoryBudget) {
+                break;
+            }
+            int usage = entry.chunk.getMemoryUsage();
+            if (manager.unloadChunk(entry.chunk)) {
+                idle.remove(entry.key);
+                memoryUsage -= usage;
+                evicted++;
+            }
+        }
+    }
+
+    /**
+     * Gets the memory taken by the loaded chunks, as of the last check.
+     * @return The estimated size in bytes
+     */
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * Gets the number of loaded chunks without tickets.
+     * @return The number of chunks waiting to be unloaded
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Gets the number of chunks unloaded after the unload delay.
+     * @return The number of unloaded chunks
+     */
+    public long getUnloadedCount() {
+        return unloaded;
+    }
+
+    /**
+     * Gets the number of chunks unloaded early to fit the memory budget.
+     * @return The number of evicted chunks
+     */
+    public long getEvictedCount() {
+        return evicted;
+    }
+
+    private static final class Idle {
+
+        final long key;
+        final LanternChunk chunk;
+        final int since; // the tick the chunk was found idle, or was last requested while idle
+
+        Idle(long key, LanternChunk chunk, int since) {
+            this.key = key;
+            this.chunk = chunk;
+            this.since = since;
+        }
+    }
+
+    private static final class Temporary implements Comparable<Temporary> {
+
+        final long key;
+        final int expiresAt;
+
+        Temporary(long key, int expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public int compareTo(Temporary other) {
+            return Integer.compare(expiresAt, other.expiresAt);
+        }
+    }
+}
@@ -30,7 +30,6 @@ import com.flowpowered.math.vector.Vector3i;
 import org.spongepowered.api.block.BlockSnapshot;
 import org.spongepowered.api.block.BlockState;
 import org.spongepowered.api.block.BlockType;
-import org.spongepowered.api.block.BlockTypes;
 import org.spongepowered.api.block.ScheduledBlockUpdate;
 import org.spongepowered.api.block.tileentity.TileEntity;
 import org.spongepowered.api.data.DataContainer;
@@ -66,21 +65,30 @@ import org.spongepowered.api.world.extent.UnmodifiableBiomeArea;
 import org.spongepowered.api.world.extent.UnmodifiableBlockVolume;
 import org.spongepowered.lantern.SpongeImpl;
 import org.spongepowered.lantern.block.tileentity.LanternTileEntity;
+import org.spongepowered.lantern.block.tileentity.StoredTileEntity;
 import org.spongepowered.lantern.entity.LanternEntity;
 import org.spongepowered.lantern.io.entity.EntityStorage;
+import org.spongepowered.lantern.util.IntObjectHashMap;
 import org.spongepowered.lantern.util.NibbleArray;
+import org.spongepowered.lantern.util.PaletteArray;
+import org.spongepowered.lantern.util.nbt.NbtLazyCompound;
+import org.spongepowered.lantern.world.storage.AnvilSectionCodec;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
 
+import javax.annotation.Nullable;
+
 import static org.spongepowered.api.data.DataQuery.of;
 import static org.spongepowered.lantern.data.util.DataQueries.ENTITY_ID;
 import static org.spongepowered.lantern.util.DataUtils.getByteArray;
@@ -112,44 +120,67 @@ public class LanternChunk implements Chunk {
     public static final DataQuery ENTITIES = of("Entities");
     public static final DataQuery TILE_ENTITIES = of("TileEntities");
 
-    public Collection<LanternTileEntity> getRawTileEntities() {
-        return tileEntities.values();
-    }
-
     public static final class ChunkSection {
         private static final int ARRAY_SIZE = WIDTH * HEIGHT * SEC_DEPTH;
 
-        // these probably should be made non-public
-        public final char[] types;
-        public final NibbleArray skyLight;
-        public final NibbleArray blockLight;
+        /**
+         * The block types and data of the section, packed by their palette.
+         */
+        private PaletteArray types;
+        /**
+         * The light of the section, which may be shared with other sections
+         * while the light is uniform and is then copied on the first write.
+         */
+        private NibbleArray skyLight;
+        private NibbleArray blockLight;
+        /**
+         * Whether the arrays above are shared with a snapshot, in which case
+         * they are copied before they are next written to.
+         */
+        private boolean sharedTypes;
+        private boolean sharedSkyLight;
+        private boolean sharedBlockLight;
+        /**
+         * A bit per column of the section, set if the column holds any non-air
+         * block, indexed by {@code z << 4 | x}.
+         */
+        private final long[] occupied = new long[4];
         public int count; // amount of non-air blocks
 
         /**
          * Create a new, empty ChunkSection.
          */
-        public ChunkSection() {
-            types = new char[ARRAY_SIZE];
-            skyLight = new NibbleArray(ARRAY_SIZE);
-            blockLight = new NibbleArray(ARRAY_SIZE);
-            skyLight.fill((byte) 0xf);
+        public ChunkSection(byte skyLight) {
+            types = new PaletteArray(ARRAY_SIZE, (char) 0);
+            this.skyLight = NibbleArray.shared(ARRAY_SIZE, skyLight);
+            blockLight = NibbleArray.shared(ARRAY_SIZE, (byte) 0);
         }
 
         /**
          * Create a ChunkSection with the specified chunk data. This
-         * ChunkSection assumes ownership of the arrays passed in, and they
-         * should not be further modified.
+         * ChunkSection assumes ownership of the light arrays passed in, and
+         * they should not be further modified. The types are packed into the
+         * section's own storage.
          */
         public ChunkSection(char[] types, NibbleArray skyLight, NibbleArray blockLight) {
             if (types.length != ARRAY_SIZE || skyLight.size() != ARRAY_SIZE || blockLight.size() != ARRAY_SIZE) {
                 throw new IllegalArgumentException("An array length was not " + ARRAY_SIZE + ": " + types.length + " " + skyLight.size() + " " + blockLight.size());
             }
-            this.types = types;
+            this.types = new PaletteArray(types);
             this.skyLight = skyLight;
             this.blockLight = blockLight;
             recount();
         }
 
+        private ChunkSection(ChunkSection other) {
+            this.types = other.types;
+            this.skyLight = other.skyLight;
+            this.blockLight = other.blockLight;
+            this.count = other.count;
+            System.arraycopy(other.occupied, 0, this.occupied, 0, occupied.length);
+            this.sharedTypes = this.sharedSkyLight = this.sharedBlockLight = true;
+        }
+
         /**
          * Calculate the index into internal arrays for the given coordinates.
          */
@@ -161,22 +192,200 @@ public class LanternChunk implements Chunk {
         }
 
         /**
-         * Recount the amount of non-air blocks in the chunk section.
+         * Gets the type and data of a block, as {@code type << 4 | data}.
+         * @param index The index of the block, see {@link #index(int, int, int)}
+         * @return The type and data of the block
+         */
+        public char getType(int index) {
+            return types.get(index);
+        }
+
+        /**
+         * Sets the type and data of a block, as {@code type << 4 | data}.
+         * @param index The index of the block, see {@link #index(int, int, int)}
+         * @param type The type and data of the block
+         */
+        public void setType(int index, char type) {
+            char previous = types.get(index);
+            if (previous == type) {
+                return;
+            }
+            if (sharedTypes) {
+                types = types.snapshot();
+                sharedTypes = false;
+            }
+            types.set(index, type);
+            if (previous == 0) {
+                count++;
+                occupied[(index >> 6) & 3] |= 1L << index;
+            } else if (type == 0) {
+                count--;
+                if (getHighestInColumn(index & 0xff) < 0) {
+                    occupied[(index >> 6) & 3] &= ~(1L << index);
+                }
+            }
+        }
+
+        /**
+         * Gets whether a column of the section holds any non-air block.
+         * @param column The index of the column, {@code z << 4 | x}
+         * @return Whether the column is occupied
+         */
+        public boolean isColumnOccupied(int column) {
+            return (occupied[column >> 6] & (1L << column)) != 0;
+        }
+
+        /**
+         * Gets the highest non-air block of a column of the section.
+         * @param column The index of the column, {@code z << 4 | x}
+         * @return The y coordinate within the section, or -1 if the column is empty
+         */
+        public int getHighestInColumn(int column) {
+            for (int y = SEC_DEPTH - 1; y >= 0; --y) {
+                if (types.get(y << 8 | column) != 0) {
+                    return y;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Gets whether the section may hold a block whose type and data are
+         * accepted by the filter, see {@link PaletteArray#mayContain}.
+         * @param filter The filter of the types and data
+         * @return False if the section holds no accepted block
+         */
+        public boolean mayContain(IntPredicate filter) {
+            return types.mayContain(filter);
+        }
+
+        /**
+         * Copies the types and data of all blocks of the section.
+         * @return The types and data, indexed by {@link #index(int, int, int)}
+         */
+        public char[] getTypes() {
+            return types.toArray();
+        }
+
+        /**
+         * Copies the types and data of all blocks of the section into the
+         * given array.
+         * @param dest The array to copy to
+         * @return The given array
+         */
+        public char[] getTypes(char[] dest) {
+            return types.toArray(dest);
+        }
+
+        /**
+         * Gets the sky light of a block.
+         * @param index The index of the block, see {@link #index(int, int, int)}
+         * @return The light level
+         */
+        public byte getSkyLight(int index) {
+            return skyLight.get(index);
+        }
+
+        /**
+         * Sets the sky light of a block, copying the light of the section
+         * first if it is shared.
+         * @param index The index of the block, see {@link #index(int, int, int)}
+         * @param value The light level
+         */
+        public void setSkyLight(int index, byte value) {
+            if (skyLight.get(index) != value) {
+                if (sharedSkyLight || skyLight.isImmutable()) {
+                    skyLight = skyLight.mutableCopy();
+                    sharedSkyLight = false;
+                }
+                skyLight.set(index, value);
+            }
+        }
+
+        /**
+         * Gets the block light of a block.
+         * @param index The index of the block, see {@link #index(int, int, int)}
+         * @return The light level
+         */
+        public byte getBlockLight(int index) {
+            return blockLight.get(index);
+        }
+
+        /**
+         * Sets the block light of a block, copying the light of the section
+         * first if it is shared.
+         * @param index The index of the block, see {@link #index(int, int, int)}
+         * @param value The light level
+         */
+        public void setBlockLight(int index, byte value) {
+            if (blockLight.get(index) != value) {
+                if (sharedBlockLight || blockLight.isImmutable()) {
+                    blockLight = blockLight.mutableCopy();
+                    sharedBlockLight = false;
+                }
+                blockLight.set(index, value);
+            }
+        }
+
+        /**
+         * Gets the sky light of the section, which must not be modified.
+         * @return The sky light
+         */
+        public NibbleArray getSkyLightArray() {
+            return skyLight;
+        }
+
+        /**
+         * Gets the block light of the section, which must not be modified.
+         * @return The block light
+         */
+        public NibbleArray getBlockLightArray() {
+            return blockLight;
+        }
+
+        /**
+         * Gets the number of bits each block of this section takes.
+         * @return The bits per block
+         */
+        public int getBitsPerBlock() {
+            return types.getBitsPerEntry();
+        }
+
+        /**
+         * Estimates the number of bytes taken by the blocks and light of the
+         * section.
+         * @return The estimated size in bytes
+         */
+        public int getMemoryUsage() {
+            return types.getMemoryUsage() + skyLight.getMemoryUsage() + blockLight.getMemoryUsage();
+        }
+
+        /**
+         * Recount the amount of non-air blocks in the chunk section, and
+         * which of its columns they are in.
          */
         public void recount() {
-            count = 0;
-            for (char type : types) {
-                if (type != 0) {
-                    count++;
+            count = types.countNonZero();
+            Arrays.fill(occupied, 0);
+            if (count == 0) {
+                return;
+            }
+            for (int i = 0; i < ARRAY_SIZE; i++) {
+                if (types.get(i) != 0) {
+                    occupied[(i >> 6) & 3] |= 1L << i;
                 }
             }
         }
 
         /**
          * Take a snapshot of this section which will not reflect future changes.
+         * The snapshot shares the arrays of this section, which are copied by
+         * whichever of the two sections is written to first. This must be
+         * called from the thread that modifies the section.
          */
         public ChunkSection snapshot() {
-            return new ChunkSection(types.clone(), skyLight.snapshot(), blockLight.snapshot());
+            sharedTypes = sharedSkyLight = sharedBlockLight = true;
+            return new ChunkSection(this);
         }
     }
 
@@ -205,12 +414,20 @@ public class LanternChunk implements Chunk {
      * The height for a column is one plus the y-index of the highest non-air
      * block in the column.
      */
-    private byte[] heightMap;
+    private int[] heightMap;
 
     /**
-     * The tile entities that reside in this chunk.
+     * The tile entities that reside in this chunk, keyed by their
+     * {@link #tileEntityIndex(int, int, int) index}.
      */
-    private final HashMap<Integer, LanternTileEntity> tileEntities = new HashMap<>();
+    private final IntObjectHashMap<LanternTileEntity> tileEntities = new IntObjectHashMap<>();
+
+    /**
+     * Whether the tickable tile entities of this chunk have been added to the
+     * ticking list of the world, which is the case while the chunk is active.
+     * Only accessed from the world thread.
+     */
+    private boolean ticking;
 
     /**
      * The entities that reside in this chunk.
@@ -223,6 +440,37 @@ public class LanternChunk implements Chunk {
      */
     private boolean populated = false;
 
+    /**
+     * The stored entities and tile entities of this chunk, while it is
+     * loaded but not yet active, or while they couldn't be decoded. They are
+     * written back as they were read as long as they are kept here.
+     */
+    @Nullable private volatile NbtLazyCompound deferredEntities;
+
+    /**
+     * Whether the chunk has been activated since it was loaded.
+     */
+    private volatile boolean active;
+
+    /**
+     * The stored entities and tile entities which could not be turned into
+     * live objects, e.g. because their type isn't implemented. They are
+     * written back as they were read, so that saving the chunk doesn't
+     * delete them.
+     */
+    private final List<DataView> retainedEntities = new ArrayList<>(0);
+    private final List<DataView> retainedTileEntities = new ArrayList<>(0);
+
+    /**
+     * Whether the chunk has changed since it was last saved.
+     */
+    private volatile boolean dirty = false;
+
+    /**
+     * The tick of the chunk manager this chunk was last requested in.
+     */
+    private int lastAccess;
+
     /**
      * Creates a new chunk with specified coordinates.
      */
@@ -231,10 +479,11 @@ public class LanternChunk implements Chunk {
         this.position = position;
     }
 
-    protected LanternChunk(LanternWorld world, Vector3i position, ChunkSection[] sections, byte[] height, byte[] biomes) {
+    protected LanternChunk(LanternWorld world, Vector3i position, ChunkSection[] sections, @Nullable int[] height, @Nullable byte[] biomes) {
         this.world = world;
         this.position = position;
 
+        // sections are copy-on-write, so this doesn't copy any block or light data
         int numSections = sections != null ? sections.length : 0;
         this.sections = new ChunkSection[numSections];
         for (int i = 0; i < numSections; ++i) {
@@ -243,28 +492,88 @@ public class LanternChunk implements Chunk {
             }
         }
 
-        this.heightMap = height;
-        this.biomes = biomes;
+        this.heightMap = height != null ? height.clone() : null;
+        this.biomes = biomes != null ? biomes.clone() : null;
     }
 
     public void load(DataContainer root) {
         DataView levelTag = root.getView(LEVEL).get();
+        loadTerrain(levelTag);
+        loadEntities(levelTag);
+    }
+
+    /**
+     * Loads the terrain of this chunk, but leaves its entities and tile
+     * entities undecoded until the chunk is {@link #activate() activated}.
+     * @param root The lazy view of the stored chunk
+     * @throws IOException if the chunk data is malformed
+     */
+    public void loadDeferred(NbtLazyCompound root) throws IOException {
+        Optional<NbtLazyCompound> level = root.getCompound(LEVEL);
+        if (!level.isPresent()) {
+            throw new IOException("Chunk " + this + " has no level tag");
+        }
+        loadTerrain(level.get().toContainer(ENTITIES, TILE_ENTITIES));
+        deferredEntities = level.get().retain(ENTITIES, TILE_ENTITIES);
+    }
+
+    /**
+     * Loads the entities and tile entities of a chunk which was loaded with
+     * {@link #loadDeferred(NbtLazyCompound)}, if they haven't been loaded yet,
+     * and starts ticking its tickable tile entities. Must be called from the
+     * world thread.
+     */
+    public void activate() {
+        NbtLazyCompound deferred = deferredEntities;
+        if (deferred != null) {
+            try {
+                // entries which don't turn into live objects are retained by loadEntities
+                loadEntities(deferred.toContainer());
+                deferredEntities = null;
+            } catch (IOException e) {
+                SpongeImpl.getLogger().error("Error decoding the entities of " + this + ", they are kept as stored", e);
+            }
+        }
+        active = true;
+        if (!ticking) {
+            ticking = true;
+            tileEntities.forEachValue(tileEntity -> {
+                if (tileEntity.isTickable()) {
+                    world.addTickingTileEntity(tileEntity);
+                }
+            });
+        }
+    }
 
+    /**
+     * Gets whether this chunk has been activated, which loads its entities.
+     * Only active chunks are handed out as loaded, as the terrain of a chunk
+     * which is still being loaded may be written by other threads.
+     * @return Whether this chunk is active
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Reads the core properties, sections, height map and biomes of this
+     * chunk.
+     * @param levelTag The level tag to read from.
+     */
+    private void loadTerrain(DataView levelTag) {
         // read the vertical sections
         List<DataView> sectionList = levelTag.getViewList(SECTIONS).get();
         ChunkSection[] sections = new ChunkSection[16];
         for (DataView sectionTag : sectionList) {
             int y = sectionTag.getInt(Queries.POSITION_Y).get();
             byte[] rawTypes = getByteArray(sectionTag, BLOCKS);
-            NibbleArray extTypes = sectionTag.contains(ADD) ? new NibbleArray(getByteArray(sectionTag, ADD)) : null;
-            NibbleArray blockData = new NibbleArray(getByteArray(sectionTag, BLOCK_DATA));
-            NibbleArray blockLight = new NibbleArray(getByteArray(sectionTag, BLOCK_LIGHT));
-            NibbleArray skyLight = new NibbleArray(getByteArray(sectionTag, SKY_LIGHT));
-
-            char[] types = new char[rawTypes.length];
-            for (int i = 0; i < rawTypes.length; i++) {
-                types[i] = (char) (((extTypes == null ? 0 : extTypes.get(i)) << 12) | ((rawTypes[i] & 0xff) << 4) | blockData.get(i));
-            }
+            byte[] extTypes = sectionTag.contains(ADD) ? getByteArray(sectionTag, ADD) : null;
+            byte[] blockData = getByteArray(sectionTag, BLOCK_DATA);
+            NibbleArray blockLight = NibbleArray.sharedIfUniform(getByteArray(sectionTag, BLOCK_LIGHT));
+            NibbleArray skyLight = NibbleArray.sharedIfUniform(getByteArray(sectionTag, SKY_LIGHT));
+
+            // the section packs the types into its own storage, so they can be decoded into scratch space
+            char[] types = AnvilSectionCodec.decode(rawTypes, extTypes, blockData, AnvilSectionCodec.getScratch());
             sections[y] = new ChunkSection(types, skyLight, blockLight);
         }
 
@@ -282,7 +591,14 @@ public class LanternChunk implements Chunk {
         } else {
             automaticHeightMap();
         }
+    }
 
+    /**
+     * Reads the entities and tile entities of this chunk. This creates live
+     * objects, so it must be called from the world thread.
+     * @param levelTag The level tag to read from.
+     */
+    private void loadEntities(DataView levelTag) {
         // read entities
         //TODO: Rewrite
         if (levelTag.contains(ENTITIES)) {
@@ -292,6 +608,7 @@ public class LanternChunk implements Chunk {
                     // note that creating the entity is sufficient to add it to the world
                     EntityStorage.loadEntity(getWorld(), entityTag);
                 } catch (Exception e) {
+                    retainedEntities.add(entityTag);
                     String id = entityTag.getString(ENTITY_ID).orElse("<missing>");
                     if (e.getMessage() != null && e.getMessage().startsWith("Unknown entity type to load:")) {
                         SpongeImpl.getLogger().warn("Unknown entity in " + this + ": " + id);
@@ -303,11 +620,19 @@ public class LanternChunk implements Chunk {
         }
 
         // read tile entities
-        List<DataView> storedTileEntities = levelTag.getViewList(TILE_ENTITIES).get();
+        List<DataView> storedTileEntities = levelTag.getViewList(TILE_ENTITIES).orElse(Collections.emptyList());
         for (DataView tileEntityTag : storedTileEntities) {
-            int tx = tileEntityTag.getInt(of("x")).get();
-            int ty = tileEntityTag.getInt(of("y")).get();
-            int tz = tileEntityTag.getInt(of("z")).get();
+            Optional<Integer> x = tileEntityTag.getInt(of("x"));
+            Optional<Integer> y = tileEntityTag.getInt(of("y"));
+            Optional<Integer> z = tileEntityTag.getInt(of("z"));
+            if (!x.isPresent() || !y.isPresent() || !z.isPresent()) {
+                retainedTileEntities.add(tileEntityTag);
+                SpongeImpl.getLogger().warn("Tile entity without a position in " + this);
+                continue;
+            }
+            int tx = x.get();
+            int ty = y.get();
+            int tz = z.get();
 
             //TODO: Rewrite?
             Optional<TileEntity> tileEntity = getTileEntity(tx & 0xf, ty, tz & 0xf);
@@ -315,10 +640,14 @@ public class LanternChunk implements Chunk {
                 try {
                     ((LanternTileEntity) tileEntity.get()).loadNbt(tileEntityTag);
                 } catch (Exception ex) {
+                    // the stored data is kept instead of the half loaded tile entity
+                    removeTileEntity(tileEntityIndex(tx & 0xf, ty, tz & 0xf));
+                    retainedTileEntities.add(tileEntityTag);
                     String id = tileEntityTag.getString(ENTITY_ID).orElse("<missing>");
-                    SpongeImpl.getLogger().error("Error loading tile entity at " + tileEntity.get().getLocation().getBlockPosition() + ": " + id, ex);
+                    SpongeImpl.getLogger().error("Error loading tile entity at " + getWorld().getName() + "," + tx + "," + ty + "," + tz + ": " + id, ex);
                 }
             } else {
+                retainedTileEntities.add(tileEntityTag);
                 String id = tileEntityTag.getString(ENTITY_ID).orElse("<missing>");
                 SpongeImpl.getLogger().warn("Unknown tile entity at " + getWorld().getName() + "," + tx + "," + ty + "," + tz + ": " + id);
             }
@@ -326,9 +655,34 @@ public class LanternChunk implements Chunk {
     }
 
     public void save(DataView out) {
+        DataContainer levelTags = new MemoryDataContainer();
+        saveTerrain(levelTags);
+        saveEntities(levelTags);
+        out.set(LEVEL, levelTags);
+    }
+
+    /**
+     * Writes the core properties, sections, height map and biomes of this
+     * chunk. As this only touches the chunk's own arrays, it may be called
+     * on a {@link #snapshot(boolean, boolean) snapshot} from another thread.
+     * @param levelTags The level tag to write to.
+     */
+    public void saveTerrain(DataView levelTags) {
+        saveTerrain(levelTags, false);
+    }
+
+    /**
+     * Writes the core properties, sections, height map and biomes of this
+     * chunk, optionally encoding the sections into the
+     * {@link AnvilSectionCodec#getBuffers() buffers} of the calling thread
+     * instead of new arrays. The level tag must then be written out before
+     * the next chunk is saved on the same thread.
+     * @param levelTags The level tag to write to.
+     * @param reuseBuffers Whether to encode into the buffers of the thread
+     */
+    public void saveTerrain(DataView levelTags, boolean reuseBuffers) {
         int x = getPosition().getX();
         int z = getPosition().getZ();
-        DataContainer levelTags = new MemoryDataContainer();
 
         // core properties
         levelTags.set(of("xPos"), x);
@@ -338,6 +692,7 @@ public class LanternChunk implements Chunk {
 
         // chunk sections
         List<DataView> sectionTags = new ArrayList<>();
+        AnvilSectionCodec.Buffers buffers = reuseBuffers ? AnvilSectionCodec.getBuffers() : null;
         ChunkSection[] sections = getRawSections();
         for (byte i = 0; i < sections.length; ++i) {
             ChunkSection sec = sections[i];
@@ -346,27 +701,23 @@ public class LanternChunk implements Chunk {
             DataView sectionTag = new MemoryDataContainer();
             sectionTag.set(Queries.POSITION_Y, i);
 
-            byte[] rawTypes = new byte[sec.types.length];
-            NibbleArray extTypes = null;
-            NibbleArray data = new NibbleArray(sec.types.length);
-            for (int j = 0; j < sec.types.length; j++) {
-                rawTypes[j] = (byte) ((sec.types[j] >> 4) & 0xFF);
-                byte extType = (byte) (sec.types[j] >> 12);
-                if (extType > 0) {
-                    if (extTypes == null) {
-                        extTypes = new NibbleArray(sec.types.length);
-                    }
-                    extTypes.set(j, extType);
-                }
-                data.set(j, (byte) (sec.types[j] & 0xF));
+            char[] types = sec.getTypes(AnvilSectionCodec.getScratch());
+            byte[] rawTypes = buffers != null ? buffers.getBlocks(i) : new byte[types.length];
+            byte[] data = buffers != null ? buffers.getData(i) : new byte[types.length >> 1];
+            AnvilSectionCodec.encode(types, rawTypes, data);
+            byte[] extTypes;
+            if (buffers != null) {
+                extTypes = AnvilSectionCodec.encodeAdd(types, buffers.getAdd(i)) ? buffers.getAdd(i) : null;
+            } else {
+                extTypes = AnvilSectionCodec.encodeAdd(types);
             }
             sectionTag.set(BLOCKS, rawTypes);
             if (extTypes != null) {
-                sectionTag.set(ADD, extTypes.getRawData());
+                sectionTag.set(ADD, extTypes);
             }
-            sectionTag.set(BLOCK_DATA, data.getRawData());
-            sectionTag.set(BLOCK_LIGHT, sec.blockLight.getRawData());
-            sectionTag.set(SKY_LIGHT, sec.skyLight.getRawData());
+            sectionTag.set(BLOCK_DATA, data);
+            sectionTag.set(BLOCK_LIGHT, sec.getBlockLightArray().getRawDataView());
+            sectionTag.set(SKY_LIGHT, sec.getSkyLightArray().getRawDataView());
 
             sectionTags.add(sectionTag);
         }
@@ -375,6 +726,25 @@ public class LanternChunk implements Chunk {
         // height map and biomes
         levelTags.set(HEIGHT_MAP, getRawHeightmap());
         levelTags.set(BIOMES, getRawBiomes());
+    }
+
+    /**
+     * Writes the entities and tile entities of this chunk. These are live
+     * objects, so this must be called from the world thread.
+     * @param levelTags The level tag to write to.
+     */
+    public void saveEntities(DataView levelTags) {
+        NbtLazyCompound deferred = deferredEntities;
+        if (deferred != null) {
+            // never loaded, so write back what was read
+            try {
+                levelTags.set(ENTITIES, deferred.get(ENTITIES).orElse(new ArrayList<>()));
+                levelTags.set(TILE_ENTITIES, deferred.get(TILE_ENTITIES).orElse(new ArrayList<>()));
+                return;
+            } catch (IOException e) {
+                SpongeImpl.getLogger().error("Error saving the unloaded entities of " + this, e);
+            }
+        }
 
         // entities
         List<DataView> entities = new ArrayList<>();
@@ -390,23 +760,22 @@ public class LanternChunk implements Chunk {
                 SpongeImpl.getLogger().warn("Error saving " + entity + " in " + this, e);
             }
         }
+        entities.addAll(retainedEntities);
         levelTags.set(ENTITIES, entities);
 
         // tile entities
-        List<DataView> tileEntities = new ArrayList<>();
-        for (LanternTileEntity entity : getRawTileEntities()) {
+        List<DataView> tileEntityTags = new ArrayList<>(tileEntities.size() + retainedTileEntities.size());
+        tileEntities.forEachValue(entity -> {
             try {
                 DataView tag = new MemoryDataContainer();
                 entity.saveNbt(tag);
-                tileEntities.add(tag);
+                tileEntityTags.add(tag);
             } catch (Exception ex) {
-                SpongeImpl.getLogger().error("Error saving tile entity at " + entity.getBlock(), ex);
+                SpongeImpl.getLogger().error("Error saving tile entity at " + entity.getLocation(), ex);
             }
-        }
-        levelTags.set(TILE_ENTITIES, tileEntities);
-
-        DataView levelOut = new MemoryDataContainer();
-        levelOut.set(LEVEL, levelTags);
+        });
+        tileEntityTags.addAll(retainedTileEntities);
+        levelTags.set(TILE_ENTITIES, tileEntityTags);
     }
 
     /**
@@ -423,24 +792,95 @@ public class LanternChunk implements Chunk {
         System.arraycopy(initSections, 0, sections, 0, Math.min(sections.length, initSections.length));
 
         biomes = new byte[WIDTH * HEIGHT];
-        heightMap = new byte[WIDTH * HEIGHT];
+        heightMap = new int[WIDTH * HEIGHT];
 
-        // tile entity initialization
+        // tile entity initialization, only looking into the sections of
+        // which the palette holds a block with a tile entity
+        char[] types = null;
         for (int i = 0; i < sections.length; ++i) {
-            if (sections[i] == null) continue;
-            int by = 16 * i;
-            for (int cx = 0; cx < WIDTH; ++cx) {
-                for (int cz = 0; cz < HEIGHT; ++cz) {
-                    for (int cy = by; cy < by + 16; ++cy) {
-                        createTileEntity(cx, cy, cz, getBlockType(cx, cy, cz));
-                    }
+            ChunkSection section = sections[i];
+            if (section == null || !section.mayContain(TileEntityProperties::hasTileEntity)) continue;
+            if (types == null) {
+                types = new char[ChunkSection.ARRAY_SIZE];
+            }
+            section.getTypes(types);
+            for (int index = 0; index < ChunkSection.ARRAY_SIZE; ++index) {
+                if (TileEntityProperties.hasTileEntity(types[index])) {
+                    // the section index is the low 12 bits of the chunk index
+                    int chunkIndex = i << 12 | index;
+                    putTileEntity(chunkIndex, createTileEntity(chunkIndex, types[index]));
                 }
             }
         }
     }
 
-    private void createTileEntity(int cx, int cy, int cz, BlockType type) {
-        //TODO: Implement
+    /**
+     * Gets the index of a block within this chunk, by which its tile entity
+     * is stored.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     * @return The index, {@code y << 8 | z << 4 | x}
+     */
+    private static int tileEntityIndex(int x, int y, int z) {
+        return y << 8 | z << 4 | x;
+    }
+
+    /**
+     * Creates the tile entity of a block which has one. The behaviour of
+     * tile entities isn't implemented yet, so it only keeps the data it is
+     * loaded with.
+     * @param index The index of the block, see {@link #tileEntityIndex(int, int, int)}
+     * @param type The type and data of the block
+     * @return The tile entity
+     */
+    private LanternTileEntity createTileEntity(int index, char type) {
+        StoredTileEntity tileEntity = new StoredTileEntity(TileEntityProperties.getTileEntityType(type),
+                TileEntityProperties.getTileEntityId(type));
+        tileEntity.setLocation(world, new Vector3i(position.getX() << 4 | index & 0xf, index >> 8,
+                position.getZ() << 4 | index >> 4 & 0xf));
+        return tileEntity;
+    }
+
+    /**
+     * Stores a tile entity, invalidating the one it replaces, and adds it to
+     * the ticking list of the world if this chunk is active.
+     * @param index The index of the block, see {@link #tileEntityIndex(int, int, int)}
+     * @param tileEntity The tile entity
+     */
+    private void putTileEntity(int index, LanternTileEntity tileEntity) {
+        LanternTileEntity previous = tileEntities.put(index, tileEntity);
+        if (previous != null) {
+            previous.setValid(false);
+        }
+        if (ticking && tileEntity.isTickable()) {
+            world.addTickingTileEntity(tileEntity);
+        }
+    }
+
+    /**
+     * Drops the stored data of a tile entity which couldn't be loaded, once
+     * its block is replaced.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     */
+    private void removeRetainedTileEntity(int x, int y, int z) {
+        retainedTileEntities.removeIf(tag -> (tag.getInt(of("x")).orElse(0) & 0xf) == x
+                && tag.getInt(of("y")).orElse(-1) == y
+                && (tag.getInt(of("z")).orElse(0) & 0xf) == z);
+    }
+
+    /**
+     * Removes and invalidates a tile entity, which drops it from the ticking
+     * list of the world.
+     * @param index The index of the block, see {@link #tileEntityIndex(int, int, int)}
+     */
+    private void removeTileEntity(int index) {
+        LanternTileEntity previous = tileEntities.remove(index);
+        if (previous != null) {
+            previous.setValid(false);
+        }
     }
 
     @Override
@@ -480,58 +920,270 @@ public class LanternChunk implements Chunk {
         if (newHeightMap.length != heightMap.length) {
             throw new IllegalArgumentException("Height map not of length " + heightMap.length);
         }
-        for (int i = 0; i < heightMap.length; ++i) {
-            heightMap[i] = (byte) newHeightMap[i];
-        }
+        System.arraycopy(newHeightMap, 0, heightMap, 0, heightMap.length);
     }
 
     /**
      * Automatically fill the height map after chunks have been initialized.
      */
     public void automaticHeightMap() {
-        // determine max Y chunk section at a time
-        int sy = sections.length - 1;
-        for (; sy >= 0; --sy) {
-            if (sections[sy] != null) {
-                break;
+        for (int column = 0; column < heightMap.length; ++column) {
+            heightMap[column] = lowerHeightMap(column, sections.length);
+        }
+    }
+
+    /**
+     * Scan downwards from the top of the given section to determine the new
+     * height map value, skipping the sections the column is empty in.
+     */
+    private int lowerHeightMap(int column, int sectionY) {
+        for (--sectionY; sectionY >= 0; --sectionY) {
+            ChunkSection section = sections[sectionY];
+            if (section != null && section.isColumnOccupied(column)) {
+                return sectionY * SEC_DEPTH + section.getHighestInColumn(column) + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the raw type and data of a block, as {@code type << 4 | data}.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     * @return The type and data of the block
+     */
+    public char getType(int x, int y, int z) {
+        ChunkSection section = getSection(y);
+        return section == null ? 0 : section.getType(section.index(x, y, z));
+    }
+
+    /**
+     * Sets the raw type and data of a block, as {@code type << 4 | data},
+     * updates the height map of its column and queues the light around it
+     * to be updated if the block changes it.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     * @param type The type and data of the block
+     */
+    public void setType(int x, int y, int z, char type) {
+        ChunkSection section = getSection(y);
+        if (section == null) {
+            if (type == 0) {
+                return;
+            }
+            section = sections[y >> 4] = new ChunkSection(getEmptySkyLight());
+        }
+        int index = section.index(x, y, z);
+        char previous = section.getType(index);
+        if (previous == type) {
+            return;
+        }
+        section.setType(index, type);
+        // the tile entity is kept if only the data of the block changes
+        if ((previous >> 4) != (type >> 4)
+                && (TileEntityProperties.hasTileEntity(previous) || TileEntityProperties.hasTileEntity(type))) {
+            int tileEntityIndex = tileEntityIndex(x, y, z);
+            removeTileEntity(tileEntityIndex);
+            removeRetainedTileEntity(x, y, z);
+            if (TileEntityProperties.hasTileEntity(type)) {
+                putTileEntity(tileEntityIndex, createTileEntity(tileEntityIndex, type));
+            }
+        }
+        if (LightProperties.affectsLight(previous, type)) {
+            world.getChunkManager().getLightEngine().queueChange((position.getX() << 4) + x, y, (position.getZ() << 4) + z);
+        }
+
+        int column = z * WIDTH + x;
+        int height = heightMap[column];
+        if (type != 0) {
+            if (y >= height) {
+                heightMap[column] = y + 1;
+            }
+        } else if (y == height - 1) {
+            // the top block was removed, the rest of its section is checked first
+            if (section.isColumnOccupied(column)) {
+                heightMap[column] = (y & ~0xf) + section.getHighestInColumn(column) + 1;
+            } else {
+                heightMap[column] = lowerHeightMap(column, y >> 4);
             }
         }
-        int y = (sy + 1) * 16;
-        for (int x = 0; x < WIDTH; ++x) {
-            for (int z = 0; z < HEIGHT; ++z) {
-                heightMap[z * WIDTH + x] = (byte) lowerHeightMap(x, y, z);
+        dirty = true;
+    }
+
+    /**
+     * Gets the sky light of a block. Blocks in empty sections are fully lit,
+     * unless the world has no sky.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     * @return The light level
+     */
+    public byte getSkyLight(int x, int y, int z) {
+        ChunkSection section = getSection(y);
+        return section == null ? getEmptySkyLight() : section.getSkyLight(section.index(x, y, z));
+    }
+
+    /**
+     * Gets the sky light of the blocks in empty sections, which is the light
+     * new sections start out with.
+     */
+    private byte getEmptySkyLight() {
+        return world.getDimension().hasSky() ? (byte) 15 : 0;
+    }
+
+    /**
+     * Sets the sky light of a block, creating its section if it is empty.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     * @param level The light level
+     */
+    public void setSkyLight(int x, int y, int z, byte level) {
+        ChunkSection section = getSection(y);
+        if (section == null) {
+            if (level == getEmptySkyLight()) {
+                return;
             }
+            section = sections[y >> 4] = new ChunkSection(getEmptySkyLight());
         }
+        section.setSkyLight(section.index(x, y, z), level);
+        dirty = true;
     }
 
     /**
-     * Scan downwards to determine the new height map value.
+     * Gets the block light of a block. Blocks in empty sections are dark.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     * @return The light level
      */
-    private int lowerHeightMap(int x, int y, int z) {
-        for (--y; y >= 0; --y) {
-            if (!getBlockType(x, y, z).equals(BlockTypes.AIR)) {
-                break;
+    public byte getBlockLight(int x, int y, int z) {
+        ChunkSection section = getSection(y);
+        return section == null ? 0 : section.getBlockLight(section.index(x, y, z));
+    }
+
+    /**
+     * Sets the block light of a block, creating its section if it is empty.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     * @param level The light level
+     */
+    public void setBlockLight(int x, int y, int z, byte level) {
+        ChunkSection section = getSection(y);
+        if (section == null) {
+            if (level == 0) {
+                return;
             }
+            section = sections[y >> 4] = new ChunkSection(getEmptySkyLight());
+        }
+        section.setBlockLight(section.index(x, y, z), level);
+        dirty = true;
+    }
+
+    /**
+     * Gets the section containing the given y coordinate.
+     */
+    @Nullable
+    private ChunkSection getSection(int y) {
+        if (sections == null) {
+            throw new IllegalStateException("Must initialize chunk first");
         }
-        return y + 1;
+        if (y < 0 || y >= DEPTH) {
+            throw new IndexOutOfBoundsException("Y coordinate " + y + " out of chunk bounds");
+        }
+        return sections[y >> 4];
     }
 
     public LanternChunk snapshot(boolean includeMaxBlockY, boolean includeBiome) {
-        return new LanternChunk(this.world, this.position, this.sections,
+        LanternChunk snapshot = new LanternChunk(this.world, this.position, this.sections,
                 includeMaxBlockY ? this.heightMap : null,
                 includeBiome ? this.biomes : null);
+        snapshot.populated = this.populated;
+        return snapshot;
+    }
+
+    /**
+     * Gets whether this chunk has changed since it was last saved.
+     * @return true if the chunk needs saving.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Sets whether this chunk has changed since it was last saved.
+     * @param dirty The new state.
+     */
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    /**
+     * Records that the chunk was requested in the given tick.
+     * @param tick The tick of the chunk manager
+     */
+    void touch(int tick) {
+        lastAccess = tick;
+    }
+
+    /**
+     * Gets the tick of the chunk manager this chunk was last requested in.
+     * @return The tick
+     */
+    int getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Estimates the number of bytes taken by the terrain of this chunk.
+     * @return The estimated size in bytes, or 0 if it isn't loaded
+     */
+    public int getMemoryUsage() {
+        ChunkSection[] sections = this.sections;
+        if (sections == null) {
+            return 0;
+        }
+        int usage = WIDTH * HEIGHT * 5; // height map and biomes
+        for (ChunkSection section : sections) {
+            if (section != null) {
+                usage += section.getMemoryUsage();
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Drops the terrain, entities and tile entities of this chunk, once it
+     * has been saved and removed from the chunk manager.
+     */
+    void unload() {
+        active = false;
+        sections = null;
+        heightMap = null;
+        biomes = null;
+        deferredEntities = null;
+        entities.clear();
+        retainedEntities.clear();
+        retainedTileEntities.clear();
+        tileEntities.forEachValue(tileEntity -> tileEntity.setValid(false));
+        tileEntities.clear();
+        ticking = false;
+        dirty = false;
     }
 
     public ChunkSection[] getRawSections() {
         return sections;
     }
 
+    /**
+     * Gets the height map of this chunk, which must not be modified.
+     * @return The height map, indexed by {@code z * 16 + x}
+     */
     public int[] getRawHeightmap() {
-        int[] result = new int[heightMap.length];
-        for (int i = 0; i < result.length; ++i) {
-            result[i] = heightMap[i];
-        }
-        return result;
+        return heightMap;
     }
 
     public byte[] getRawBiomes() {
@@ -559,7 +1211,7 @@ public class LanternChunk implements Chunk {
 
     @Override
     public boolean unloadChunk() {
-        return false; //TODO: Implement
+        return world.unloadChunk(this);
     }
 
     @Override
@@ -957,19 +1609,45 @@ public class LanternChunk implements Chunk {
         return null; //TODO: Implement
     }
 
+    /**
+     * Copies the tile entities of this chunk into a new list, which isn't
+     * affected by tile entities being added or removed afterwards. Saving
+     * iterates the tile entities directly instead.
+     * @return The tile entities
+     */
+    public List<LanternTileEntity> getRawTileEntities() {
+        List<LanternTileEntity> list = new ArrayList<>(tileEntities.size());
+        tileEntities.forEachValue(list::add);
+        return list;
+    }
+
     @Override
     public Collection<TileEntity> getTileEntities() {
-        return null; //TODO: Implement
+        List<TileEntity> list = new ArrayList<>(tileEntities.size());
+        tileEntities.forEachValue(list::add);
+        return list;
     }
 
     @Override
     public Collection<TileEntity> getTileEntities(Predicate<TileEntity> filter) {
-        return null; //TODO: Implement
+        List<TileEntity> list = new ArrayList<>();
+        tileEntities.forEachValue(tileEntity -> {
+            if (filter.test(tileEntity)) {
+                list.add(tileEntity);
+            }
+        });
+        return list;
     }
 
     @Override
     public Optional<TileEntity> getTileEntity(Vector3i position) {
-        return null; //TODO: Implement
+        int x = position.getX();
+        int y = position.getY();
+        int z = position.getZ();
+        if (x < 0 || z < 0 || y < 0 || x >= WIDTH || z >= HEIGHT || y >= DEPTH) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(tileEntities.get(tileEntityIndex(x, y, z)));
     }
 
     @Override
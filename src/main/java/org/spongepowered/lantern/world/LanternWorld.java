@@ -79,11 +79,19 @@ import org.spongepowered.api.world.extent.StorageType;
 import org.spongepowered.api.world.extent.UnmodifiableBiomeArea;
 import org.spongepowered.api.world.extent.UnmodifiableBlockVolume;
 import org.spongepowered.api.world.gen.WorldGenerator;
+import org.spongepowered.api.world.gen.WorldGeneratorModifier;
 import org.spongepowered.api.world.storage.WorldProperties;
 import org.spongepowered.api.world.weather.Weather;
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.block.tileentity.LanternTileEntity;
+import org.spongepowered.lantern.config.LanternConfig;
+import org.spongepowered.lantern.world.dimension.OverworldDimension;
+import org.spongepowered.lantern.world.storage.ChunkCompression;
 import org.spongepowered.lantern.world.storage.LanternChunkLayout;
+import org.spongepowered.lantern.world.storage.LanternWorldProperties;
 import org.spongepowered.lantern.world.storage.LanternWorldStorage;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Optional;
@@ -91,23 +99,197 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.function.Predicate;
 
+import javax.annotation.Nullable;
+
 public class LanternWorld implements World {
 
+    /**
+     * The number of ticks between saves of the chunks that have changed.
+     */
+    private static final int AUTOSAVE_INTERVAL = 6000;
+
+    /**
+     * The game rule which stops the time of day when set to false.
+     */
+    private static final String DAYLIGHT_CYCLE = "doDaylightCycle";
+
     private final WorldProperties properties;
     private final LanternWorldStorage storage;
+    private final Dimension dimension;
     private final ChunkManager chunkManager;
 
+    /**
+     * The generator of which the populators are run on new chunks.
+     */
+    @Nullable
+    private volatile WorldGenerator worldGenerator;
+
+    /**
+     * The tickable tile entities of the loaded chunks.
+     */
+    private final TileEntityTicker tileEntityTicker = new TileEntityTicker();
+
+    /**
+     * The number of ticks this world has been pulsed.
+     */
+    private long ticks;
+
+    /**
+     * The thread pulsing this world, or null until it is first pulsed.
+     */
+    @Nullable private volatile Thread thread;
+
     public LanternWorld(LanternWorldStorage storage, WorldProperties properties) {
         this.storage = checkNotNull(storage);
         this.properties = checkNotNull(properties);
+        this.dimension = createDimension();
         this.chunkManager = new ChunkManager(this);
+
+        if (properties instanceof LanternWorldProperties && ((LanternWorldProperties) properties).getWorldConfig() != null) {
+            LanternConfig.WorldCategory config = ((LanternWorldProperties) properties).getWorldConfig().getWorld();
+            try {
+                storage.getChunkIoService().setCompression(
+                        ChunkCompression.byName(config.getChunkCompression(), config.getChunkCompressionLevel()));
+            } catch (IllegalArgumentException e) {
+                SpongeImpl.getLogger().warn("Invalid chunk compression for world " + properties.getWorldName() + ", using deflate: "
+                        + e.getMessage());
+            }
+        }
+        this.worldGenerator = createWorldGenerator();
+        storage.startCompaction();
+        chunkManager.getPregenerator().resume();
+    }
+
+    /**
+     * Creates the dimension of the dimension type of this world, or the
+     * overworld if it can't be created.
+     */
+    private Dimension createDimension() {
+        try {
+            return properties.getDimensionType().getDimensionClass().newInstance();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            SpongeImpl.getLogger().error("Could not create the dimension of world " + properties.getWorldName()
+                    + ", using the overworld", e);
+            return new OverworldDimension();
+        }
     }
 
     /**
-     * Updates all the entities within this world.
+     * Creates the generator of the generator type of this world, modified
+     * by the modifiers of the world.
+     */
+    @Nullable
+    private WorldGenerator createWorldGenerator() {
+        WorldGenerator generator = properties.getGeneratorType().createGenerator(this);
+        if (generator == null) {
+            return null;
+        }
+        WorldCreationSettings settings = getCreationSettings();
+        for (WorldGeneratorModifier modifier : properties.getGeneratorModifiers()) {
+            try {
+                modifier.modifyWorldGenerator(settings, properties.getGeneratorSettings(), generator);
+            } catch (Exception e) {
+                SpongeImpl.getLogger().error("World generator modifier " + modifier.getId() + " failed to modify the generator of world "
+                        + properties.getWorldName(), e);
+            }
+        }
+        return generator;
+    }
+
+    /**
+     * Runs a tick of this world. The clock advances first, then the chunks
+     * read since the last tick are loaded, ready chunks are populated, the
+     * changed blocks are lit and idle chunks unloaded, before the chunks
+     * around the viewers are prefetched and the tile entities are pulsed.
+     * Every {@link #AUTOSAVE_INTERVAL} ticks the chunks that have changed
+     * and the properties are saved.
      */
     public void pulse() {
-        //TODO: Implement
+        thread = Thread.currentThread();
+        advanceTime();
+        chunkManager.pulse();
+        chunkManager.getPrefetcher().pulse();
+        tileEntityTicker.pulse();
+        if (++ticks % AUTOSAVE_INTERVAL == 0) {
+            chunkManager.saveDirtyChunks();
+            saveProperties();
+        }
+    }
+
+    /**
+     * Advances the total time of this world, and the time of day unless the
+     * daylight cycle is turned off.
+     */
+    private void advanceTime() {
+        if (properties instanceof LanternWorldProperties) {
+            LanternWorldProperties worldProperties = (LanternWorldProperties) properties;
+            worldProperties.setTotalTime(worldProperties.getTotalTime() + 1);
+        }
+        if (!"false".equals(properties.getGameRule(DAYLIGHT_CYCLE).orElse("true"))) {
+            properties.setWorldTime(properties.getWorldTime() + 1);
+        }
+    }
+
+    /**
+     * Writes the properties of this world, which hold its time, to its
+     * storage.
+     */
+    private void saveProperties() {
+        if (properties instanceof LanternWorldProperties) {
+            try {
+                storage.writeWorldProperties((LanternWorldProperties) properties);
+            } catch (IOException e) {
+                SpongeImpl.getLogger().error("Unable to save the properties of world " + getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Gets whether the calling thread is the one pulsing this world. Until
+     * the world is first pulsed, the thread setting it up is its owner.
+     * @return Whether the caller may touch the live state of the world
+     */
+    public boolean isWorldThread() {
+        Thread thread = this.thread;
+        return thread == null || thread == Thread.currentThread();
+    }
+
+    /**
+     * Adds a tile entity to be pulsed every tick while it is valid.
+     * @param tileEntity The tile entity.
+     */
+    void addTickingTileEntity(LanternTileEntity tileEntity) {
+        tileEntityTicker.add(tileEntity);
+    }
+
+    /**
+     * Stops loading and generating chunks, saves this world and closes its
+     * storage. Called by the world thread once it has stopped ticking.
+     */
+    public void shutdown() {
+        chunkManager.close();
+        try {
+            save();
+            storage.close();
+        } catch (IOException e) {
+            SpongeImpl.getLogger().error("Unable to save world " + getName(), e);
+        }
+    }
+
+    /**
+     * Saves the properties of this world and every chunk that has changed,
+     * and waits for the writes of the chunks to reach the region files.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void save() throws IOException {
+        chunkManager.saveAllChunks();
+        saveProperties();
+        try {
+            storage.getChunkIoService().flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving world " + getName(), e);
+        }
     }
 
     @Override
@@ -131,10 +313,7 @@ public class LanternWorld implements World {
             return Optional.empty();
         }
 
-        if(chunkManager.isChunkLoaded(x, z)) {
-            return Optional.of(chunkManager.getChunk(x, z));
-        }
-        return Optional.empty();
+        return Optional.ofNullable(chunkManager.getLoadedChunk(x, z));
     }
 
     @Override
@@ -147,17 +326,16 @@ public class LanternWorld implements World {
         if (!LanternChunkLayout.instance.isValidChunk(x, y, z)) {
             return Optional.empty();
         }
-        if(chunkManager.isChunkLoaded(x, z)) return Optional.of(chunkManager.getChunk(x, z));
+        LanternChunk chunk = chunkManager.getLoadedChunk(x, z);
+        if (chunk != null) return Optional.of(chunk);
 
         chunkManager.loadChunk(x, z, shouldGenerate);
-        if(chunkManager.isChunkLoaded(x, z)) return Optional.of(chunkManager.getChunk(x, z));
-
-        return Optional.empty();
+        return Optional.ofNullable(chunkManager.getLoadedChunk(x, z));
     }
 
     @Override
     public boolean unloadChunk(Chunk chunk) {
-        return false; //TODO: Implement
+        return chunk instanceof LanternChunk && chunk.getWorld() == this && chunkManager.unloadChunk((LanternChunk) chunk);
     }
 
     @Override
@@ -187,27 +365,27 @@ public class LanternWorld implements World {
 
     @Override
     public Dimension getDimension() {
-        return null; //TODO: Implement
+        return this.dimension;
     }
 
     @Override
     public WorldGenerator getWorldGenerator() {
-        return null; //TODO: Implement
+        return this.worldGenerator;
     }
 
     @Override
     public void setWorldGenerator(WorldGenerator generator) {
-        //TODO: Implement
+        this.worldGenerator = checkNotNull(generator, "generator");
     }
 
     @Override
     public boolean doesKeepSpawnLoaded() {
-        return false; //TODO: Implement
+        return getProperties().doesKeepSpawnLoaded();
     }
 
     @Override
     public void setKeepSpawnLoaded(boolean keepLoaded) {
-        //TODO: Implement
+        getProperties().setKeepSpawnLoaded(keepLoaded);
     }
 
     @Override
@@ -215,6 +393,14 @@ public class LanternWorld implements World {
         return this.storage;
     }
 
+    /**
+     * Gets the manager of the chunks of this world.
+     * @return The chunk manager
+     */
+    public ChunkManager getChunkManager() {
+        return this.chunkManager;
+    }
+
     @Override
     public Scoreboard getScoreboard() {
         return null; //TODO: Implement
@@ -0,0 +1,840 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.util.LongObjectHashMap;
+import org.spongepowered.lantern.util.LongQueue;
+import org.spongepowered.lantern.world.LanternChunk.ChunkSection;
+import org.spongepowered.lantern.world.storage.LanternChunkLayout;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import javax.annotation.Nullable;
+
+/**
+ * Computes the sky light and block light of the chunks of a world.
+ *
+ * <p>Blocks which change the light are queued during a tick and lit
+ * together when the engine is pulsed. Light spreads breadth-first through
+ * queues of positions packed into {@code long}s, first removing the light
+ * which depended on the changed blocks and then spreading it again from the
+ * remaining sources, so a step never allocates.</p>
+ *
+ * <p>The changes of a tick are grouped by chunk, and chunks which are far
+ * enough apart for their light not to meet are lit in parallel. Light only
+ * spreads into the chunks which have been handed to the engine. Once a
+ * chunk is loaded, the light along its borders is spread into and out of
+ * its loaded neighbours. The border blocks of an unloaded chunk which light
+ * changes reached are remembered and updated once it is loaded, so light
+ * removed in the meantime isn't spread back from its stale light. New chunks
+ * are lit on their own while they are generated.</p>
+ */
+public class LightEngine {
+
+    private static final int MAX_LEVEL = 15;
+    private static final int HEIGHT = 256;
+    /* the number of columns along the borders of a chunk */
+    private static final int EDGE_COLUMNS = 60;
+
+    /**
+     * The distance in chunks from a changed chunk within which light is
+     * updated in the same batch. Light spreads at most 15 blocks from a
+     * change, so it stays within the neighbouring chunks. Changes reaching
+     * further are deferred to the next batch.
+     */
+    private static final int REACH = 2;
+
+    // the directions: east, west, up, down, south and north
+    private static final int[] DX = {1, -1, 0, 0, 0, 0};
+    private static final int[] DY = {0, 0, 1, -1, 0, 0};
+    private static final int[] DZ = {0, 0, 0, 0, 1, -1};
+    private static final int UP = 2;
+    private static final int DOWN = 3;
+
+    private final boolean hasSky;
+
+    /**
+     * The pool lighting the regions of a batch which are far enough apart
+     * to be lit in parallel.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * The chunks light is spread through, keyed by
+     * {@link LanternChunkLayout#toKey(int, int)}. Only modified by the world
+     * thread between batches.
+     */
+    private final LongObjectHashMap<LanternChunk> chunks = new LongObjectHashMap<>();
+
+    /**
+     * The packed positions of the blocks which changed the light.
+     */
+    private final LongQueue changes = new LongQueue();
+
+    /**
+     * The keys of the chunks whose borders have to be lit.
+     */
+    private final LongQueue stitches = new LongQueue();
+
+    /**
+     * The border blocks of unloaded chunks which light changes reached,
+     * keyed by chunk, as bits of {@code edgeColumn * HEIGHT + y}, see
+     * {@link #edgeColumn(int, int)}. They are queued as changes once the
+     * chunk is loaded. Only modified by the world thread.
+     */
+    private final LongObjectHashMap<BitSet> unloadedBorders = new LongObjectHashMap<>();
+
+    private final ThreadLocal<Propagator> propagators = ThreadLocal.withInitial(() -> new Propagator());
+
+    /**
+     * The regions of the batch being lit, keyed by chunk.
+     */
+    @Nullable private LongObjectHashMap<Region> regions;
+
+    /**
+     * Creates a new light engine.
+     * @param worldName The name of the world, used to name the threads
+     * @param hasSky Whether the world has sky light
+     * @param threads The number of threads lighting regions in parallel,
+     *     0 or less to use one less than the number of processors
+     */
+    public LightEngine(String worldName, boolean hasSky, int threads) {
+        this.hasSky = hasSky;
+        if (threads <= 0) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+        this.pool = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Lantern-light-" + worldName + "-" + thread.getPoolIndex());
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * Stops the threads lighting regions in parallel.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Queues the light around a block to be updated. Must be called from the
+     * world thread.
+     * @param x The x coordinate of the block
+     * @param y The y coordinate of the block
+     * @param z The z coordinate of the block
+     */
+    public void queueChange(int x, int y, int z) {
+        changes.add(pack(x, y, z, 0));
+    }
+
+    /**
+     * Adds a loaded chunk to the chunks light spreads through, and queues
+     * its borders to be lit. Must be called from the world thread.
+     * @param chunk The chunk
+     */
+    void onChunkLoaded(LanternChunk chunk) {
+        long key = LanternChunkLayout.toKey(chunk.getPosition().getX(), chunk.getPosition().getZ());
+        chunks.put(key, chunk);
+        stitches.add(key);
+
+        BitSet border = unloadedBorders.remove(key);
+        if (border != null) {
+            int baseX = chunk.getPosition().getX() << 4;
+            int baseZ = chunk.getPosition().getZ() << 4;
+            for (int bit = border.nextSetBit(0); bit >= 0; bit = border.nextSetBit(bit + 1)) {
+                int column = edgeColumnIndex(bit / HEIGHT);
+                changes.add(pack(baseX + (column & 0xf), bit % HEIGHT, baseZ + (column >> 4), 0));
+            }
+        }
+    }
+
+    /**
+     * Removes a chunk which is being unloaded. Must be called from the world
+     * thread.
+     * @param chunk The chunk
+     */
+    void onChunkUnloaded(LanternChunk chunk) {
+        long key = LanternChunkLayout.toKey(chunk.getPosition().getX(), chunk.getPosition().getZ());
+        if (chunks.get(key) == chunk) {
+            chunks.remove(key);
+        }
+    }
+
+    /**
+     * Lights a chunk which is not yet part of the world, from its own blocks
+     * only. Its borders are lit once it is loaded. May be called from any
+     * thread.
+     * @param chunk The chunk
+     */
+    public void lightChunk(LanternChunk chunk) {
+        propagators.get().light(chunk);
+    }
+
+    /**
+     * Gets the number of blocks queued to be lit.
+     * @return The number of changes
+     */
+    public int getPendingCount() {
+        return changes.size();
+    }
+
+    /**
+     * Lights the changes queued since the last pulse. Called by the world
+     * thread.
+     */
+    public void pulse() {
+        if (changes.isEmpty() && stitches.isEmpty()) {
+            return;
+        }
+        LongObjectHashMap<Region> regions = new LongObjectHashMap<>();
+        List<Region> list = new ArrayList<>();
+        while (!stitches.isEmpty()) {
+            Region region = getRegion(regions, list, stitches.poll());
+            if (region != null) {
+                region.stitch = true;
+            }
+        }
+        while (!changes.isEmpty()) {
+            long change = changes.poll();
+            Region region = getRegion(regions, list, LanternChunkLayout.toKey(unpackX(change) >> 4, unpackZ(change) >> 4));
+            if (region != null) {
+                region.changes.add(change);
+            }
+        }
+        if (list.isEmpty()) {
+            return;
+        }
+
+        // regions close enough for their light to meet are lit together
+        int distance = 2 * REACH;
+        for (Region region : list) {
+            for (int dx = -distance; dx <= distance; dx++) {
+                for (int dz = -distance; dz <= distance; dz++) {
+                    Region other = regions.get(LanternChunkLayout.toKey(region.chunkX + dx, region.chunkZ + dz));
+                    if (other != null) {
+                        region.union(other);
+                    }
+                }
+            }
+        }
+        List<Region> components = new ArrayList<>();
+        for (Region region : list) {
+            Region root = region.find();
+            if (root.members == null) {
+                root.members = new ArrayList<>();
+                components.add(root);
+            }
+            root.members.add(region);
+            region.component = root;
+        }
+
+        this.regions = regions;
+        try {
+            if (components.size() == 1) {
+                propagators.get().run(components.get(0));
+            } else {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(components.size());
+                for (Region component : components) {
+                    tasks.add(pool.submit(() -> propagators.get().run(component)));
+                }
+                // every region has to be done before the batch is cleared
+                RuntimeException error = null;
+                for (ForkJoinTask<?> task : tasks) {
+                    try {
+                        task.join();
+                    } catch (RuntimeException e) {
+                        error = e;
+                    }
+                }
+                if (error != null) {
+                    throw error;
+                }
+            }
+        } catch (RuntimeException e) {
+            SpongeImpl.getLogger().error("Error while updating light", e);
+        } finally {
+            this.regions = null;
+        }
+
+        for (Region component : components) {
+            if (component.deferred != null) {
+                while (!component.deferred.isEmpty()) {
+                    changes.add(component.deferred.poll());
+                }
+            }
+            if (component.unloaded != null) {
+                while (!component.unloaded.isEmpty()) {
+                    long block = component.unloaded.poll();
+                    int x = unpackX(block);
+                    int z = unpackZ(block);
+                    long key = LanternChunkLayout.toKey(x >> 4, z >> 4);
+                    BitSet border = unloadedBorders.get(key);
+                    if (border == null) {
+                        border = new BitSet(EDGE_COLUMNS * HEIGHT);
+                        unloadedBorders.put(key, border);
+                    }
+                    border.set(edgeColumn(x & 0xf, z & 0xf) * HEIGHT + unpackY(block));
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private Region getRegion(LongObjectHashMap<Region> regions, List<Region> list, long key) {
+        Region region = regions.get(key);
+        if (region == null) {
+            LanternChunk chunk = chunks.get(key);
+            if (chunk == null || !chunk.isLoaded()) {
+                return null;
+            }
+            region = new Region(chunk);
+            regions.put(key, region);
+            list.add(region);
+        }
+        return region;
+    }
+
+    /**
+     * Numbers the columns along the borders of a chunk.
+     * @param x The x coordinate of the column within the chunk
+     * @param z The z coordinate of the column within the chunk, either
+     *     coordinate is 0 or 15
+     * @return The number of the column, below {@link #EDGE_COLUMNS}
+     */
+    private static int edgeColumn(int x, int z) {
+        if (z == 0) {
+            return x;
+        } else if (z == 15) {
+            return 16 + x;
+        } else if (x == 0) {
+            return 31 + z;
+        }
+        return 45 + z;
+    }
+
+    /**
+     * Gets the column of a chunk numbered by {@link #edgeColumn(int, int)}.
+     * @return The index of the column, {@code z << 4 | x}
+     */
+    private static int edgeColumnIndex(int edgeColumn) {
+        if (edgeColumn < 16) {
+            return edgeColumn;
+        } else if (edgeColumn < 32) {
+            return 15 << 4 | (edgeColumn - 16);
+        } else if (edgeColumn < 46) {
+            return (edgeColumn - 31) << 4;
+        }
+        return (edgeColumn - 45) << 4 | 15;
+    }
+
+    private static long pack(int x, int y, int z, int level) {
+        return ((long) x & 0x3ffffff) << 38 | ((long) z & 0x3ffffff) << 12 | (long) y << 4 | level;
+    }
+
+    private static int unpackX(long entry) {
+        return (int) (entry >> 38);
+    }
+
+    private static int unpackZ(long entry) {
+        return (int) (entry << 26 >> 38);
+    }
+
+    private static int unpackY(long entry) {
+        return (int) (entry >>> 4) & 0xff;
+    }
+
+    private static int unpackLevel(long entry) {
+        return (int) entry & 0xf;
+    }
+
+    /**
+     * Gets the height up to which a chunk has sections.
+     */
+    private static int getTop(LanternChunk chunk) {
+        ChunkSection[] sections = chunk.getRawSections();
+        for (int i = sections.length - 1; i >= 0; i--) {
+            if (sections[i] != null) {
+                return (i + 1) << 4;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The changes within a chunk, and the group of regions it is lit with.
+     */
+    private static final class Region {
+
+        final LanternChunk chunk;
+        final int chunkX;
+        final int chunkZ;
+        final LongQueue changes = new LongQueue(16);
+        boolean stitch;
+
+        private Region parent = this;
+        @Nullable Region component;
+
+        // only used on the root of a component
+        @Nullable List<Region> members;
+        @Nullable LongQueue deferred;
+        @Nullable LongQueue unloaded; // the blocks of unloaded chunks light couldn't spread into
+
+        Region(LanternChunk chunk) {
+            this.chunk = chunk;
+            this.chunkX = chunk.getPosition().getX();
+            this.chunkZ = chunk.getPosition().getZ();
+        }
+
+        Region find() {
+            Region region = this;
+            while (region.parent != region) {
+                region.parent = region.parent.parent;
+                region = region.parent;
+            }
+            return region;
+        }
+
+        void union(Region other) {
+            Region root = find();
+            Region otherRoot = other.find();
+            if (root != otherRoot) {
+                otherRoot.parent = root;
+            }
+        }
+    }
+
+    /**
+     * Spreads light through the chunks of a component, or through a single
+     * chunk which is not yet part of the world. Each thread reuses its own.
+     */
+    private final class Propagator {
+
+        private final LongQueue decrease = new LongQueue(1024);
+        private final LongQueue increase = new LongQueue(1024);
+
+        @Nullable private Region component;
+        @Nullable private LanternChunk confined;
+
+        // the chunk last looked up
+        private boolean cached;
+        private int cachedX;
+        private int cachedZ;
+        @Nullable private LanternChunk cachedChunk;
+        private boolean blocked;
+
+        void run(Region component) {
+            this.component = component;
+            try {
+                update(component, false);
+                if (hasSky) {
+                    update(component, true);
+                }
+            } finally {
+                reset();
+            }
+        }
+
+        void light(LanternChunk chunk) {
+            this.confined = chunk;
+            try {
+                lightBlocks(chunk);
+                if (hasSky) {
+                    lightSky(chunk);
+                }
+            } finally {
+                reset();
+            }
+        }
+
+        private void reset() {
+            component = null;
+            confined = null;
+            cached = false;
+            cachedChunk = null;
+            decrease.clear();
+            increase.clear();
+        }
+
+        private void update(Region component, boolean sky) {
+            List<Region> members = component.members;
+            for (Region region : members) {
+                for (int i = 0; i < region.changes.size(); i++) {
+                    remove(region.changes.get(i), sky);
+                }
+            }
+            spreadDecrease(sky);
+            for (Region region : members) {
+                for (int i = 0; i < region.changes.size(); i++) {
+                    pull(region.changes.get(i), sky);
+                }
+                if (region.stitch) {
+                    stitch(region.chunk, sky);
+                }
+            }
+            spreadIncrease(sky);
+        }
+
+        /**
+         * Removes the light of a changed block, leaving its emission.
+         */
+        private void remove(long change, boolean sky) {
+            int x = unpackX(change);
+            int y = unpackY(change);
+            int z = unpackZ(change);
+            LanternChunk chunk = getChunk(x, z);
+            if (chunk == null) {
+                return;
+            }
+            int level = getLight(chunk, x, y, z, sky);
+            if (level == 0) {
+                return;
+            }
+            int emission = sky ? 0 : LightProperties.getEmission(getType(chunk, x, y, z));
+            setLight(chunk, x, y, z, emission, sky);
+            decrease.add(pack(x, y, z, level));
+            if (emission > 0) {
+                increase.add(pack(x, y, z, emission));
+            }
+        }
+
+        /**
+         * Lights a changed block from its neighbours and its emission.
+         */
+        private void pull(long change, boolean sky) {
+            int x = unpackX(change);
+            int y = unpackY(change);
+            int z = unpackZ(change);
+            LanternChunk chunk = getChunk(x, z);
+            if (chunk == null) {
+                return;
+            }
+            char type = getType(chunk, x, y, z);
+            int opacity = LightProperties.getOpacity(type);
+            int best = sky ? 0 : LightProperties.getEmission(type);
+            for (int d = 0; d < 6; d++) {
+                int ny = y + DY[d];
+                int level;
+                if (ny >= HEIGHT) {
+                    level = sky ? MAX_LEVEL : 0;
+                } else if (ny < 0) {
+                    continue;
+                } else {
+                    LanternChunk neighbour = getChunk(x + DX[d], z + DZ[d]);
+                    if (neighbour == null) {
+                        continue;
+                    }
+                    level = getLight(neighbour, x + DX[d], ny, z + DZ[d], sky);
+                }
+                best = Math.max(best, spread(level, opacity, sky && d == UP));
+            }
+            // the neighbours may have moved the chunk cache
+            chunk = getChunk(x, z);
+            if (chunk != null && best > getLight(chunk, x, y, z, sky)) {
+                setLight(chunk, x, y, z, best, sky);
+                increase.add(pack(x, y, z, best));
+            }
+        }
+
+        /**
+         * Queues the light on both sides of the borders between a chunk and
+         * its neighbours where it differs by more than it decays.
+         */
+        private void stitch(LanternChunk chunk, boolean sky) {
+            int baseX = chunk.getPosition().getX() << 4;
+            int baseZ = chunk.getPosition().getZ() << 4;
+            int top = getTop(chunk);
+            for (int d = 0; d < 6; d++) {
+                if (DY[d] != 0) {
+                    continue;
+                }
+                // the first block of the border inside the chunk, and the step along it
+                int x = DX[d] > 0 ? baseX + 15 : baseX;
+                int z = DZ[d] > 0 ? baseZ + 15 : baseZ;
+                int stepX = DX[d] == 0 ? 1 : 0;
+                int stepZ = DZ[d] == 0 ? 1 : 0;
+                LanternChunk neighbour = getChunk(x + DX[d], z + DZ[d]);
+                if (neighbour == null) {
+                    continue;
+                }
+                int height = Math.max(top, getTop(neighbour));
+                for (int y = 0; y < height; y++) {
+                    for (int i = 0; i < 16; i++) {
+                        int ix = x + stepX * i;
+                        int iz = z + stepZ * i;
+                        int inside = getLight(chunk, ix, y, iz, sky);
+                        int outside = getLight(neighbour, ix + DX[d], y, iz + DZ[d], sky);
+                        if (inside > outside + 1) {
+                            increase.add(pack(ix, y, iz, inside));
+                        } else if (outside > inside + 1) {
+                            increase.add(pack(ix + DX[d], y, iz + DZ[d], outside));
+                        }
+                    }
+                }
+            }
+        }
+
+        private void spreadDecrease(boolean sky) {
+            while (!decrease.isEmpty()) {
+                long entry = decrease.poll();
+                int x = unpackX(entry);
+                int y = unpackY(entry);
+                int z = unpackZ(entry);
+                int level = unpackLevel(entry);
+                for (int d = 0; d < 6; d++) {
+                    int nx = x + DX[d];
+                    int ny = y + DY[d];
+                    int nz = z + DZ[d];
+                    if (ny < 0 || ny >= HEIGHT) {
+                        continue;
+                    }
+                    LanternChunk chunk = getChunk(nx, nz);
+                    if (chunk == null) {
+                        defer(nx, ny, nz);
+                        continue;
+                    }
+                    int neighbour = getLight(chunk, nx, ny, nz, sky);
+                    if (neighbour == 0) {
+                        continue;
+                    }
+                    // full sky light falls straight down, so the column below depends on it
+                    if (neighbour < level || sky && d == DOWN && level == MAX_LEVEL && neighbour == MAX_LEVEL) {
+                        int emission = sky ? 0 : LightProperties.getEmission(getType(chunk, nx, ny, nz));
+                        setLight(chunk, nx, ny, nz, emission, sky);
+                        decrease.add(pack(nx, ny, nz, neighbour));
+                        if (emission > 0) {
+                            increase.add(pack(nx, ny, nz, emission));
+                        }
+                    } else {
+                        // lit by another source, which lights the removed blocks again
+                        increase.add(pack(nx, ny, nz, neighbour));
+                    }
+                }
+            }
+        }
+
+        private void spreadIncrease(boolean sky) {
+            while (!increase.isEmpty()) {
+                long entry = increase.poll();
+                int x = unpackX(entry);
+                int y = unpackY(entry);
+                int z = unpackZ(entry);
+                int level = unpackLevel(entry);
+                LanternChunk source = getChunk(x, z);
+                if (source == null || getLight(source, x, y, z, sky) != level) {
+                    // changed since it was queued
+                    continue;
+                }
+                for (int d = 0; d < 6; d++) {
+                    int nx = x + DX[d];
+                    int ny = y + DY[d];
+                    int nz = z + DZ[d];
+                    if (ny < 0 || ny >= HEIGHT) {
+                        continue;
+                    }
+                    LanternChunk chunk = getChunk(nx, nz);
+                    if (chunk == null) {
+                        defer(nx, ny, nz);
+                        continue;
+                    }
+                    int spread = spread(level, LightProperties.getOpacity(getType(chunk, nx, ny, nz)), sky && d == DOWN);
+                    if (spread > getLight(chunk, nx, ny, nz, sky)) {
+                        setLight(chunk, nx, ny, nz, spread, sky);
+                        if (spread > 1) {
+                            increase.add(pack(nx, ny, nz, spread));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Lights the emitting blocks of a new chunk and spreads their light
+         * within it.
+         */
+        private void lightBlocks(LanternChunk chunk) {
+            int baseX = chunk.getPosition().getX() << 4;
+            int baseZ = chunk.getPosition().getZ() << 4;
+            ChunkSection[] sections = chunk.getRawSections();
+            for (int i = 0; i < sections.length; i++) {
+                ChunkSection section = sections[i];
+                if (section == null) {
+                    continue;
+                }
+                for (int index = 0; index < 4096; index++) {
+                    int emission = LightProperties.getEmission(section.getType(index));
+                    if (emission > 0) {
+                        section.setBlockLight(index, (byte) emission);
+                        increase.add(pack(baseX + (index & 0xf), (i << 4) | (index >> 8), baseZ + ((index >> 4) & 0xf), emission));
+                    }
+                }
+            }
+            spreadIncrease(false);
+        }
+
+        /**
+         * Lets the sky light of a new chunk fall down its columns and spreads
+         * it sideways within the chunk.
+         */
+        private void lightSky(LanternChunk chunk) {
+            int baseX = chunk.getPosition().getX() << 4;
+            int baseZ = chunk.getPosition().getZ() << 4;
+            int top = getTop(chunk);
+            // the height below which each column no longer has full sky light
+            int[] sunlit = new int[256];
+            for (int column = 0; column < 256; column++) {
+                int x = baseX + (column & 0xf);
+                int z = baseZ + (column >> 4);
+                int level = MAX_LEVEL;
+                sunlit[column] = top;
+                for (int y = top - 1; y >= 0; y--) {
+                    level = Math.max(0, spread(level, LightProperties.getOpacity(getType(chunk, x, y, z)), true));
+                    if (level == MAX_LEVEL) {
+                        sunlit[column] = y;
+                    }
+                    setLight(chunk, x, y, z, level, true);
+                }
+            }
+            // spread the light sideways where a neighbouring column is darker
+            for (int column = 0; column < 256; column++) {
+                int cx = column & 0xf;
+                int cz = column >> 4;
+                int height = sunlit[column];
+                if (cx > 0) {
+                    height = Math.max(height, sunlit[column - 1]);
+                }
+                if (cx < 15) {
+                    height = Math.max(height, sunlit[column + 1]);
+                }
+                if (cz > 0) {
+                    height = Math.max(height, sunlit[column - 16]);
+                }
+                if (cz < 15) {
+                    height = Math.max(height, sunlit[column + 16]);
+                }
+                int x = baseX + cx;
+                int z = baseZ + cz;
+                for (int y = 0; y < height; y++) {
+                    int level = getLight(chunk, x, y, z, true);
+                    if (level > 1) {
+                        increase.add(pack(x, y, z, level));
+                    }
+                }
+            }
+            spreadIncrease(true);
+        }
+
+        /**
+         * Gets the chunk of a block if light may spread into it.
+         */
+        @Nullable
+        private LanternChunk getChunk(int x, int z) {
+            int chunkX = x >> 4;
+            int chunkZ = z >> 4;
+            if (!cached || chunkX != cachedX || chunkZ != cachedZ) {
+                cached = true;
+                cachedX = chunkX;
+                cachedZ = chunkZ;
+                blocked = false;
+                if (confined != null) {
+                    cachedChunk = chunkX == confined.getPosition().getX() && chunkZ == confined.getPosition().getZ() ? confined : null;
+                } else {
+                    cachedChunk = chunks.get(LanternChunkLayout.toKey(chunkX, chunkZ));
+                    if (cachedChunk != null && !isWithinReach(chunkX, chunkZ)) {
+                        // another component may be lighting it
+                        cachedChunk = null;
+                        blocked = true;
+                    }
+                }
+            }
+            return cachedChunk;
+        }
+
+        private boolean isWithinReach(int chunkX, int chunkZ) {
+            for (int dx = -REACH; dx <= REACH; dx++) {
+                for (int dz = -REACH; dz <= REACH; dz++) {
+                    Region region = regions.get(LanternChunkLayout.toKey(chunkX + dx, chunkZ + dz));
+                    if (region != null && region.component == component) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Queues a block light couldn't spread into in this batch to be
+         * updated in the next one, or once its chunk is loaded.
+         */
+        private void defer(int x, int y, int z) {
+            if (blocked) {
+                if (component.deferred == null) {
+                    component.deferred = new LongQueue();
+                }
+                component.deferred.add(pack(x, y, z, 0));
+            } else if (confined == null) {
+                if (component.unloaded == null) {
+                    component.unloaded = new LongQueue();
+                }
+                component.unloaded.add(pack(x, y, z, 0));
+            }
+        }
+    }
+
+    /**
+     * Gets the light a block receives from a neighbour.
+     * @param level The light of the neighbour
+     * @param opacity The opacity of the block
+     * @param down Whether sky light falls down from the neighbour
+     */
+    private static int spread(int level, int opacity, boolean down) {
+        if (down && level == MAX_LEVEL && opacity == 0) {
+            return MAX_LEVEL;
+        }
+        return level - Math.max(1, opacity);
+    }
+
+    private static char getType(LanternChunk chunk, int x, int y, int z) {
+        return chunk.getType(x & 0xf, y, z & 0xf);
+    }
+
+    private static int getLight(LanternChunk chunk, int x, int y, int z, boolean sky) {
+        return sky ? chunk.getSkyLight(x & 0xf, y, z & 0xf) : chunk.getBlockLight(x & 0xf, y, z & 0xf);
+    }
+
+    private static void setLight(LanternChunk chunk, int x, int y, int z, int level, boolean sky) {
+        if (sky) {
+            chunk.setSkyLight(x & 0xf, y, z & 0xf, (byte) level);
+        } else {
+            chunk.setBlockLight(x & 0xf, y, z & 0xf, (byte) level);
+        }
+    }
+}
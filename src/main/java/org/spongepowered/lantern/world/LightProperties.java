@@ -0,0 +1,117 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+/**
+ * The light properties of the block types, indexed by their numeric id.
+ * Opacity is the amount a block reduces the light passing through it by,
+ * emission is the light level a block gives off.
+ *
+ * <p>Block types aren't registered yet, so the vanilla values are kept here.
+ * Unknown ids are treated as opaque blocks which don't emit light.</p>
+ */
+final class LightProperties {
+
+    private static final int TYPES = 4096;
+
+    private static final byte[] OPACITY = new byte[TYPES];
+    private static final byte[] EMISSION = new byte[TYPES];
+
+    static {
+        for (int id = 1; id < TYPES; id++) {
+            OPACITY[id] = 15;
+        }
+
+        // blocks which let light through
+        int[] transparent = {
+                6, 20, 26, 27, 28, 31, 32, 34, 36, 37, 38, 39, 40, 50, 51, 52, 54, 55, 59, 63, 64, 65, 66, 68, 69, 70, 71, 72, 75,
+                76, 77, 78, 81, 83, 85, 90, 92, 93, 94, 95, 96, 101, 102, 104, 105, 106, 107, 111, 113, 115, 116, 117, 118, 119,
+                120, 122, 127, 130, 131, 132, 138, 139, 140, 141, 142, 143, 144, 145, 146, 147, 148, 149, 150, 151, 154, 157, 160,
+                165, 166, 167, 171, 175, 176, 177, 178, 183, 184, 185, 186, 187, 188, 189, 190, 191, 192, 193, 194, 195, 196, 197
+        };
+        for (int id : transparent) {
+            OPACITY[id] = 0;
+        }
+        OPACITY[8] = 3; // flowing water
+        OPACITY[9] = 3; // water
+        OPACITY[18] = 1; // leaves
+        OPACITY[30] = 1; // web
+        OPACITY[79] = 3; // ice
+        OPACITY[161] = 1; // leaves
+
+        EMISSION[10] = 15; // flowing lava
+        EMISSION[11] = 15; // lava
+        EMISSION[39] = 1; // brown mushroom
+        EMISSION[50] = 14; // torch
+        EMISSION[51] = 15; // fire
+        EMISSION[62] = 13; // lit furnace
+        EMISSION[74] = 9; // lit redstone ore
+        EMISSION[76] = 7; // redstone torch
+        EMISSION[89] = 15; // glowstone
+        EMISSION[90] = 11; // portal
+        EMISSION[91] = 15; // jack o'lantern
+        EMISSION[94] = 9; // powered repeater
+        EMISSION[117] = 1; // brewing stand
+        EMISSION[119] = 15; // end portal
+        EMISSION[120] = 1; // end portal frame
+        EMISSION[122] = 1; // dragon egg
+        EMISSION[124] = 15; // lit redstone lamp
+        EMISSION[130] = 7; // ender chest
+        EMISSION[138] = 15; // beacon
+        EMISSION[150] = 9; // powered comparator
+        EMISSION[169] = 15; // sea lantern
+    }
+
+    private LightProperties() {
+    }
+
+    /**
+     * Gets the opacity of a block.
+     * @param type The type and data of the block, as {@code type << 4 | data}
+     * @return The opacity, from 0 to 15
+     */
+    static int getOpacity(char type) {
+        return OPACITY[type >> 4];
+    }
+
+    /**
+     * Gets the light a block emits.
+     * @param type The type and data of the block, as {@code type << 4 | data}
+     * @return The light level, from 0 to 15
+     */
+    static int getEmission(char type) {
+        return EMISSION[type >> 4];
+    }
+
+    /**
+     * Gets whether replacing a block changes the light around it.
+     * @param previous The previous type and data of the block
+     * @param type The new type and data of the block
+     * @return Whether the light has to be updated
+     */
+    static boolean affectsLight(char previous, char type) {
+        return OPACITY[previous >> 4] != OPACITY[type >> 4] || EMISSION[previous >> 4] != EMISSION[type >> 4];
+    }
+}
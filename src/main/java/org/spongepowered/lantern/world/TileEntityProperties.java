@@ -0,0 +1,138 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+import org.spongepowered.api.block.tileentity.TileEntityType;
+import org.spongepowered.api.block.tileentity.TileEntityTypes;
+
+import javax.annotation.Nullable;
+
+/**
+ * The block types which have a tile entity, indexed by their numeric id.
+ *
+ * <p>Block types aren't registered yet, so the vanilla ids are kept here.</p>
+ */
+final class TileEntityProperties {
+
+    private static final int TYPES = 4096;
+
+    /**
+     * The ids the tile entities of the blocks are stored with, or null for
+     * blocks without a tile entity.
+     */
+    private static final String[] TILE_ENTITY = new String[TYPES];
+
+    static {
+        TILE_ENTITY[23] = "Trap"; // dispenser
+        TILE_ENTITY[25] = "Music"; // note block
+        TILE_ENTITY[36] = "Piston"; // moving piston
+        TILE_ENTITY[52] = "MobSpawner"; // mob spawner
+        TILE_ENTITY[54] = "Chest"; // chest
+        TILE_ENTITY[61] = "Furnace"; // furnace
+        TILE_ENTITY[62] = "Furnace"; // lit furnace
+        TILE_ENTITY[63] = "Sign"; // standing sign
+        TILE_ENTITY[68] = "Sign"; // wall sign
+        TILE_ENTITY[84] = "RecordPlayer"; // jukebox
+        TILE_ENTITY[116] = "EnchantTable"; // enchanting table
+        TILE_ENTITY[117] = "Cauldron"; // brewing stand
+        TILE_ENTITY[119] = "Airportal"; // end portal
+        TILE_ENTITY[130] = "EnderChest"; // ender chest
+        TILE_ENTITY[137] = "Control"; // command block
+        TILE_ENTITY[138] = "Beacon"; // beacon
+        TILE_ENTITY[140] = "FlowerPot"; // flower pot
+        TILE_ENTITY[144] = "Skull"; // skull
+        TILE_ENTITY[146] = "Chest"; // trapped chest
+        TILE_ENTITY[149] = "Comparator"; // comparator
+        TILE_ENTITY[150] = "Comparator"; // powered comparator
+        TILE_ENTITY[151] = "DLDetector"; // daylight detector
+        TILE_ENTITY[154] = "Hopper"; // hopper
+        TILE_ENTITY[158] = "Dropper"; // dropper
+        TILE_ENTITY[176] = "Banner"; // standing banner
+        TILE_ENTITY[177] = "Banner"; // wall banner
+        TILE_ENTITY[178] = "DLDetector"; // inverted daylight detector
+    }
+
+    private TileEntityProperties() {
+    }
+
+    /**
+     * Gets whether a block has a tile entity.
+     * @param type The type and data of the block, as {@code type << 4 | data}
+     * @return Whether the block has a tile entity
+     */
+    static boolean hasTileEntity(int type) {
+        return TILE_ENTITY[type >> 4] != null;
+    }
+
+    /**
+     * Gets the id the tile entity of a block is stored with.
+     * @param type The type and data of the block, as {@code type << 4 | data}
+     * @return The id, or null if the block has no tile entity
+     */
+    @Nullable
+    static String getTileEntityId(int type) {
+        return TILE_ENTITY[type >> 4];
+    }
+
+    /**
+     * Gets the type of the tile entity of a block. The types are looked up
+     * on every call, as they are only set once they are registered.
+     * @param type The type and data of the block, as {@code type << 4 | data}
+     * @return The tile entity type, or null if the block has no tile entity
+     */
+    @Nullable
+    static TileEntityType getTileEntityType(int type) {
+        switch (type >> 4) {
+            case 23: return TileEntityTypes.DISPENSER;
+            case 25: return TileEntityTypes.NOTE;
+            case 36: return TileEntityTypes.PISTON;
+            case 52: return TileEntityTypes.MOB_SPAWNER;
+            case 54:
+            case 146: return TileEntityTypes.CHEST;
+            case 61:
+            case 62: return TileEntityTypes.FURNACE;
+            case 63:
+            case 68: return TileEntityTypes.SIGN;
+            case 84: return TileEntityTypes.JUKEBOX;
+            case 116: return TileEntityTypes.ENCHANTMENT_TABLE;
+            case 117: return TileEntityTypes.BREWING_STAND;
+            case 119: return TileEntityTypes.END_PORTAL;
+            case 130: return TileEntityTypes.ENDER_CHEST;
+            case 137: return TileEntityTypes.COMMAND_BLOCK;
+            case 138: return TileEntityTypes.BEACON;
+            case 140: return TileEntityTypes.FLOWER_POT;
+            case 144: return TileEntityTypes.SKULL;
+            case 149:
+            case 150: return TileEntityTypes.COMPARATOR;
+            case 151:
+            case 178: return TileEntityTypes.DAYLIGHT_DETECTOR;
+            case 154: return TileEntityTypes.HOPPER;
+            case 158: return TileEntityTypes.DROPPER;
+            case 176:
+            case 177: return TileEntityTypes.BANNER;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.block.tileentity.LanternTileEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tickable tile entities of the loaded chunks of a world, which are
+ * only removed from the list once they are no longer valid. Only used by the
+ * world thread.
+ */
+final class TileEntityTicker {
+
+    private final List<LanternTileEntity> ticking = new ArrayList<>();
+
+    /**
+     * Adds a tile entity to be pulsed every tick while it is valid.
+     * @param tileEntity The tile entity
+     */
+    void add(LanternTileEntity tileEntity) {
+        ticking.add(tileEntity);
+    }
+
+    /**
+     * Pulses the ticking tile entities, dropping those which were
+     * invalidated since the last tick. Tile entities added while pulsing
+     * are pulsed in the same tick.
+     */
+    void pulse() {
+        List<LanternTileEntity> ticking = this.ticking;
+        int kept = 0;
+        for (int i = 0; i < ticking.size(); i++) {
+            LanternTileEntity tileEntity = ticking.get(i);
+            if (!tileEntity.isValid()) {
+                continue;
+            }
+            try {
+                tileEntity.pulse();
+            } catch (Exception e) {
+                SpongeImpl.getLogger().error("Error while pulsing tile entity " + tileEntity, e);
+            }
+            if (tileEntity.isValid()) {
+                ticking.set(kept++, tileEntity);
+            }
+        }
+        ticking.subList(kept, ticking.size()).clear();
+    }
+
+    /**
+     * Gets the number of tile entities in the list, including those which
+     * were invalidated since the last tick.
+     * @return The number of tile entities
+     */
+    int size() {
+        return ticking.size();
+    }
+}
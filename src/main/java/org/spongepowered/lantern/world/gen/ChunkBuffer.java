@@ -0,0 +1,140 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.gen;
+
+import org.spongepowered.lantern.util.NibbleArray;
+import org.spongepowered.lantern.world.LanternChunk.ChunkSection;
+
+/**
+ * The blocks and biomes of a chunk while its terrain is generated. Blocks
+ * are {@code type << 4 | data} values, and sections are only allocated once
+ * a non-air block is placed in them.
+ *
+ * <p>A buffer is owned by the thread generating its chunk.</p>
+ */
+public final class ChunkBuffer {
+
+    public static final int WIDTH = 16;
+    public static final int HEIGHT = 256;
+    private static final int SECTION_SIZE = 16 * 16 * 16;
+
+    private final char[][] sections = new char[HEIGHT >> 4][];
+    private final byte[] biomes = new byte[WIDTH * WIDTH];
+
+    /**
+     * Gets the type of a block.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     * @return The type and data of the block
+     */
+    public char getType(int x, int y, int z) {
+        char[] section = sections[y >> 4];
+        return section == null ? 0 : section[index(x, y, z)];
+    }
+
+    /**
+     * Sets the type of a block.
+     * @param x The x coordinate within the chunk
+     * @param y The y coordinate
+     * @param z The z coordinate within the chunk
+     * @param type The type and data of the block
+     */
+    public void setType(int x, int y, int z, char type) {
+        char[] section = sections[y >> 4];
+        if (section == null) {
+            if (type == 0) {
+                return;
+            }
+            section = sections[y >> 4] = new char[SECTION_SIZE];
+        }
+        section[index(x, y, z)] = type;
+    }
+
+    /**
+     * Fills whole layers of the chunk with a block.
+     * @param minY The lowest layer to fill
+     * @param maxY The layer above the highest layer to fill
+     * @param type The type and data of the block
+     */
+    public void fillLayers(int minY, int maxY, char type) {
+        for (int y = minY; y < maxY; y++) {
+            char[] section = sections[y >> 4];
+            if (section == null) {
+                if (type == 0) {
+                    continue;
+                }
+                section = sections[y >> 4] = new char[SECTION_SIZE];
+            }
+            int start = (y & 0xf) << 8;
+            for (int i = start; i < start + WIDTH * WIDTH; i++) {
+                section[i] = type;
+            }
+        }
+    }
+
+    /**
+     * Sets the biome of a column.
+     * @param x The x coordinate within the chunk
+     * @param z The z coordinate within the chunk
+     * @param biome The id of the biome
+     */
+    public void setBiome(int x, int z, byte biome) {
+        biomes[z * WIDTH + x] = biome;
+    }
+
+    /**
+     * Gets the biomes of the chunk.
+     * @return The biome ids, indexed by {@code z * 16 + x}
+     */
+    public byte[] getBiomes() {
+        return biomes;
+    }
+
+    /**
+     * Creates the sections of the chunk from the placed blocks, with the
+     * given sky light and no block light until the chunk is lit.
+     * @param skyLight The sky light of the blocks, full in worlds with sky
+     *     and none otherwise
+     * @return The sections, null where no block was placed
+     */
+    public ChunkSection[] toSections(byte skyLight) {
+        ChunkSection[] result = new ChunkSection[sections.length];
+        for (int i = 0; i < sections.length; i++) {
+            if (sections[i] != null) {
+                result[i] = new ChunkSection(sections[i], NibbleArray.shared(SECTION_SIZE, skyLight),
+                        NibbleArray.shared(SECTION_SIZE, (byte) 0));
+            }
+        }
+        return result;
+    }
+
+    private static int index(int x, int y, int z) {
+        if (x < 0 || z < 0 || x >= WIDTH || z >= WIDTH || y < 0 || y >= HEIGHT) {
+            throw new IndexOutOfBoundsException("Coords (x=" + x + ",y=" + y + ",z=" + z + ") out of chunk bounds");
+        }
+        return ((y & 0xf) << 8) | (z << 4) | x;
+    }
+}
@@ -0,0 +1,671 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import com.flowpowered.math.vector.Vector3i;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.api.data.DataView;
+import org.spongepowered.api.data.MemoryDataContainer;
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.io.ChunkIoService;
+import org.spongepowered.lantern.util.LongObjectHashMap;
+import org.spongepowered.lantern.util.nbt.NbtBufferReader;
+import org.spongepowered.lantern.util.nbt.NbtLazyCompound;
+import org.spongepowered.lantern.util.nbt.NbtDataOutputStream;
+import org.spongepowered.lantern.world.LanternChunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A write-behind {@link ChunkIoService} for the Anvil region format.
+ *
+ * <p>Writes take a snapshot of the chunk on the calling (world) thread and
+ * hand it to a small pool of background threads, which serialize, compress
+ * and write it to its {@link RegionFile}. Saving a chunk which is still
+ * waiting to be written replaces the queued snapshot rather than queueing a
+ * second write, and writes of the same chunk are never reordered.</p>
+ *
+ * <p>The number of chunks waiting to be written is bounded. Once the limit is
+ * reached {@link #write(LanternChunk)} blocks, while {@link #offer(LanternChunk)}
+ * refuses the chunk so that periodic saves can retry it later instead of
+ * stalling the world.</p>
+ *
+ * <p>A snapshot which fails to be written stays queued and is retried after
+ * a delay, unless a newer snapshot of the chunk replaces it. Reading the
+ * chunk while its write is failing throws, as does {@link #flush()}, rather
+ * than returning older data.</p>
+ */
+public class AnvilChunkIoService implements ChunkIoService {
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * The delay before a failed write is retried.
+     */
+    private static final long RETRY_DELAY_SECONDS = 5;
+
+    private final RegionFileCache regions;
+    @Nullable private final ChunkPresenceIndex presence;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<Long, PendingWrite> pending = new ConcurrentHashMap<>();
+    private final Semaphore capacity;
+    private final Object idle = new Object();
+    private int outstanding;
+    private int failing; // the outstanding writes of which the last attempt failed
+    @Nullable private Exception lastFailure;
+    private volatile ChunkCompression compression = ChunkCompression.DEFAULT;
+
+    public AnvilChunkIoService(RegionFileCache regions, String name) {
+        this(regions, null, name, DEFAULT_QUEUE_SIZE, DEFAULT_THREADS);
+    }
+
+    /**
+     * Creates a new chunk I/O service.
+     * @param regions The regions to read from and write to
+     * @param presence The index of the stored chunks, used to skip reading
+     *     chunks which don't exist without opening their region
+     * @param name The name of the world, used for the writer threads
+     * @param queueSize The maximum number of chunks waiting to be written
+     * @param threads The number of writer threads
+     */
+    public AnvilChunkIoService(RegionFileCache regions, @Nullable ChunkPresenceIndex presence, String name, int queueSize, int threads) {
+        this.regions = regions;
+        this.presence = presence;
+        this.capacity = new Semaphore(queueSize);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactoryBuilder()
+                .setNameFormat("Lantern-chunk-io-" + name + "-%d")
+                .setDaemon(true)
+                .build());
+        // retries still waiting once the service is unloaded are dropped, their failure has been reported
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean read(LanternChunk chunk) throws IOException {
+        Optional<DataContainer> data = readChunkData(chunk.getPosition().getX(), chunk.getPosition().getZ());
+        if (!data.isPresent()) {
+            return false;
+        }
+        chunk.load(data.get());
+        return true;
+    }
+
+    /**
+     * Reads the terrain of a single chunk, leaving its entities and tile
+     * entities undecoded until the chunk is {@link LanternChunk#activate()
+     * activated}. The provided chunk must not yet be initialized.
+     * @param chunk The chunk to read into.
+     * @return Whether the chunk was stored.
+     * @throws IOException if an I/O error occurs.
+     */
+    public boolean readDeferred(LanternChunk chunk) throws IOException {
+        Optional<NbtLazyCompound> data = readLazyChunkData(chunk.getPosition().getX(), chunk.getPosition().getZ());
+        if (!data.isPresent()) {
+            return false;
+        }
+        chunk.loadDeferred(data.get());
+        return true;
+    }
+
+    /**
+     * Reads the stored data of a chunk, including any changes which are
+     * still waiting to be written.
+     * @param x The chunk x coordinate.
+     * @param z The chunk z coordinate.
+     * @return The chunk data, if the chunk exists.
+     * @throws IOException if an I/O error occurs.
+     */
+    public Optional<DataContainer> readChunkData(int x, int z) throws IOException {
+        // make sure we don't read an older copy than one waiting to be written
+        awaitWrite(x, z);
+        if (presence != null && !presence.contains(x, z)) {
+            return Optional.empty();
+        }
+
+        try (RegionFileCache.Handle handle = regions.acquire(x, z)) {
+            ByteBuffer data = handle.getRegion().getChunkData(x & 31, z & 31);
+            if (data == null) {
+                return Optional.empty();
+            }
+            return Optional.of(new NbtBufferReader(data).read());
+        }
+    }
+
+    /**
+     * Reads the stored data of many chunks, for example all chunks around a
+     * player who joined. The chunks are grouped by region, and each region
+     * is read by a single task which reads the sectors of its chunks in
+     * ascending order, see {@link RegionFile#getChunkData(int[])}.
+     * @param chunks The chunk coordinates, the y coordinates are ignored.
+     * @param executor The executor running the read of each region.
+     * @return The future of the data of each chunk.
+     */
+    public Map<Vector3i, ListenableFuture<Optional<DataContainer>>> readChunkData(Collection<Vector3i> chunks, Executor executor) {
+        return readChunkData(chunks, executor, data -> new NbtBufferReader(data).read());
+    }
+
+    /**
+     * Reads the stored data of many chunks as lazy views, in the same way
+     * as {@link #readChunkData(Collection, Executor)}.
+     * @param chunks The chunk coordinates, the y coordinates are ignored.
+     * @param executor The executor running the read of each region.
+     * @return The future of the view of the data of each chunk.
+     */
+    public Map<Vector3i, ListenableFuture<Optional<NbtLazyCompound>>> readLazyChunkData(Collection<Vector3i> chunks, Executor executor) {
+        return readChunkData(chunks, executor, data -> new NbtBufferReader(data).readLazy());
+    }
+
+    private <T> Map<Vector3i, ListenableFuture<Optional<T>>> readChunkData(Collection<Vector3i> chunks, Executor executor, Decoder<T> decoder) {
+        Map<Vector3i, ListenableFuture<Optional<T>>> futures = new LinkedHashMap<>();
+        LongObjectHashMap<List<Vector3i>> byRegion = new LongObjectHashMap<>();
+        for (Vector3i chunk : chunks) {
+            if (futures.containsKey(chunk)) {
+                continue;
+            }
+            futures.put(chunk, SettableFuture.create());
+            long key = LanternChunkLayout.toKey(chunk.getX() >> 5, chunk.getZ() >> 5);
+            List<Vector3i> region = byRegion.get(key);
+            if (region == null) {
+                region = new ArrayList<>();
+                byRegion.put(key, region);
+            }
+            region.add(chunk);
+        }
+
+        byRegion.forEachValue(region -> {
+            try {
+                executor.execute(() -> readRegionChunkData(region, futures, decoder));
+            } catch (RejectedExecutionException e) {
+                region.forEach(chunk -> ((SettableFuture<?>) futures.get(chunk)).setException(e));
+            }
+        });
+        return Collections.unmodifiableMap(futures);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void readRegionChunkData(List<Vector3i> chunks, Map<Vector3i, ListenableFuture<Optional<T>>> futures, Decoder<T> decoder) {
+        List<Vector3i> stored = new ArrayList<>(chunks.size());
+        Throwable failure = null;
+        try {
+            for (Vector3i chunk : chunks) {
+                try {
+                    awaitWrite(chunk.getX(), chunk.getZ());
+                } catch (IOException e) {
+                    ((SettableFuture<?>) futures.get(chunk)).setException(e);
+                    continue;
+                }
+                if (presence != null && !presence.contains(chunk.getX(), chunk.getZ())) {
+                    ((SettableFuture<Optional<T>>) futures.get(chunk)).set(Optional.empty());
+                } else {
+                    stored.add(chunk);
+                }
+            }
+            if (stored.isEmpty()) {
+                return;
+            }
+
+            int[] indices = new int[stored.size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = (stored.get(i).getX() & 31) + (stored.get(i).getZ() & 31) * 32;
+            }
+            ByteBuffer[] data;
+            try (RegionFileCache.Handle handle = regions.acquire(stored.get(0).getX(), stored.get(0).getZ())) {
+                data = handle.getRegion().getChunkData(indices);
+            } catch (IOException e) {
+                // read the chunks one by one, so only the broken ones fail
+                for (Vector3i chunk : stored) {
+                    SettableFuture<Optional<T>> future = (SettableFuture<Optional<T>>) futures.get(chunk);
+                    try (RegionFileCache.Handle handle = regions.acquire(chunk.getX(), chunk.getZ())) {
+                        ByteBuffer chunkData = handle.getRegion().getChunkData(chunk.getX() & 31, chunk.getZ() & 31);
+                        future.set(chunkData == null ? Optional.empty() : Optional.of(decoder.decode(chunkData)));
+                    } catch (IOException | RuntimeException e1) {
+                        future.setException(e1);
+                    }
+                }
+                return;
+            }
+
+            for (int i = 0; i < data.length; i++) {
+                SettableFuture<Optional<T>> future = (SettableFuture<Optional<T>>) futures.get(stored.get(i));
+                try {
+                    future.set(data[i] == null ? Optional.empty() : Optional.of(decoder.decode(data[i])));
+                } catch (IOException | RuntimeException e) {
+                    future.setException(e);
+                }
+            }
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            // never leave a future incomplete
+            for (Vector3i chunk : chunks) {
+                SettableFuture<?> future = (SettableFuture<?>) futures.get(chunk);
+                if (!future.isDone()) {
+                    future.setException(failure != null ? failure : new IllegalStateException("Chunk " + chunk + " was not read"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the stored data of a chunk as a lazy view, for callers which only
+     * need parts of it such as the height map or biomes.
+     * @param x The chunk x coordinate.
+     * @param z The chunk z coordinate.
+     * @return The view of the chunk data, if the chunk exists.
+     * @throws IOException if an I/O error occurs.
+     */
+    public Optional<NbtLazyCompound> readLazyChunkData(int x, int z) throws IOException {
+        awaitWrite(x, z);
+        if (presence != null && !presence.contains(x, z)) {
+            return Optional.empty();
+        }
+
+        try (RegionFileCache.Handle handle = regions.acquire(x, z)) {
+            ByteBuffer data = handle.getRegion().getChunkData(x & 31, z & 31);
+            if (data == null) {
+                return Optional.empty();
+            }
+            return Optional.of(new NbtBufferReader(data).readLazy());
+        }
+    }
+
+    /**
+     * Queues a chunk to be written, blocking while the queue is full.
+     * @param chunk The {@link LanternChunk} to write from.
+     * @throws IOException if the service is shut down or the thread is
+     *     interrupted while waiting.
+     */
+    @Override
+    public void write(LanternChunk chunk) throws IOException {
+        try {
+            submit(chunk, true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing chunk " + chunk.getPosition(), e);
+        }
+    }
+
+    /**
+     * Queues a chunk to be written if there is room, without blocking.
+     * @param chunk The chunk to write from.
+     * @return true if the chunk was queued, false if the queue was full.
+     */
+    public boolean offer(LanternChunk chunk) {
+        try {
+            return submit(chunk, false);
+        } catch (InterruptedException e) {
+            // only thrown when blocking
+            throw new AssertionError(e);
+        }
+    }
+
+    private boolean submit(LanternChunk chunk, boolean block) throws InterruptedException {
+        int x = chunk.getPosition().getX();
+        int z = chunk.getPosition().getZ();
+        long key = LanternChunkLayout.toKey(x, z);
+
+        // snapshot on the calling thread, everything else happens in the background
+        ChunkSnapshot snapshot = new ChunkSnapshot(chunk);
+
+        while (true) {
+            PendingWrite existing = pending.get(key);
+            if (existing != null && existing.replace(snapshot)) {
+                chunk.setDirty(false);
+                return true;
+            }
+
+            if (block) {
+                capacity.acquire();
+            } else if (!capacity.tryAcquire()) {
+                return false;
+            }
+
+            PendingWrite write = new PendingWrite(key, snapshot);
+            if (pending.putIfAbsent(key, write) != null) {
+                // lost a race with another save of this chunk, merge into it
+                capacity.release();
+                continue;
+            }
+
+            synchronized (idle) {
+                outstanding++;
+            }
+            chunk.setDirty(false);
+            try {
+                executor.execute(() -> process(write));
+            } catch (RejectedExecutionException e) {
+                // shutting down, write it ourselves
+                process(write);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes any queued snapshot of the given chunk before returning. If the
+     * write has not started yet, it is performed on the calling thread.
+     * @throws IOException if the write failed, so the stored chunk is older
+     *     than the one waiting to be written
+     */
+    private void awaitWrite(int x, int z) throws IOException {
+        PendingWrite write = pending.get(LanternChunkLayout.toKey(x, z));
+        if (write == null) {
+            return;
+        }
+        if (!process(write)) {
+            write.awaitAttempt();
+        }
+        Exception failure = write.getFailure();
+        if (failure != null) {
+            throw new IOException("Chunk (" + x + "," + z + ") could not be written, it is retried", failure);
+        }
+    }
+
+    /**
+     * Gets whether a chunk is waiting to be written.
+     * @param x The chunk x coordinate.
+     * @param z The chunk z coordinate.
+     * @return Whether the chunk is queued.
+     */
+    public boolean isPending(int x, int z) {
+        return pending.containsKey(LanternChunkLayout.toKey(x, z));
+    }
+
+    /**
+     * Writes the snapshots of a pending write until none are left. If a
+     * snapshot can't be written, it stays queued and is retried later.
+     * @return false if another thread is already writing it or it is done.
+     */
+    private boolean process(PendingWrite write) {
+        ChunkSnapshot snapshot = write.start();
+        if (snapshot == null) {
+            return false;
+        }
+
+        do {
+            try {
+                writeSnapshot(snapshot);
+            } catch (Exception e) {
+                SpongeImpl.getLogger().error("Error while saving chunk (" + snapshot.x + "," + snapshot.z + "), retrying in "
+                        + RETRY_DELAY_SECONDS + " seconds", e);
+                write.fail(snapshot, e);
+                try {
+                    executor.schedule(() -> process(write), RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+                } catch (RejectedExecutionException e1) {
+                    // shutting down, the failure is reported by flush
+                }
+                return true;
+            }
+            snapshot = write.next();
+        } while (snapshot != null);
+
+        capacity.release();
+        synchronized (idle) {
+            // flush also waits for the outstanding writes to drop to the failing ones
+            outstanding--;
+            idle.notifyAll();
+        }
+        return true;
+    }
+
+    private void writeSnapshot(ChunkSnapshot snapshot) throws IOException {
+        DataContainer levelTags = new MemoryDataContainer();
+        // the tag is written right away, so the sections can be encoded into the buffers of this thread
+        snapshot.terrain.saveTerrain(levelTags, true);
+        levelTags.set(LanternChunk.ENTITIES, snapshot.entities.get(LanternChunk.ENTITIES).get());
+        levelTags.set(LanternChunk.TILE_ENTITIES, snapshot.entities.get(LanternChunk.TILE_ENTITIES).get());
+
+        DataContainer root = new MemoryDataContainer();
+        root.set(LanternChunk.LEVEL, levelTags);
+
+        try (RegionFileCache.Handle handle = regions.acquire(snapshot.x, snapshot.z);
+                NbtDataOutputStream out = new NbtDataOutputStream(
+                        handle.getRegion().getChunkDataOutputStream(snapshot.x & 31, snapshot.z & 31, compression), false)) {
+            out.write(root);
+        }
+    }
+
+    /**
+     * Gets the compression chunks are written with.
+     * @return The compression
+     */
+    public ChunkCompression getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * Sets the compression chunks are written with from now on. Chunks
+     * already stored keep their compression until they are saved again.
+     * @param compression The compression
+     */
+    public void setCompression(ChunkCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Gets the number of chunks waiting to be written.
+     * @return The number of pending chunks.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Blocks until every chunk queued before this call has been written, or
+     * has failed to be written.
+     * @throws IOException if chunks failed to be written, they stay queued
+     *     and are retried.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void flush() throws IOException, InterruptedException {
+        synchronized (idle) {
+            while (outstanding > failing) {
+                idle.wait();
+            }
+            if (failing > 0) {
+                throw new IOException(failing + " chunks could not be written", lastFailure);
+            }
+        }
+    }
+
+    /**
+     * Counts a write of which the last attempt failed, or which succeeded
+     * after failing.
+     */
+    private void changeFailing(int delta, @Nullable Exception failure) {
+        synchronized (idle) {
+            failing += delta;
+            if (failure != null) {
+                lastFailure = failure;
+            }
+            idle.notifyAll();
+        }
+    }
+
+    @Override
+    public void unload() throws IOException {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing chunks", e);
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Decodes the uncompressed data of a chunk read by a batch.
+     */
+    @FunctionalInterface
+    private interface Decoder<T> {
+
+        T decode(ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * The parts of a chunk needed to save it, captured on the world thread.
+     */
+    private static final class ChunkSnapshot {
+
+        private final LanternChunk terrain;
+        private final DataView entities;
+        private final int x;
+        private final int z;
+
+        private ChunkSnapshot(LanternChunk chunk) {
+            this.terrain = chunk.snapshot(true, true);
+            this.entities = new MemoryDataContainer();
+            chunk.saveEntities(this.entities);
+            this.x = chunk.getPosition().getX();
+            this.z = chunk.getPosition().getZ();
+        }
+    }
+
+    /**
+     * The queued write of a single chunk. Newer snapshots replace older ones
+     * until the write is finished, so at most one thread writes a chunk at a
+     * time and the last snapshot always wins. A write is only finished once
+     * its last snapshot has been written.
+     */
+    private final class PendingWrite {
+
+        private final long key;
+        @Nullable private ChunkSnapshot snapshot;
+        private boolean running;
+        private boolean done;
+        @Nullable private Exception failure; // of the last attempt
+
+        private PendingWrite(long key, ChunkSnapshot snapshot) {
+            this.key = key;
+            this.snapshot = snapshot;
+        }
+
+        synchronized boolean replace(ChunkSnapshot snapshot) {
+            if (done) {
+                return false;
+            }
+            this.snapshot = snapshot;
+            return true;
+        }
+
+        @Nullable
+        synchronized ChunkSnapshot start() {
+            if (running || done) {
+                return null;
+            }
+            running = true;
+            return next0();
+        }
+
+        @Nullable
+        synchronized ChunkSnapshot next() {
+            ChunkSnapshot next = next0();
+            if (next == null) {
+                done = true;
+                running = false;
+                if (failure != null) {
+                    failure = null;
+                    changeFailing(-1, null);
+                }
+                pending.remove(key, this);
+                notifyAll();
+            }
+            return next;
+        }
+
+        /**
+         * Ends an attempt of which the snapshot couldn't be written, which
+         * is queued again unless it has been replaced in the meantime.
+         */
+        synchronized void fail(ChunkSnapshot failed, Exception e) {
+            if (snapshot == null) {
+                snapshot = failed;
+            }
+            changeFailing(failure == null ? 1 : 0, e);
+            failure = e;
+            running = false;
+            notifyAll();
+        }
+
+        @Nullable
+        synchronized Exception getFailure() {
+            return done ? null : failure;
+        }
+
+        @Nullable
+        private ChunkSnapshot next0() {
+            ChunkSnapshot next = snapshot;
+            snapshot = null;
+            return next;
+        }
+
+        /**
+         * Waits for the running attempt to write this, if any.
+         */
+        synchronized void awaitAttempt() {
+            boolean interrupted = false;
+            while (running) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
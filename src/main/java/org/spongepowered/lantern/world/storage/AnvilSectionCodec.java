@@ -0,0 +1,266 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.annotation.Nullable;
+
+/**
+ * Converts the blocks of a chunk section between the Anvil {@code Blocks},
+ * {@code Add} and {@code Data} arrays and {@code type << 4 | data} values.
+ *
+ * <p>The byte arrays are accessed through little endian buffer views eight
+ * blocks at a time: a long of block ids lines up with an int of the nibble
+ * arrays, in which the nibble of the k-th block sits at bit {@code 4 * k}.
+ * Only the types themselves are accessed one at a time.</p>
+ */
+public final class AnvilSectionCodec {
+
+    /**
+     * The number of blocks in a section.
+     */
+    public static final int SECTION_SIZE = 16 * 16 * 16;
+
+    /**
+     * The number of sections in a chunk.
+     */
+    public static final int SECTIONS = 16;
+
+    private static final ThreadLocal<char[]> SCRATCH = ThreadLocal.withInitial(() -> new char[SECTION_SIZE]);
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private AnvilSectionCodec() {
+    }
+
+    /**
+     * Gets an array of {@link #SECTION_SIZE} values owned by the calling
+     * thread, which can hold the types of a section while they are converted.
+     * The contents are only valid until the next use on the same thread.
+     * @return The scratch array
+     */
+    public static char[] getScratch() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * Gets the arrays owned by the calling thread which the sections of a
+     * chunk can be encoded into. The contents are only valid until the next
+     * use on the same thread.
+     * @return The buffers
+     */
+    public static Buffers getBuffers() {
+        return BUFFERS.get();
+    }
+
+    private static ByteBuffer view(byte[] array) {
+        return ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Combines the stored arrays of a section into its types.
+     * @param blocks The lower eight bits of the block ids
+     * @param add The upper four bits of the block ids, or null if they're all zero
+     * @param data The block data
+     * @param types The array to write the types to
+     * @return The given types array
+     */
+    public static char[] decode(byte[] blocks, @Nullable byte[] add, byte[] data, char[] types) {
+        int length = blocks.length;
+        if (types.length != length || data.length != length >> 1 || (add != null && add.length != length >> 1)) {
+            throw new IllegalArgumentException("Mismatched section arrays: " + types.length + " " + length + " "
+                    + (add == null ? "-" : add.length) + " " + data.length);
+        }
+        ByteBuffer blockView = view(blocks);
+        ByteBuffer dataView = view(data);
+        int end = length & ~7;
+        if (add == null) {
+            for (int j = 0; j < end; j += 8) {
+                long ids = blockView.getLong(j);
+                decode8(types, j, (int) ids, (int) (ids >>> 32), dataView.getInt(j >> 1), 0);
+            }
+        } else {
+            ByteBuffer addView = view(add);
+            for (int j = 0; j < end; j += 8) {
+                long ids = blockView.getLong(j);
+                decode8(types, j, (int) ids, (int) (ids >>> 32), dataView.getInt(j >> 1), addView.getInt(j >> 1));
+            }
+        }
+        for (int j = end; j < length; j++) {
+            int shift = (j & 1) << 2;
+            int ext = add == null ? 0 : add[j >> 1] >> shift & 0xf;
+            types[j] = (char) (ext << 12 | (blocks[j] & 0xff) << 4 | data[j >> 1] >> shift & 0xf);
+        }
+        return types;
+    }
+
+    /* combines eight blocks, from the low and high half of their ids and their data and add nibbles */
+    private static void decode8(char[] types, int j, int low, int high, int meta, int ext) {
+        types[j] = (char) (ext << 12 & 0xf000 | low << 4 & 0xff0 | meta & 0xf);
+        types[j + 1] = (char) (ext << 8 & 0xf000 | low >>> 4 & 0xff0 | meta >>> 4 & 0xf);
+        types[j + 2] = (char) (ext << 4 & 0xf000 | low >>> 12 & 0xff0 | meta >>> 8 & 0xf);
+        types[j + 3] = (char) (ext & 0xf000 | low >>> 20 & 0xff0 | meta >>> 12 & 0xf);
+        types[j + 4] = (char) (ext >>> 4 & 0xf000 | high << 4 & 0xff0 | meta >>> 16 & 0xf);
+        types[j + 5] = (char) (ext >>> 8 & 0xf000 | high >>> 4 & 0xff0 | meta >>> 20 & 0xf);
+        types[j + 6] = (char) (ext >>> 12 & 0xf000 | high >>> 12 & 0xff0 | meta >>> 24 & 0xf);
+        types[j + 7] = (char) (ext >>> 16 & 0xf000 | high >>> 20 & 0xff0 | meta >>> 28);
+    }
+
+    /**
+     * Splits the types of a section into the lower eight bits of the block
+     * ids and the block data.
+     * @param types The types of the section
+     * @param blocks The array to write the lower eight bits of the ids to
+     * @param data The array to write the block data to
+     */
+    public static void encode(char[] types, byte[] blocks, byte[] data) {
+        int length = types.length;
+        if (blocks.length != length || data.length != length >> 1) {
+            throw new IllegalArgumentException("Mismatched section arrays: " + length + " " + blocks.length + " " + data.length);
+        }
+        ByteBuffer blockView = view(blocks);
+        ByteBuffer dataView = view(data);
+        int end = length & ~7;
+        for (int j = 0; j < end; j += 8) {
+            int t0 = types[j];
+            int t1 = types[j + 1];
+            int t2 = types[j + 2];
+            int t3 = types[j + 3];
+            int t4 = types[j + 4];
+            int t5 = types[j + 5];
+            int t6 = types[j + 6];
+            int t7 = types[j + 7];
+            int low = t0 >> 4 & 0xff | t1 << 4 & 0xff00 | t2 << 12 & 0xff0000 | t3 << 20 & 0xff000000;
+            int high = t4 >> 4 & 0xff | t5 << 4 & 0xff00 | t6 << 12 & 0xff0000 | t7 << 20 & 0xff000000;
+            blockView.putLong(j, low & 0xffffffffL | (long) high << 32);
+            dataView.putInt(j >> 1, t0 & 0xf | (t1 & 0xf) << 4 | (t2 & 0xf) << 8 | (t3 & 0xf) << 12
+                    | (t4 & 0xf) << 16 | (t5 & 0xf) << 20 | (t6 & 0xf) << 24 | (t7 & 0xf) << 28);
+        }
+        for (int j = end; j < length; j++) {
+            int shift = (j & 1) << 2;
+            blocks[j] = (byte) (types[j] >> 4);
+            data[j >> 1] = (byte) (data[j >> 1] & ~(0xf << shift) | (types[j] & 0xf) << shift);
+        }
+    }
+
+    /**
+     * Extracts the upper four bits of the block ids of a section.
+     * @param types The types of the section
+     * @return The upper bits, or null if they're all zero
+     */
+    @Nullable
+    public static byte[] encodeAdd(char[] types) {
+        byte[] add = new byte[types.length >> 1];
+        return encodeAdd(types, add) ? add : null;
+    }
+
+    /**
+     * Extracts the upper four bits of the block ids of a section into the
+     * given array, if any of them is set.
+     * @param types The types of the section
+     * @param add The array to write the upper bits to
+     * @return Whether any upper bit is set, the array is left untouched if not
+     */
+    public static boolean encodeAdd(char[] types, byte[] add) {
+        int length = types.length;
+        if (add.length != length >> 1) {
+            throw new IllegalArgumentException("Mismatched section arrays: " + length + " " + add.length);
+        }
+        int any = 0;
+        for (char type : types) {
+            any |= type;
+        }
+        if (any >> 12 == 0) {
+            return false;
+        }
+        ByteBuffer addView = view(add);
+        int end = length & ~7;
+        for (int j = 0; j < end; j += 8) {
+            addView.putInt(j >> 1, types[j] >> 12 | types[j + 1] >> 8 & 0xf0 | types[j + 2] >> 4 & 0xf00 | types[j + 3] & 0xf000
+                    | (types[j + 4] & 0xf000) << 4 | (types[j + 5] & 0xf000) << 8 | (types[j + 6] & 0xf000) << 12
+                    | (types[j + 7] & 0xf000) << 16);
+        }
+        for (int j = end; j < length; j++) {
+            int shift = (j & 1) << 2;
+            add[j >> 1] = (byte) (add[j >> 1] & ~(0xf << shift) | (types[j] >> 12) << shift);
+        }
+        return true;
+    }
+
+    /**
+     * The arrays to encode each section of a chunk into, as the sections of
+     * a chunk are all written at once. They are allocated the first time they
+     * are used.
+     */
+    public static final class Buffers {
+
+        private final byte[][] blocks = new byte[SECTIONS][];
+        private final byte[][] data = new byte[SECTIONS][];
+        private final byte[][] add = new byte[SECTIONS][];
+
+        private Buffers() {
+        }
+
+        /**
+         * Gets the array for the lower eight bits of the block ids of a section.
+         * @param section The section index
+         * @return The array of {@link #SECTION_SIZE} bytes
+         */
+        public byte[] getBlocks(int section) {
+            byte[] array = blocks[section];
+            if (array == null) {
+                blocks[section] = array = new byte[SECTION_SIZE];
+            }
+            return array;
+        }
+
+        /**
+         * Gets the array for the block data of a section.
+         * @param section The section index
+         * @return The array of half {@link #SECTION_SIZE} bytes
+         */
+        public byte[] getData(int section) {
+            byte[] array = data[section];
+            if (array == null) {
+                data[section] = array = new byte[SECTION_SIZE >> 1];
+            }
+            return array;
+        }
+
+        /**
+         * Gets the array for the upper four bits of the block ids of a section.
+         * @param section The section index
+         * @return The array of half {@link #SECTION_SIZE} bytes
+         */
+        public byte[] getAdd(int section) {
+            byte[] array = add[section];
+            if (array == null) {
+                add[section] = array = new byte[SECTION_SIZE >> 1];
+            }
+            return array;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import org.spongepowered.lantern.util.ByteBufferInputStream;
+import org.spongepowered.lantern.util.Lz4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A codec for the payload of chunks stored in a {@link RegionFile}. The
+ * codec of a stored chunk is identified by the version byte in front of its
+ * payload, so chunks written with different codecs can share a region.
+ *
+ * <table summary="Versions">
+ *     <tr><td>1</td><td>GZIP, only written by old tools</td></tr>
+ *     <tr><td>2</td><td>zlib deflate, the vanilla default</td></tr>
+ *     <tr><td>3</td><td>uncompressed</td></tr>
+ *     <tr><td>4</td><td>LZ4, framed in blocks like the LZ4 block streams
+ *     of newer vanilla versions</td></tr>
+ * </table>
+ */
+public abstract class ChunkCompression {
+
+    public static final int VERSION_GZIP = 1;
+    public static final int VERSION_DEFLATE = 2;
+    public static final int VERSION_NONE = 3;
+    public static final int VERSION_LZ4 = 4;
+
+    public static final ChunkCompression GZIP = new Gzip();
+    public static final ChunkCompression NONE = new None();
+    public static final ChunkCompression LZ4 = new Lz4Blocks();
+    /**
+     * The compression chunks are written with by default, which favours
+     * speed over size like vanilla does.
+     */
+    public static final ChunkCompression DEFAULT = deflate(Deflater.BEST_SPEED);
+
+    private static final int SECTOR_BYTES = 4096;
+
+    /* reused by each thread, as inflaters and deflaters hold native memory */
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    /*
+     * reused by each thread to hand the bytes of mapped regions, which aren't backed by an array, to
+     * the inflater and the LZ4 decoder, large enough for any LZ4 block
+     */
+    private static final ThreadLocal<byte[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[Lz4Blocks.MAX_COMPRESSED_BLOCK]);
+
+    /**
+     * Gets the deflate compression with the given level.
+     * @param level The level, from 1 (fastest) to 9 (smallest)
+     * @return The compression
+     */
+    public static ChunkCompression deflate(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Deflate level must be between 1 and 9: " + level);
+        }
+        return new Deflate(level);
+    }
+
+    /**
+     * Gets the compression a stored chunk was written with.
+     * @param version The version byte of the chunk
+     * @return The compression
+     * @throws IOException if the version is unknown
+     */
+    public static ChunkCompression byVersion(int version) throws IOException {
+        switch (version) {
+            case VERSION_GZIP:
+                return GZIP;
+            case VERSION_DEFLATE:
+                return DEFAULT;
+            case VERSION_NONE:
+                return NONE;
+            case VERSION_LZ4:
+                return LZ4;
+            default:
+                throw new IOException("Unknown version: " + version);
+        }
+    }
+
+    /**
+     * Gets a compression by its configured name.
+     * @param name The name, one of deflate, lz4, none or gzip
+     * @param level The deflate level, ignored by the other compressions
+     * @return The compression
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static ChunkCompression byName(String name, int level) {
+        switch (name.toLowerCase(Locale.ENGLISH)) {
+            case "deflate":
+            case "zlib":
+                return deflate(level);
+            case "lz4":
+                return LZ4;
+            case "none":
+            case "uncompressed":
+                return NONE;
+            case "gzip":
+                return GZIP;
+            default:
+                throw new IllegalArgumentException("Unknown chunk compression: " + name);
+        }
+    }
+
+    ChunkCompression() {
+    }
+
+    /**
+     * Gets the version byte stored in front of chunks using this compression.
+     * @return The version
+     */
+    public abstract int getVersion();
+
+    /**
+     * Compresses a chunk payload.
+     * @param data The array holding the payload
+     * @param length The length of the payload
+     * @return A buffer of the compressed payload
+     * @throws IOException if the payload could not be compressed
+     */
+    public abstract ByteBuffer compress(byte[] data, int length) throws IOException;
+
+    /**
+     * Decompresses a chunk payload.
+     * @param data The remaining bytes of the compressed payload
+     * @return A buffer of the uncompressed payload
+     * @throws IOException if the payload is corrupt
+     */
+    public abstract ByteBuffer decompress(ByteBuffer data) throws IOException;
+
+    private static final class Deflate extends ChunkCompression {
+
+        private final int level;
+
+        Deflate(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public int getVersion() {
+            return VERSION_DEFLATE;
+        }
+
+        @Override
+        public ByteBuffer compress(byte[] data, int length) {
+            Deflater deflater = DEFLATER.get();
+            deflater.reset();
+            deflater.setLevel(level);
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            byte[] output = new byte[Math.max(SECTOR_BYTES, length / 4)];
+            int compressed = 0;
+            while (!deflater.finished()) {
+                if (compressed == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                compressed += deflater.deflate(output, compressed, output.length - compressed);
+            }
+            return ByteBuffer.wrap(output, 0, compressed);
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer data) throws IOException {
+            ByteBuffer input = data.duplicate();
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            byte[] scratch = null;
+            if (input.hasArray()) {
+                inflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                input.position(input.limit());
+            } else {
+                // fed a slice at a time, rather than copying the whole payload
+                scratch = SCRATCH.get();
+            }
+
+            byte[] output = new byte[Math.max(SECTOR_BYTES, data.remaining() * 4)];
+            int length = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput() && input.hasRemaining()) {
+                        int slice = Math.min(scratch.length, input.remaining());
+                        input.get(scratch, 0, slice);
+                        inflater.setInput(scratch, 0, slice);
+                    }
+                    if (length == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    int inflated = inflater.inflate(output, length, output.length - length);
+                    if (inflated == 0 && !inflater.finished()
+                            && (inflater.needsDictionary() || inflater.needsInput() && !input.hasRemaining())) {
+                        throw new IOException("Truncated chunk data");
+                    }
+                    length += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt chunk data", e);
+            }
+            return ByteBuffer.wrap(output, 0, length);
+        }
+
+        @Override
+        public String toString() {
+            return "deflate (level " + level + ")";
+        }
+    }
+
+    private static final class Gzip extends ChunkCompression {
+
+        @Override
+        public int getVersion() {
+            return VERSION_GZIP;
+        }
+
+        @Override
+        public ByteBuffer compress(byte[] data, int length) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(SECTOR_BYTES, length / 4));
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(data, 0, length);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer data) throws IOException {
+            try (InputStream in = new GZIPInputStream(new ByteBufferInputStream(data.duplicate()))) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.remaining() * 4);
+                byte[] chunk = new byte[SECTOR_BYTES];
+                for (int read; (read = in.read(chunk)) != -1;) {
+                    out.write(chunk, 0, read);
+                }
+                return ByteBuffer.wrap(out.toByteArray());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "gzip";
+        }
+    }
+
+    private static final class None extends ChunkCompression {
+
+        @Override
+        public int getVersion() {
+            return VERSION_NONE;
+        }
+
+        @Override
+        public ByteBuffer compress(byte[] data, int length) {
+            return ByteBuffer.wrap(data, 0, length);
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer data) {
+            // always copied, as the stored sectors may be rewritten in place
+            byte[] copy = new byte[data.remaining()];
+            data.duplicate().get(copy);
+            return ByteBuffer.wrap(copy);
+        }
+
+        @Override
+        public String toString() {
+            return "none";
+        }
+    }
+
+    /**
+     * LZ4 blocks framed the way LZ4BlockOutputStream of lz4-java frames
+     * them: a magic, a token, both lengths and a checksum in little endian
+     * in front of each block, and an empty block at the end.
+     */
+    private static final class Lz4Blocks extends ChunkCompression {
+
+        private static final byte[] MAGIC = "LZ4Block".getBytes(StandardCharsets.US_ASCII);
+        private static final int HEADER_LENGTH = MAGIC.length + 13;
+        private static final int BLOCK_SIZE = 1 << 16;
+        private static final int MAX_COMPRESSED_BLOCK = Lz4.maxCompressedLength(BLOCK_SIZE);
+        private static final int METHOD_RAW = 0x10;
+        private static final int METHOD_LZ4 = 0x20;
+        private static final int LEVEL = 32 - Integer.numberOfLeadingZeros(BLOCK_SIZE - 1) - 10;
+        private static final int SEED = 0x9747b28c;
+
+        @Override
+        public int getVersion() {
+            return VERSION_LZ4;
+        }
+
+        @Override
+        public ByteBuffer compress(byte[] data, int length) {
+            int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            byte[] output = new byte[(blocks + 1) * HEADER_LENGTH + blocks * Lz4.maxCompressedLength(BLOCK_SIZE)];
+            ByteBuffer out = ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN);
+
+            for (int start = 0; start < length; start += BLOCK_SIZE) {
+                int blockLength = Math.min(BLOCK_SIZE, length - start);
+                int header = out.position();
+                int payload = header + HEADER_LENGTH;
+                int compressed = Lz4.compress(data, start, blockLength, output, payload);
+                int method = METHOD_LZ4;
+                if (compressed >= blockLength) {
+                    System.arraycopy(data, start, output, payload, blockLength);
+                    compressed = blockLength;
+                    method = METHOD_RAW;
+                }
+                out.put(MAGIC);
+                out.put((byte) (method | LEVEL));
+                out.putInt(compressed);
+                out.putInt(blockLength);
+                out.putInt(Lz4.xxHash32(data, start, blockLength, SEED) & 0xFFFFFFF);
+                out.position(payload + compressed);
+            }
+
+            out.put(MAGIC);
+            out.put((byte) (METHOD_RAW | LEVEL));
+            out.putInt(0);
+            out.putInt(0);
+            out.putInt(0);
+            return ByteBuffer.wrap(output, 0, out.position());
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer data) throws IOException {
+            ByteBuffer input = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+            // the blocks of a mapped region are copied into the scratch array one at a time
+            byte[] src = input.hasArray() ? input.array() : SCRATCH.get();
+            int base = input.hasArray() ? input.arrayOffset() : 0;
+
+            byte[] output = new byte[Math.max(SECTOR_BYTES, input.remaining() * 2)];
+            int length = 0;
+            while (input.remaining() >= HEADER_LENGTH) {
+                for (byte magic : MAGIC) {
+                    if (input.get() != magic) {
+                        throw new IOException("Corrupt LZ4 chunk data");
+                    }
+                }
+                int method = input.get() & 0xf0;
+                int compressed = input.getInt();
+                int original = input.getInt();
+                int check = input.getInt();
+                if (original == 0 && compressed == 0) {
+                    break;
+                }
+                // the lengths are checked against the block size before anything is allocated for them
+                if (compressed < 0 || original < 0 || original > BLOCK_SIZE || compressed > MAX_COMPRESSED_BLOCK
+                        || compressed > input.remaining()
+                        || (method == METHOD_RAW && compressed != original)) {
+                    throw new IOException("Corrupt LZ4 chunk data");
+                }
+
+                if (output.length - length < original) {
+                    output = Arrays.copyOf(output, Math.max(output.length * 2, length + original));
+                }
+                if (method == METHOD_RAW) {
+                    input.get(output, length, original);
+                } else if (method == METHOD_LZ4) {
+                    if (input.hasArray()) {
+                        Lz4.decompress(src, base + input.position(), compressed, output, length, original);
+                        input.position(input.position() + compressed);
+                    } else {
+                        input.get(src, 0, compressed);
+                        Lz4.decompress(src, 0, compressed, output, length, original);
+                    }
+                } else {
+                    throw new IOException("Unknown LZ4 block method: " + method);
+                }
+                if ((Lz4.xxHash32(output, length, original, SEED) & 0xFFFFFFF) != check) {
+                    throw new IOException("LZ4 chunk data checksum mismatch");
+                }
+                length += original;
+            }
+            return ByteBuffer.wrap(output, 0, length);
+        }
+
+        @Override
+        public String toString() {
+            return "lz4";
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import com.flowpowered.math.vector.Vector2i;
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.util.LongObjectHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps track of which chunks of a world are stored, and when they were last
+ * written, without opening their region files.
+ *
+ * <p>The presence of the chunks of a region is read from the header of its
+ * file the first time the region is asked for, and kept up to date by being
+ * notified of every chunk written. The index is saved next to the region
+ * files when the world is closed, and the saved presence of a region is only
+ * trusted if its file still has the same size and modification time, so
+ * regions changed by other programs or a crash are read again.</p>
+ */
+public class ChunkPresenceIndex implements RegionFile.WriteListener {
+
+    private static final String FILE_NAME = "presence.idx";
+    private static final int MAGIC = 0x4c504958;
+    private static final int FORMAT = 1;
+    private static final int CHUNKS = 32 * 32;
+
+    private final Path regionDir;
+    private final String extension;
+    private final Path file;
+
+    private final LongObjectHashMap<Region> regions = new LongObjectHashMap<>();
+    private boolean loaded;
+    private boolean dirty;
+
+    public ChunkPresenceIndex(Path regionDir, String extension) {
+        this.regionDir = regionDir;
+        this.extension = extension;
+        this.file = regionDir.resolve(FILE_NAME);
+    }
+
+    /**
+     * Gets whether a chunk is stored.
+     * @param chunkX The chunk x coordinate
+     * @param chunkZ The chunk z coordinate
+     * @return Whether the chunk is stored
+     */
+    public boolean contains(int chunkX, int chunkZ) {
+        Region region = getRegion(chunkX >> 5, chunkZ >> 5);
+        synchronized (this) {
+            return region.contains((chunkX & 31) + (chunkZ & 31) * 32);
+        }
+    }
+
+    /**
+     * Gets the time a chunk was last written.
+     * @param chunkX The chunk x coordinate
+     * @param chunkZ The chunk z coordinate
+     * @return The timestamp in seconds since the epoch, or 0 if the chunk
+     *     isn't stored
+     */
+    public int getTimestamp(int chunkX, int chunkZ) {
+        Region region = getRegion(chunkX >> 5, chunkZ >> 5);
+        synchronized (this) {
+            return region.timestamps == null ? 0 : region.timestamps[(chunkX & 31) + (chunkZ & 31) * 32];
+        }
+    }
+
+    /**
+     * Gets the number of chunks stored in a region.
+     * @param regionX The region x coordinate
+     * @param regionZ The region z coordinate
+     * @return The number of stored chunks
+     */
+    public int getChunkCount(int regionX, int regionZ) {
+        Region region = getRegion(regionX, regionZ);
+        synchronized (this) {
+            return region.count;
+        }
+    }
+
+    /**
+     * Gets the index of the first chunk stored in a region at or after the
+     * given index, where the index of a chunk is {@code x + z * 32}.
+     * @param regionX The region x coordinate
+     * @param regionZ The region z coordinate
+     * @param start The index to start from
+     * @return The index of the chunk, or 1024 if there is none
+     */
+    public int nextChunk(int regionX, int regionZ, int start) {
+        Region region = getRegion(regionX, regionZ);
+        synchronized (this) {
+            for (int i = start; i < CHUNKS; i++) {
+                if (region.contains(i)) {
+                    return i;
+                }
+            }
+        }
+        return CHUNKS;
+    }
+
+    @Override
+    public void onWrite(RegionFile file, int x, int z, int bytes) {
+        String name = file.getPath().getFileName().toString();
+        Vector2i coords = RegionFileCache.parseFileName(name, extension);
+        if (coords == null) {
+            return;
+        }
+        int timestamp = file.getTimestamp(x, z);
+        Region region = getRegion(coords.getX(), coords.getY());
+        synchronized (this) {
+            if (region.timestamps == null) {
+                // the region didn't exist when it was first asked for
+                region = new Region(new long[CHUNKS / 64], new int[CHUNKS], 0);
+                regions.put(LanternChunkLayout.toKey(coords.getX(), coords.getY()), region);
+            }
+            region.set(x + z * 32, timestamp);
+            dirty = true;
+        }
+    }
+
+    private Region getRegion(int regionX, int regionZ) {
+        long key = LanternChunkLayout.toKey(regionX, regionZ);
+        synchronized (this) {
+            if (!loaded) {
+                load();
+            }
+            Region region = regions.get(key);
+            if (region != null) {
+                return region;
+            }
+        }
+
+        // read outside of the lock, a region written meanwhile is read again
+        Region region = readHeader(regionDir.resolve(RegionFileCache.getFileName(regionX, regionZ, extension)));
+        synchronized (this) {
+            Region existing = regions.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            regions.put(key, region);
+            dirty |= region.timestamps != null;
+            return region;
+        }
+    }
+
+    private static Region readHeader(Path path) {
+        ByteBuffer header = ByteBuffer.allocate(2 * CHUNKS * 4);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            }
+        } catch (NoSuchFileException e) {
+            return Region.ABSENT;
+        } catch (IOException e) {
+            SpongeImpl.getLogger().warn("Unable to read the header of region file " + path, e);
+            return Region.ABSENT;
+        }
+        header.clear();
+
+        long[] bits = new long[CHUNKS / 64];
+        int[] timestamps = new int[CHUNKS];
+        int count = 0;
+        for (int i = 0; i < CHUNKS; i++) {
+            if (header.getInt(i * 4) != 0) {
+                bits[i >> 6] |= 1L << i;
+                timestamps[i] = header.getInt((CHUNKS + i) * 4);
+                count++;
+            }
+        }
+        return new Region(bits, timestamps, count);
+    }
+
+    /* reads the saved index, dropping regions which changed since */
+    private void load() {
+        loaded = true;
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                SpongeImpl.getLogger().warn("Ignoring chunk presence index of unknown format " + file);
+                return;
+            }
+            int size = in.readInt();
+            for (int n = 0; n < size; n++) {
+                int regionX = in.readInt();
+                int regionZ = in.readInt();
+                long fileSize = in.readLong();
+                long modified = in.readLong();
+                long[] bits = new long[CHUNKS / 64];
+                int[] timestamps = new int[CHUNKS];
+                int count = 0;
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] = in.readLong();
+                    count += Long.bitCount(bits[i]);
+                }
+                for (int i = 0; i < CHUNKS; i++) {
+                    timestamps[i] = in.readInt();
+                }
+                if (isUnchanged(regionX, regionZ, fileSize, modified)) {
+                    regions.put(LanternChunkLayout.toKey(regionX, regionZ), new Region(bits, timestamps, count));
+                }
+            }
+        } catch (IOException e) {
+            SpongeImpl.getLogger().warn("Unable to read chunk presence index " + file, e);
+            regions.clear();
+        }
+    }
+
+    private boolean isUnchanged(int regionX, int regionZ, long size, long modified) {
+        Path path = regionDir.resolve(RegionFileCache.getFileName(regionX, regionZ, extension));
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves the index, which must only be done once the regions are closed
+     * so their sizes and modification times are final.
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            int[] size = {0};
+            regions.forEachValue(region -> {
+                if (region.timestamps != null) {
+                    size[0]++;
+                }
+            });
+            out.writeInt(size[0]);
+
+            IOException[] failure = {null};
+            regions.forEach((key, region) -> {
+                if (region.timestamps == null || failure[0] != null) {
+                    return;
+                }
+                int regionX = LanternChunkLayout.keyX(key);
+                int regionZ = LanternChunkLayout.keyZ(key);
+                Path path = regionDir.resolve(RegionFileCache.getFileName(regionX, regionZ, extension));
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    out.writeInt(regionX);
+                    out.writeInt(regionZ);
+                    out.writeLong(attributes.size());
+                    out.writeLong(attributes.lastModifiedTime().toMillis());
+                    for (long bits : region.bits) {
+                        out.writeLong(bits);
+                    }
+                    for (int timestamp : region.timestamps) {
+                        out.writeInt(timestamp);
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    /**
+     * The presence of the chunks of a region, guarded by the index.
+     */
+    private static final class Region {
+
+        /* shared by regions without a file, replaced once one is written */
+        static final Region ABSENT = new Region(new long[CHUNKS / 64], null, 0);
+
+        final long[] bits;
+        @Nullable final int[] timestamps;
+        int count;
+
+        Region(long[] bits, @Nullable int[] timestamps, int count) {
+            this.bits = bits;
+            this.timestamps = timestamps;
+            this.count = count;
+        }
+
+        boolean contains(int index) {
+            return (bits[index >> 6] & (1L << index)) != 0;
+        }
+
+        void set(int index, int timestamp) {
+            if (!contains(index)) {
+                bits[index >> 6] |= 1L << index;
+                count++;
+            }
+            timestamps[index] = timestamp;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.spongepowered.lantern.SpongeImpl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batches the durability of chunk writes across all regions of a world.
+ *
+ * <p>Rather than forcing every chunk write to the disk, or only forcing a
+ * region once it is evicted from its {@link RegionFileCache}, written regions
+ * are collected into a batch which is synced as a whole, once per interval or
+ * as soon as enough bytes have been written. Regions are synced in the order
+ * they were first written to within the batch.</p>
+ */
+public class GroupCommitter implements RegionFile.WriteListener {
+
+    private final long intervalMillis;
+    private final long byteThreshold;
+    private final ScheduledExecutorService executor;
+
+    private final Set<RegionFile> dirty = new LinkedHashSet<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean commitQueued = new AtomicBoolean();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Object commitLock = new Object();
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong syncedBytes = new AtomicLong();
+
+    /**
+     * Creates a new group committer.
+     * @param name The name of the world, used for the sync thread
+     * @param intervalMillis The maximum time between syncs, or 0 to only sync
+     *     when the byte threshold is reached
+     * @param byteThreshold The number of written bytes which triggers an early
+     *     sync, or 0 to only sync on the interval
+     */
+    public GroupCommitter(String name, long intervalMillis, long byteThreshold) {
+        this.intervalMillis = intervalMillis;
+        this.byteThreshold = byteThreshold;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("Lantern-region-sync-" + name)
+                .setDaemon(true)
+                .build());
+    }
+
+    @Override
+    public void onWrite(RegionFile region, int x, int z, int bytes) {
+        synchronized (dirty) {
+            dirty.add(region);
+        }
+        // the sync thread is only started once the world is written to
+        if (intervalMillis > 0 && started.compareAndSet(false, true)) {
+            try {
+                executor.scheduleWithFixedDelay(this::commitQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+            }
+        }
+        long pending = pendingBytes.addAndGet(bytes);
+        if (byteThreshold > 0 && pending >= byteThreshold && commitQueued.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::commitQuietly);
+            } catch (RejectedExecutionException e) {
+                // closed, the final commit picks this write up
+                commitQueued.set(false);
+            }
+        }
+    }
+
+    /**
+     * Syncs every region written to since the last commit, in the order they
+     * were written to, blocking until the batch is durable.
+     * @throws IOException if a region could not be synced
+     */
+    public void commit() throws IOException {
+        synchronized (commitLock) {
+            commitQueued.set(false);
+
+            List<RegionFile> batch;
+            synchronized (dirty) {
+                if (dirty.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(dirty);
+                dirty.clear();
+                pendingBytes.set(0);
+            }
+
+            IOException failure = null;
+            long synced = 0;
+            for (RegionFile region : batch) {
+                try {
+                    synced += region.sync();
+                } catch (IOException e) {
+                    // keep going so one bad region doesn't hold back the rest
+                    if (failure == null) {
+                        failure = new IOException("Unable to sync region batch");
+                    }
+                    failure.addSuppressed(e);
+                    synchronized (dirty) {
+                        dirty.add(region);
+                    }
+                }
+            }
+            commits.incrementAndGet();
+            syncedBytes.addAndGet(synced);
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void commitQuietly() {
+        try {
+            commit();
+        } catch (IOException e) {
+            SpongeImpl.getLogger().error("Error while syncing region files", e);
+        }
+    }
+
+    /**
+     * Gets the configured maximum time between syncs.
+     * @return The interval in milliseconds
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Gets the configured number of bytes which triggers an early sync.
+     * @return The threshold in bytes
+     */
+    public long getByteThreshold() {
+        return byteThreshold;
+    }
+
+    /**
+     * Gets the number of chunk bytes written since the last commit.
+     * @return The pending bytes
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Gets the number of batches committed so far.
+     * @return The commit count
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * Gets the number of chunk bytes made durable by all commits so far.
+     * @return The synced bytes
+     */
+    public long getSyncedBytes() {
+        return syncedBytes.get();
+    }
+
+    /**
+     * Stops the periodic sync and commits everything written so far.
+     * @throws IOException if a region could not be synced
+     */
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+    }
+}
@@ -45,6 +45,34 @@ public class LanternChunkLayout implements ChunkLayout {
     private LanternChunkLayout() {
     }
 
+    /**
+     * Packs the x and z coordinates of a chunk column into a single key.
+     * @param x The x coordinate.
+     * @param z The z coordinate.
+     * @return The packed key.
+     */
+    public static long toKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xffffffffL);
+    }
+
+    /**
+     * Gets the x coordinate from a key created by {@link #toKey(int, int)}.
+     * @param key The packed key.
+     * @return The x coordinate.
+     */
+    public static int keyX(long key) {
+        return (int) (key >> 32);
+    }
+
+    /**
+     * Gets the z coordinate from a key created by {@link #toKey(int, int)}.
+     * @param key The packed key.
+     * @return The z coordinate.
+     */
+    public static int keyZ(long key) {
+        return (int) key;
+    }
+
     @Override
     public Vector3i getChunkSize() {
         return CHUNK_SIZE;
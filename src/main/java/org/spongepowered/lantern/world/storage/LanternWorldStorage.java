@@ -24,6 +24,7 @@
  */
 package org.spongepowered.lantern.world.storage;
 
+import com.flowpowered.math.vector.Vector2i;
 import com.flowpowered.math.vector.Vector3i;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -34,43 +35,95 @@ import org.spongepowered.api.world.storage.ChunkDataStream;
 import org.spongepowered.api.world.storage.WorldProperties;
 import org.spongepowered.api.world.storage.WorldStorage;
 import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.config.LanternConfig;
 import org.spongepowered.lantern.scheduler.LanternScheduler;
 import org.spongepowered.lantern.util.nbt.NbtDataInputStream;
 import org.spongepowered.lantern.util.nbt.NbtDataOutputStream;
+import org.spongepowered.lantern.util.nbt.NbtLazyCompound;
 
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class LanternWorldStorage implements WorldStorage {
 
+    private final GroupCommitter committer;
+    private final ChunkPresenceIndex presence;
     private final RegionFileCache regions;
+    private final AnvilChunkIoService chunkIo;
+    private final RegionCompactor compactor;
     private final ListeningExecutorService executor;
     private final Path worldDir;
 
     public LanternWorldStorage(Path world) {
         this.worldDir = world;
-        this.regions = new RegionFileCache(world, ".mca");
+        LanternConfig.ChunkIoCategory config = SpongeImpl.getGlobalConfig().getConfig().getChunkIo();
+        String name = world.getFileName().toString();
+        this.committer = new GroupCommitter(name, config.getSyncInterval(), config.getSyncThreshold() * 1024L);
+        this.presence = new ChunkPresenceIndex(world.resolve("region"), ".mca");
+        this.regions = new RegionFileCache(world, ".mca", (region, x, z, bytes) -> {
+            presence.onWrite(region, x, z, bytes);
+            committer.onWrite(region, x, z, bytes);
+        }, config.getMaxOpenRegions());
+        this.chunkIo = new AnvilChunkIoService(regions, presence, name, config.getWriteQueueSize(), config.getWriteThreads());
+        this.compactor = new RegionCompactor(regions, name, config.getCompactionInterval() * 1000L,
+                config.getCompactionThreshold(), config.getCompactionRate() * 1024L);
         this.executor = MoreExecutors.listeningDecorator(LanternScheduler.getInstance().createAsyncExecutor(SpongeImpl.getPlugin()));
     }
 
     @Override
     public ChunkDataStream getGeneratedChunks() {
-        return new MultiRegionStream(regions);
+        return new MultiRegionStream(regions, presence);
+    }
+
+    /**
+     * Streams every chunk stored on the disk in parallel. The work is split
+     * by region and chunks are decoded by the {@link ForkJoinPool} running
+     * the terminal operation, which is the common pool unless the stream is
+     * consumed from inside another pool.
+     *
+     * <p>Chunks still waiting in the write queue are not seen by the stream,
+     * flush the {@link #getChunkIoService() chunk I/O service} beforehand if
+     * they are required.</p>
+     * @return The chunk stream
+     */
+    public Stream<DataContainer> streamGeneratedChunks() {
+        return streamGeneratedChunks(region -> true);
+    }
+
+    /**
+     * Streams every chunk stored in the regions accepted by the filter in
+     * parallel, see {@link #streamGeneratedChunks()}. The filter is tested
+     * before any chunk of a region is decoded, for example to skip regions
+     * by their {@link RegionFile#getNewestTimestamp() header timestamps}.
+     * @param regionFilter The filter of the regions to stream
+     * @return The chunk stream
+     */
+    public Stream<DataContainer> streamGeneratedChunks(Predicate<? super RegionFile> regionFilter) {
+        List<Vector2i> created;
+        try {
+            created = regions.getCreatedRegions();
+        } catch (IOException e) {
+            SpongeImpl.getLogger().warn("Unable to list the regions of " + worldDir, e);
+            return Stream.empty();
+        }
+        return StreamSupport.stream(new RegionChunkSpliterator(regions, created, regionFilter), true);
     }
 
     @Override
     public ListenableFuture<Boolean> doesChunkExist(Vector3i chunkCoords) {
         return executor.submit(() -> {
-            try {
-                RegionFile region = regions.getRegionFile(chunkCoords.getX(), chunkCoords.getZ());
-                return region.hasChunk(chunkCoords.getX(), chunkCoords.getZ());
-            } catch (IOException e) {
-                return false;
-            }
-
+            // chunks waiting in the write queue aren't in the index yet
+            return presence.contains(chunkCoords.getX(), chunkCoords.getZ()) || chunkIo.isPending(chunkCoords.getX(), chunkCoords.getZ());
         });
     }
 
@@ -78,21 +131,96 @@ public class LanternWorldStorage implements WorldStorage {
     public ListenableFuture<Optional<DataContainer>> getChunkData(Vector3i chunkCoords) {
         return this.executor.submit(() -> {
             try {
-                RegionFile region = regions.getRegionFile(chunkCoords.getX(), chunkCoords.getZ());
-                if(!region.hasChunk(chunkCoords.getX(), chunkCoords.getZ())) return Optional.empty();
-
-                DataInputStream in = region.getChunkDataInputStream(chunkCoords.getX(), chunkCoords.getZ());
-                if(in == null) return Optional.empty();
-
-                try (NbtDataInputStream nbt = new NbtDataInputStream(in, false)) {
-                    return Optional.of(nbt.read());
-                }
+                return chunkIo.readChunkData(chunkCoords.getX(), chunkCoords.getZ());
             } catch (IOException e) {
                 return Optional.empty();
             }
         });
     }
 
+    /**
+     * Reads the data of many chunks at once, see
+     * {@link AnvilChunkIoService#readChunkData(Collection, Executor)}. This
+     * is preferable to {@link #getChunkData(Vector3i)} when many chunks are
+     * needed at the same time, such as when a player joins or teleports.
+     * @param chunkCoords The coordinates of the chunks
+     * @return The future of the data of each chunk
+     */
+    public Map<Vector3i, ListenableFuture<Optional<DataContainer>>> getChunkData(Collection<Vector3i> chunkCoords) {
+        return chunkIo.readChunkData(chunkCoords, executor);
+    }
+
+    /**
+     * Reads the data of many chunks at once as lazy views, see
+     * {@link AnvilChunkIoService#readLazyChunkData(Collection, Executor)}.
+     * @param chunkCoords The coordinates of the chunks
+     * @return The future of the view of the data of each chunk
+     */
+    public Map<Vector3i, ListenableFuture<Optional<NbtLazyCompound>>> getLazyChunkData(Collection<Vector3i> chunkCoords) {
+        return chunkIo.readLazyChunkData(chunkCoords, executor);
+    }
+
+    /**
+     * Gets the directory this world is stored in.
+     * @return The world directory
+     */
+    public Path getWorldDirectory() {
+        return this.worldDir;
+    }
+
+    /**
+     * Gets the service used to read and write the chunks of this world.
+     * @return The chunk I/O service
+     */
+    public AnvilChunkIoService getChunkIoService() {
+        return this.chunkIo;
+    }
+
+    /**
+     * Gets the index of the chunks stored in this world.
+     * @return The chunk presence index
+     */
+    public ChunkPresenceIndex getPresenceIndex() {
+        return this.presence;
+    }
+
+    /**
+     * Gets the group committer which syncs the region files of this world.
+     * @return The group committer
+     */
+    public GroupCommitter getCommitter() {
+        return this.committer;
+    }
+
+    /**
+     * Gets the compactor which reclaims the unused space of the region files
+     * of this world.
+     * @return The region compactor
+     */
+    public RegionCompactor getCompactor() {
+        return this.compactor;
+    }
+
+    /**
+     * Starts compacting the region files of this world in the background.
+     */
+    public void startCompaction() {
+        this.compactor.start();
+    }
+
+    /**
+     * Writes any chunks waiting to be saved, forces them to the disk and
+     * closes all region files.
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        compactor.close();
+        chunkIo.unload();
+        committer.close();
+        regions.clear();
+        presence.save();
+    }
+
     @Override
     public LanternWorldProperties getWorldProperties() {
         LanternWorldProperties properties = new LanternWorldProperties();
@@ -47,9 +47,14 @@ public class MultiRegionStream implements ChunkDataStream {
     private Set<RegionStream> remaining;
 
     public MultiRegionStream(RegionFileCache cache) {
+        this(cache, null);
+    }
+
+    public MultiRegionStream(RegionFileCache cache, @Nullable ChunkPresenceIndex presence) {
         try {
-            Collection<RegionFile> regions = cache.getCreatedRegions();
-            streams = regions.stream().map(RegionStream::new).collect(Collectors.toSet());
+            streams = cache.getCreatedRegions().stream()
+                    .map(region -> new RegionStream(cache, presence, region))
+                    .collect(Collectors.toList());
             iterator = streams.iterator();
             remaining = Sets.newHashSet(streams);
             if(iterator.hasNext()) {
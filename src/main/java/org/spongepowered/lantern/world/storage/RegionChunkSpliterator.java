@@ -0,0 +1,177 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import com.flowpowered.math.vector.Vector2i;
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.util.nbt.NbtBufferReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Spliterator} over the chunks stored in a list of regions, which
+ * decodes each chunk as it is traversed.
+ *
+ * <p>Chunks are addressed by a position made of the index of their region
+ * in the list and their index inside the region. Splitting happens on region
+ * boundaries first, and only divides a single region once nothing else is
+ * left, so that parallel workers rarely share a region file.</p>
+ */
+class RegionChunkSpliterator implements Spliterator<DataContainer> {
+
+    private static final int CHUNKS = 32 * 32;
+    private static final int MIN_SPLIT = 128;
+
+    private final RegionFileCache cache;
+    private final List<Vector2i> regions;
+    private final Predicate<? super RegionFile> filter;
+    private long position;
+    private final long end;
+
+    /* the region the filter was last tested against, and its result */
+    private int filtered = -1;
+    private boolean accepted;
+
+    RegionChunkSpliterator(RegionFileCache cache, List<Vector2i> regions, Predicate<? super RegionFile> filter) {
+        this(cache, regions, filter, 0, (long) regions.size() * CHUNKS);
+    }
+
+    private RegionChunkSpliterator(RegionFileCache cache, List<Vector2i> regions, Predicate<? super RegionFile> filter,
+            long position, long end) {
+        this.cache = cache;
+        this.regions = regions;
+        this.filter = filter;
+        this.position = position;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super DataContainer> action) {
+        DataContainer chunk = next();
+        if (chunk == null) {
+            return false;
+        }
+        action.accept(chunk);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super DataContainer> action) {
+        for (DataContainer chunk = next(); chunk != null; chunk = next()) {
+            action.accept(chunk);
+        }
+    }
+
+    /**
+     * Reads the next stored chunk. The region is only pinned while the chunk
+     * is read, never while the action runs, so that it can still be closed
+     * or replaced by the cache in the meantime.
+     */
+    @Nullable
+    private DataContainer next() {
+        while (position < end) {
+            int regionIndex = (int) (position / CHUNKS);
+            long regionEnd = Math.min(end, (regionIndex + 1L) * CHUNKS);
+            Vector2i region = regions.get(regionIndex);
+            try (RegionFileCache.Handle handle = cache.acquire(region.getX() << 5, region.getY() << 5)) {
+                if (accept(regionIndex, handle.getRegion())) {
+                    while (position < regionEnd) {
+                        DataContainer chunk = read(handle.getRegion(), (int) (position++ % CHUNKS));
+                        if (chunk != null) {
+                            return chunk;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                SpongeImpl.getLogger().warn("Unable to open region " + region + " to stream its chunks", e);
+            }
+            position = regionEnd;
+        }
+        return null;
+    }
+
+    private boolean accept(int regionIndex, RegionFile region) {
+        if (filtered != regionIndex) {
+            filtered = regionIndex;
+            accepted = filter.test(region);
+        }
+        return accepted;
+    }
+
+    @Nullable
+    private static DataContainer read(RegionFile region, int index) {
+        int x = index & 31;
+        int z = index >> 5;
+        if (!region.hasChunk(x, z)) {
+            return null;
+        }
+        try {
+            ByteBuffer data = region.getChunkData(x, z);
+            return data == null ? null : new NbtBufferReader(data).read();
+        } catch (IOException e) {
+            SpongeImpl.getLogger().warn("Unable to read chunk (" + x + ", " + z + ") of region " + region.getPath(), e);
+            return null;
+        }
+    }
+
+    @Nullable
+    @Override
+    public Spliterator<DataContainer> trySplit() {
+        long remaining = end - position;
+        long mid;
+        if (end - 1 - (end - 1) % CHUNKS > position) {
+            // more than one region is left, split on a region boundary
+            long firstRegion = position / CHUNKS;
+            long lastRegion = (end - 1) / CHUNKS;
+            mid = (firstRegion + (lastRegion - firstRegion + 1) / 2) * CHUNKS;
+        } else if (remaining >= MIN_SPLIT * 2) {
+            mid = position + remaining / 2;
+        } else {
+            return null;
+        }
+
+        RegionChunkSpliterator prefix = new RegionChunkSpliterator(cache, regions, filter, position, mid);
+        position = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - position;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import com.flowpowered.math.vector.Vector2i;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.spongepowered.lantern.SpongeImpl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reclaims the unused sectors of the regions of a world in the background.
+ *
+ * <p>A region whose share of unused sectors exceeds the threshold is copied
+ * chunk by chunk into a new file, at a limited rate so the copy doesn't
+ * compete with the world for I/O. Chunks written while the copy is running
+ * are copied again once the region is held exclusively, after which the new
+ * file is swapped in through the {@link RegionFileCache}.</p>
+ *
+ * <p>Each pass checks every open region, as only regions being written to
+ * fragment, and a few regions which aren't open, so that regions which were
+ * fragmented before the server started are eventually compacted too.</p>
+ */
+public class RegionCompactor {
+
+    /* regions smaller than this aren't worth rewriting */
+    private static final long MIN_RECLAIMED_BYTES = 256 * 1024;
+    /* the number of regions which aren't open checked in each pass */
+    private static final int CLOSED_REGIONS_PER_PASS = 8;
+
+    private final RegionFileCache regions;
+    private final String name;
+    private final long intervalMillis;
+    private final int thresholdPercent;
+    private final RateLimiter limiter;
+    private final ScheduledExecutorService executor;
+
+    private volatile boolean closed;
+    private int nextClosedRegion;
+
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    /**
+     * Creates a new compactor.
+     * @param regions The regions of the world
+     * @param name The name of the world, used for the compaction thread
+     * @param intervalMillis The time between passes over the regions
+     * @param thresholdPercent The share of unused sectors which makes a
+     *     region be compacted
+     * @param bytesPerSecond The rate at which chunks are copied
+     */
+    public RegionCompactor(RegionFileCache regions, String name, long intervalMillis, int thresholdPercent, long bytesPerSecond) {
+        this.regions = regions;
+        this.name = name;
+        this.intervalMillis = intervalMillis;
+        this.thresholdPercent = thresholdPercent;
+        this.limiter = RateLimiter.create(Math.max(1, bytesPerSecond));
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("Lantern-region-compactor-" + name)
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build());
+    }
+
+    /**
+     * Starts compacting regions periodically, unless the interval is 0.
+     */
+    public void start() {
+        if (intervalMillis > 0) {
+            executor.scheduleWithFixedDelay(this::compactQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compactAll();
+        } catch (Exception e) {
+            SpongeImpl.getLogger().warn("Failed to compact the regions of " + name, e);
+        }
+    }
+
+    /**
+     * Runs a single pass over the regions, compacting those which need it.
+     * @throws IOException if the regions could not be listed
+     */
+    public void compactAll() throws IOException {
+        for (Vector2i region : regions.getOpenRegions()) {
+            if (closed) {
+                return;
+            }
+            compactIfNeeded(region);
+        }
+
+        List<Vector2i> created = regions.getCreatedRegions();
+        for (int i = 0; i < Math.min(CLOSED_REGIONS_PER_PASS, created.size()) && !closed; i++) {
+            nextClosedRegion = (nextClosedRegion + 1) % created.size();
+            compactIfNeeded(created.get(nextClosedRegion));
+        }
+    }
+
+    private void compactIfNeeded(Vector2i coords) {
+        try (RegionFileCache.Handle handle = regions.acquire(coords.getX() << 5, coords.getY() << 5)) {
+            RegionFile region = handle.getRegion();
+            long wasted = region.getWastedBytes();
+            if (wasted >= MIN_RECLAIMED_BYTES && wasted * 100 >= region.getFileSize() * thresholdPercent) {
+                compact(handle);
+            }
+        } catch (IOException e) {
+            SpongeImpl.getLogger().warn("Failed to compact region " + coords + " of " + name, e);
+        }
+    }
+
+    /**
+     * Compacts a region.
+     * @param handle The handle of the region
+     * @return Whether the region was replaced by its compacted copy
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean compact(RegionFileCache.Handle handle) throws IOException {
+        RegionFile region = handle.getRegion();
+        long before = region.getFileSize();
+        Path temp = region.getPath().resolveSibling(region.getPath().getFileName() + ".compact");
+        Files.deleteIfExists(temp);
+
+        RegionFile target = new RegionFile(temp);
+        boolean[] open = {true};
+        try {
+            int copiedUntil = region.getWriteCount();
+            for (int i = 0; i < 32 * 32; i++) {
+                if (closed) {
+                    return false;
+                }
+                copy(region, target, i & 31, i >> 5, true);
+            }
+
+            // if the region is in use, it is compacted again on a later pass
+            boolean replaced = regions.replace(handle, temp, exclusive -> {
+                // copy what was written in the meantime, nobody writes now
+                for (int i = 0; i < 32 * 32; i++) {
+                    if (exclusive.getWriteStamp(i & 31, i >> 5) > copiedUntil) {
+                        copy(exclusive, target, i & 31, i >> 5, false);
+                    }
+                }
+                open[0] = false;
+                target.close();
+                return true;
+            });
+            if (replaced) {
+                long reclaimed = before - handle.getRegion().getFileSize();
+                compactions.incrementAndGet();
+                reclaimedBytes.addAndGet(reclaimed);
+                SpongeImpl.getLogger().debug("Compacted region " + region.getPath() + " of " + name + ", reclaimed " + reclaimed / 1024 + " KB");
+            }
+            return replaced;
+        } finally {
+            if (open[0]) {
+                target.close();
+            }
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void copy(RegionFile from, RegionFile to, int x, int z, boolean throttle) throws IOException {
+        ByteBuffer stored = from.getStoredChunkData(x, z);
+        if (stored == null) {
+            return;
+        }
+        if (throttle) {
+            limiter.acquire(Math.max(1, stored.remaining()));
+        }
+        to.writeStoredChunkData(x, z, stored, from.getTimestamp(x, z));
+    }
+
+    /**
+     * Gets the number of regions which were compacted.
+     * @return The number of compactions
+     */
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    /**
+     * Gets the number of bytes freed by compactions.
+     * @return The reclaimed bytes
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * Stops compacting, abandoning a compaction in progress.
+     */
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -84,47 +84,96 @@ package org.spongepowered.lantern.world.storage;
  A version of 2 represents a deflated (zlib compressed) NBT file. The deflated
  data is the chunk length - 1.
 
+ A version of 3 represents an uncompressed NBT file, and a version of 4 an
+ NBT file compressed in LZ4 blocks. See ChunkCompression.
+
  */
 
 import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.util.ByteBufferInputStream;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
 
+/**
+ * A region file backed by a {@link FileChannel}. Chunk reads are served from
+ * read-only memory mappings of the file, so any number of threads may read
+ * chunks concurrently without sharing a file pointer. Writes are positional
+ * and serialized on the region.
+ *
+ * <p>Readers hold the read lock of the region while they look up a chunk and
+ * copy it out of the mapping, and writes hold the write lock while they move
+ * sectors around, so a reader never sees a chunk which is being rewritten or
+ * sectors which were reused by another chunk.</p>
+ *
+ * <p>The file is mapped in windows of {@value #WINDOW_SECTORS} sectors, each
+ * extended by the largest chunk size so that every chunk lies within the
+ * window of its first sector. Windows are mapped lazily, only the last one is
+ * remapped as the file grows, and all of them are unmapped when the region is
+ * closed.</p>
+ */
 public class RegionFile implements Iterable<DataInputStream> {
 
-    private static final int VERSION_GZIP = 1;
-    private static final int VERSION_DEFLATE = 2;
-
     private static final int SECTOR_BYTES = 4096;
     private static final int SECTOR_INTS = SECTOR_BYTES / 4;
 
     private static final int CHUNK_HEADER_SIZE = 5;
+    /* the largest number of sectors a chunk can take */
+    private static final int MAX_CHUNK_SECTORS = 255;
+    /* the number of sectors each mapping window starts after the previous one */
+    private static final int WINDOW_SECTORS = 1024;
     private static final byte[] emptySector = new byte[SECTOR_BYTES];
 
-    private RandomAccessFile file;
+    /* runs the cleaner of a mapping, which is internal to the JDK, or null if it isn't accessible */
+    @Nullable private static final MethodHandle UNMAP = findUnmap();
+
+    private final Path path;
+    @Nullable private final WriteListener listener;
+    private final FileChannel channel;
     private final int[] offsets;
     private final int[] chunkTimestamps;
-    private ArrayList<Boolean> sectorFree;
+    private final SectorAllocator sectors;
+    private volatile int sectorCount;
+    /* guards the offsets and the mapping windows, see the class documentation */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /* the mappings of the file, by window index, or null entries if not yet mapped */
+    private MappedByteBuffer[] windows = new MappedByteBuffer[0];
+    private boolean closed;
     private int sizeDelta;
     private long lastModified = 0;
+    private long unsyncedBytes;
+    private boolean unsyncedGrowth;
+    /* counts the writes, and remembers the count at the last write of each chunk */
+    private final int[] writeStamps = new int[SECTOR_INTS];
+    private int writeCount;
 
     public RegionFile(Path path) throws IOException {
+        this(path, null);
+    }
+
+    public RegionFile(Path path, @Nullable WriteListener listener) throws IOException {
+        this.path = path;
+        this.listener = listener;
         offsets = new int[SECTOR_INTS];
         chunkTimestamps = new int[SECTOR_INTS];
 
@@ -134,65 +183,63 @@ public class RegionFile implements Iterable<DataInputStream> {
             lastModified = Files.getLastModifiedTime(path).toMillis();
         }
 
-        file = new RandomAccessFile(path.toFile(), "rw");
-
-        // seek to the end to prepare size checking
-        file.seek(file.length());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
 
         // if the file size is under 8KB, grow it (4K chunk offset table, 4K timestamp table)
-        if (file.length() < 2 * SECTOR_BYTES) {
-            sizeDelta += 2 * SECTOR_BYTES - file.length();
+        long length = channel.size();
+        if (length < 2 * SECTOR_BYTES) {
+            sizeDelta += 2 * SECTOR_BYTES - length;
             if (lastModified != 0) {
                 // only give a warning if the region file existed beforehand
-                SpongeImpl.getLogger().warn("Region \"" + path + "\" under 8K: " + file.length() + " increasing by " + (2 * SECTOR_BYTES - file.length()));
+                SpongeImpl.getLogger().warn("Region \"" + path + "\" under 8K: " + length + " increasing by " + (2 * SECTOR_BYTES - length));
             }
 
-            for (long i = file.length(); i < 2 * SECTOR_BYTES; ++i) {
-                file.write(0);
-            }
+            writeFully(ByteBuffer.allocate((int) (2 * SECTOR_BYTES - length)), length);
+            length = channel.size();
         }
 
         // if the file size is not a multiple of 4KB, grow it
-        if ((file.length() & 0xfff) != 0) {
-            sizeDelta += SECTOR_BYTES - (file.length() & 0xfff);
-            SpongeImpl.getLogger().warn("Region \"" + path + "\" not aligned: " + file.length() + " increasing by " + (SECTOR_BYTES - (file.length() & 0xfff)));
+        if ((length & 0xfff) != 0) {
+            sizeDelta += SECTOR_BYTES - (length & 0xfff);
+            SpongeImpl.getLogger().warn("Region \"" + path + "\" not aligned: " + length + " increasing by " + (SECTOR_BYTES - (length & 0xfff)));
 
-            for (long i = file.length() & 0xfff; i < SECTOR_BYTES; ++i) {
-                file.write(0);
-            }
+            writeFully(ByteBuffer.wrap(emptySector, 0, (int) (SECTOR_BYTES - (length & 0xfff))), length);
+            length = channel.size();
         }
 
         // set up the available sector map
-        int nSectors = (int) (file.length() / SECTOR_BYTES);
-        sectorFree = new ArrayList<>(nSectors);
-        for (int i = 0; i < nSectors; ++i) {
-            sectorFree.add(true);
-        }
+        int nSectors = (int) (length / SECTOR_BYTES);
+        sectors = new SectorAllocator(nSectors);
+        sectorCount = nSectors;
+
+        sectors.reserve(0, 1); // chunk offset table
+        sectors.reserve(1, 1); // for the last modified info
 
-        sectorFree.set(0, false); // chunk offset table
-        sectorFree.set(1, false); // for the last modified info
+        // read offsets and timestamps from the header tables
+        ByteBuffer header = ByteBuffer.allocate(2 * SECTOR_BYTES);
+        readFully(header, 0);
+        header.flip();
+        IntBuffer headerInts = header.asIntBuffer();
+        headerInts.get(offsets);
+        headerInts.get(chunkTimestamps);
 
-        // read offsets from offset table
-        file.seek(0);
         for (int i = 0; i < SECTOR_INTS; ++i) {
-            int offset = file.readInt();
-            offsets[i] = offset;
+            int offset = offsets[i];
 
             int startSector = (offset >> 8);
             int numSectors = (offset & 0xff);
 
-            if (offset != 0 && startSector >= 0 && startSector + numSectors <= sectorFree.size()) {
-                for (int sectorNum = 0; sectorNum < numSectors; ++sectorNum) {
-                    sectorFree.set(startSector + sectorNum, false);
-                }
+            if (offset != 0 && startSector >= 0 && startSector + numSectors <= nSectors) {
+                sectors.reserve(startSector, numSectors);
             } else if (offset != 0) {
                 SpongeImpl.getLogger().warn("Region \"" + path + "\": offsets[" + i + "] = " + offset + " -> " + startSector + "," + numSectors + " does not fit");
             }
         }
-        // read timestamps from timestamp table
-        for (int i = 0; i < SECTOR_INTS; ++i) {
-            chunkTimestamps[i] = file.readInt();
-        }
+    }
+
+    /* the path of the region file on the disk */
+    public Path getPath() {
+        return path;
     }
 
     /* the modification date of the region file when it was first opened */
@@ -201,7 +248,7 @@ public class RegionFile implements Iterable<DataInputStream> {
     }
 
     /* gets how much the region file has grown since it was last checked */
-    public int getSizeDelta() {
+    public synchronized int getSizeDelta() {
         int ret = sizeDelta;
         sizeDelta = 0;
         return ret;
@@ -215,45 +262,213 @@ public class RegionFile implements Iterable<DataInputStream> {
     public DataInputStream getChunkDataInputStream(int x, int z) throws IOException {
         checkBounds(x, z);
 
-        int offset = getOffset(x, z);
-        if (offset == 0) {
+        ByteBuffer data = readChunk(x + z * 32, true);
+        if (data == null) {
             // does not exist
             return null;
         }
+        return new DataInputStream(new ByteBufferInputStream(data));
+    }
+
+    /**
+     * Gets the uncompressed data of a chunk as a single buffer, without
+     * layering streams over the stored data.
+     * @param x The local chunk x coordinate
+     * @param z The local chunk z coordinate
+     * @return The uncompressed chunk data, or null if the chunk is not stored
+     * @throws IOException if an I/O error occurs or the data is corrupt
+     */
+    @Nullable
+    public ByteBuffer getChunkData(int x, int z) throws IOException {
+        checkBounds(x, z);
+        return readChunk(x + z * 32, true);
+    }
+
+    /**
+     * Gets the uncompressed data of several chunks. Their sectors are read
+     * out of the mapping in ascending order under a single read lock, so
+     * that a batch of neighbouring chunks faults in the file sequentially
+     * rather than at random.
+     * @param indices The indices of the chunks, {@code x + z * 32}
+     * @return The uncompressed data of the chunks in the order of the
+     *     indices, with null elements for chunks which aren't stored
+     * @throws IOException if an I/O error occurs or any of the data is
+     *     corrupt
+     */
+    public ByteBuffer[] getChunkData(int[] indices) throws IOException {
+        for (int index : indices) {
+            checkBounds(index & 31, index >> 5);
+        }
+        ByteBuffer[] data = new ByteBuffer[indices.length];
+        long[] order = new long[indices.length];
+        lock.readLock().lock();
+        try {
+            while (true) {
+                // sort the chunks which are still to be read by sector, keeping their position in the low bits
+                int count = 0;
+                for (int i = 0; i < indices.length; i++) {
+                    int offset = offsets[indices[i]];
+                    if (offset != 0 && data[i] == null) {
+                        order[count++] = ((long) offset << 32) | i;
+                    }
+                }
+                Arrays.sort(order, 0, count);
+
+                int unmapped = 0;
+                for (int n = 0; n < count; n++) {
+                    int offset = (int) (order[n] >>> 32);
+                    ByteBuffer stored = getStoredChunk(offset);
+                    if (stored == null) {
+                        unmapped = offset;
+                        break;
+                    }
+                    int version = stored.get() & 0xff;
+                    // every compression copies, so the result outlives the lock
+                    data[(int) order[n]] = ChunkCompression.byVersion(version).decompress(stored);
+                }
+                if (unmapped == 0) {
+                    return data;
+                }
+
+                // a window isn't mapped far enough, which needs the write lock
+                lock.readLock().unlock();
+                try {
+                    mapWindow(unmapped);
+                } finally {
+                    lock.readLock().lock();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a chunk out of the mapping under the read lock, mapping its
+     * window first if needed.
+     * @param index The index of the chunk, {@code x + z * 32}
+     * @param decompress Whether to decompress the chunk, or to copy its
+     *     stored form, the version byte followed by the compressed payload
+     * @return The chunk data, which is never backed by the mapping, or null
+     *     if the chunk is not stored
+     */
+    @Nullable
+    private ByteBuffer readChunk(int index, boolean decompress) throws IOException {
+        lock.readLock().lock();
+        try {
+            while (true) {
+                int offset = offsets[index];
+                if (offset == 0) {
+                    return null;
+                }
+                ByteBuffer stored = getStoredChunk(offset);
+                if (stored != null) {
+                    if (decompress) {
+                        int version = stored.get() & 0xff;
+                        // every compression copies, so the result outlives the lock
+                        return ChunkCompression.byVersion(version).decompress(stored);
+                    }
+                    ByteBuffer copy = ByteBuffer.allocate(stored.remaining());
+                    copy.put(stored);
+                    copy.flip();
+                    return copy;
+                }
 
-        return getChunkDataInputStream(offset);
+                // the window isn't mapped far enough, which needs the write lock
+                lock.readLock().unlock();
+                try {
+                    mapWindow(offset);
+                } finally {
+                    lock.readLock().lock();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private DataInputStream getChunkDataInputStream(int offset) throws IOException {
+    /**
+     * Gets a view of the stored form of a chunk, positioned at its version
+     * byte and limited to the end of its compressed data. The view must only
+     * be used while holding the read lock.
+     * @return The view, or null if the window of the chunk has to be mapped
+     */
+    @Nullable
+    private ByteBuffer getStoredChunk(int offset) throws IOException {
         int sectorNumber = offset >> 8;
         int numSectors = offset & 0xFF;
-        if (sectorNumber + numSectors > sectorFree.size()) {
-            throw new IOException("Invalid sector: " + sectorNumber + "+" + numSectors + " > " + sectorFree.size());
+        int sectors = sectorCount;
+        if (sectorNumber + numSectors > sectors) {
+            throw new IOException("Invalid sector: " + sectorNumber + "+" + numSectors + " > " + sectors);
+        }
+        if (closed) {
+            throw new IOException("Region \"" + path + "\" is closed");
         }
 
-        file.seek(sectorNumber * SECTOR_BYTES);
-        int length = file.readInt();
-        if (length > SECTOR_BYTES * numSectors) {
-            throw new IOException("Invalid length: " + length + " > " + (SECTOR_BYTES * numSectors));
+        int window = sectorNumber / WINDOW_SECTORS;
+        MappedByteBuffer map = window < windows.length ? windows[window] : null;
+        int position = (sectorNumber - window * WINDOW_SECTORS) * SECTOR_BYTES;
+        int end = position + numSectors * SECTOR_BYTES;
+        if (map == null || end > map.capacity()) {
+            return null;
         }
 
-        byte version = file.readByte();
-        if (version == VERSION_GZIP) {
-            byte[] data = new byte[length - 1];
-            file.read(data);
-            return new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
-        } else if (version == VERSION_DEFLATE) {
-            byte[] data = new byte[length - 1];
-            file.read(data);
-            return new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+        ByteBuffer buffer = map.duplicate();
+        buffer.limit(end);
+        buffer.position(position);
+        buffer = buffer.slice();
+        int length = buffer.getInt();
+        if (length <= 0 || length > SECTOR_BYTES * numSectors - 4) {
+            throw new IOException("Invalid length: " + length + " in " + numSectors + " sectors");
         }
 
-        throw new IOException("Unknown version: " + version);
+        buffer.limit(buffer.position() + length);
+        return buffer;
+    }
+
+    /**
+     * Maps the window holding the first sector of a chunk, as far as the file
+     * reaches, replacing and unmapping a shorter mapping of it.
+     */
+    private void mapWindow(int offset) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("Region \"" + path + "\" is closed");
+            }
+            int window = (offset >> 8) / WINDOW_SECTORS;
+            if (window >= windows.length) {
+                windows = Arrays.copyOf(windows, window + 1);
+            }
+            long start = (long) window * WINDOW_SECTORS * SECTOR_BYTES;
+            long end = Math.min(start + (long) (WINDOW_SECTORS + MAX_CHUNK_SECTORS) * SECTOR_BYTES, (long) sectorCount * SECTOR_BYTES);
+            MappedByteBuffer map = windows[window];
+            if (map == null || map.capacity() < end - start) {
+                windows[window] = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                if (map != null) {
+                    unmap(map);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public DataOutputStream getChunkDataOutputStream(int x, int z) {
+        return getChunkDataOutputStream(x, z, ChunkCompression.DEFAULT);
+    }
+
+    /**
+     * Gets a stream which writes the chunk once it is closed, compressed
+     * with the given compression.
+     * @param x The local chunk x coordinate
+     * @param z The local chunk z coordinate
+     * @param compression The compression to store the chunk with
+     * @return The stream of the uncompressed chunk data
+     */
+    public DataOutputStream getChunkDataOutputStream(int x, int z, ChunkCompression compression) {
         checkBounds(x, z);
-        return new DataOutputStream(new DeflaterOutputStream(new ChunkBuffer(x, z), new Deflater(Deflater.BEST_SPEED)));
+        return new DataOutputStream(new ChunkBuffer(x, z, compression));
     }
 
     /*
@@ -262,25 +477,42 @@ public class RegionFile implements Iterable<DataInputStream> {
      */
     class ChunkBuffer extends ByteArrayOutputStream {
         private final int x, z;
+        private final ChunkCompression compression;
 
-        public ChunkBuffer(int x, int z) {
-            super(8096); // initialize to 8KB
+        public ChunkBuffer(int x, int z, ChunkCompression compression) {
+            super(32768); // initialize to 32KB, uncompressed chunks are rarely smaller
             this.x = x;
             this.z = z;
+            this.compression = compression;
         }
 
         @Override
         public void close() throws IOException {
+            ByteBuffer data = compression.compress(buf, count);
             try {
-                RegionFile.this.write(x, z, buf, count);
+                RegionFile.this.write(x, z, data, compression.getVersion());
             } finally {
                 super.close();
             }
+            if (listener != null) {
+                listener.onWrite(RegionFile.this, x, z, data.remaining());
+            }
         }
     }
 
     /* write a chunk at (x,z) with length bytes of data to disk */
-    protected void write(int x, int z, byte[] data, int length) throws IOException {
+    protected synchronized void write(int x, int z, ByteBuffer data, int version) throws IOException {
+        // no reader may copy out of sectors while they are rewritten or reused
+        lock.writeLock().lock();
+        try {
+            writeLocked(x, z, data, version);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeLocked(int x, int z, ByteBuffer data, int version) throws IOException {
+        int length = data.remaining();
         int offset = getOffset(x, z);
         int sectorNumber = offset >> 8;
         int sectorsAllocated = offset & 0xFF;
@@ -288,73 +520,100 @@ public class RegionFile implements Iterable<DataInputStream> {
 
         // maximum chunk size is 1MB
         if (sectorsNeeded >= 256) {
-            return;
+            throw new IOException("Chunk (" + x + ", " + z + ") of region \"" + path + "\" is too large: " + length + " bytes");
         }
 
-        if (sectorNumber != 0 && sectorsAllocated == sectorsNeeded) {
-            /* we can simply overwrite the old sectors */
-            write(sectorNumber, data, length);
+        if (sectorNumber != 0 && sectorsAllocated >= sectorsNeeded) {
+            /* we can simply overwrite the old sectors, releasing any left over */
+            write(sectorNumber, data, version);
+            if (sectorsAllocated != sectorsNeeded) {
+                setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
+                sectors.free(sectorNumber + sectorsNeeded, sectorsAllocated - sectorsNeeded);
+            }
         } else {
-            /* we need to allocate new sectors */
-
             /* mark the sectors previously used for this chunk as free */
-            for (int i = 0; i < sectorsAllocated; ++i) {
-                sectorFree.set(sectorNumber + i, true);
+            if (sectorNumber != 0) {
+                sectors.free(sectorNumber, sectorsAllocated);
             }
 
-            /* scan for a free space large enough to store this chunk */
-            int runStart = sectorFree.indexOf(true);
-            int runLength = 0;
-            if (runStart != -1) {
-                for (int i = runStart; i < sectorFree.size(); ++i) {
-                    if (runLength != 0) {
-                        if (sectorFree.get(i)) runLength++;
-                        else runLength = 0;
-                    } else if (sectorFree.get(i)) {
-                        runStart = i;
-                        runLength = 1;
-                    }
-                    if (runLength >= sectorsNeeded) {
-                        break;
-                    }
+            /* find the best fitting free run, growing the file if there is none */
+            int fileSectors = sectors.getSectorCount();
+            sectorNumber = sectors.allocate(sectorsNeeded);
+            int newSectors = sectors.getSectorCount();
+            if (newSectors > fileSectors) {
+                for (int i = fileSectors; i < newSectors; ++i) {
+                    writeFully(ByteBuffer.wrap(emptySector), (long) i * SECTOR_BYTES);
                 }
+                sectorCount = newSectors;
+                sizeDelta += SECTOR_BYTES * (newSectors - fileSectors);
+                unsyncedGrowth = true;
             }
 
-            if (runLength >= sectorsNeeded) {
-                /* we found a free space large enough */
-                sectorNumber = runStart;
-                setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
-                for (int i = 0; i < sectorsNeeded; ++i) {
-                    sectorFree.set(sectorNumber + i, false);
-                }
-                write(sectorNumber, data, length);
-            } else {
-                /*
-                 * no free space large enough found -- we need to grow the
-                 * file
-                 */
-                file.seek(file.length());
-                sectorNumber = sectorFree.size();
-                for (int i = 0; i < sectorsNeeded; ++i) {
-                    file.write(emptySector);
-                    sectorFree.add(false);
-                }
-                sizeDelta += SECTOR_BYTES * sectorsNeeded;
-
-                write(sectorNumber, data, length);
-                setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
-            }
+            write(sectorNumber, data, version);
+            setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
         }
         setTimestamp(x, z, (int) (System.currentTimeMillis() / 1000L));
-        //file.getChannel().force(true);
+        unsyncedBytes += length;
+        writeStamps[x + z * 32] = ++writeCount;
+    }
+
+    /**
+     * Gets a copy of the stored form of a chunk, its version byte followed
+     * by the compressed payload.
+     */
+    @Nullable
+    synchronized ByteBuffer getStoredChunkData(int x, int z) throws IOException {
+        checkBounds(x, z);
+        return readChunk(x + z * 32, false);
+    }
+
+    /**
+     * Writes a chunk in the stored form returned by
+     * {@link #getStoredChunkData(int, int)}, keeping its timestamp.
+     */
+    synchronized void writeStoredChunkData(int x, int z, ByteBuffer stored, int timestamp) throws IOException {
+        checkBounds(x, z);
+        ByteBuffer payload = stored.duplicate();
+        int version = payload.get() & 0xff;
+        write(x, z, payload, version);
+        setTimestamp(x, z, timestamp);
+    }
+
+    /* gets the number of chunk writes since the region was opened */
+    synchronized int getWriteCount() {
+        return writeCount;
+    }
+
+    /* gets the write count at the time the chunk was last written, or 0 */
+    synchronized int getWriteStamp(int x, int z) {
+        return writeStamps[x + z * 32];
     }
 
     /* write a chunk data to the region file at specified sector number */
-    private void write(int sectorNumber, byte[] data, int length) throws IOException {
-        file.seek(sectorNumber * SECTOR_BYTES);
-        file.writeInt(length + 1); // chunk length
-        file.writeByte(VERSION_DEFLATE); // chunk version number
-        file.write(data, 0, length); // chunk data
+    private void write(int sectorNumber, ByteBuffer data, int version) throws IOException {
+        long position = (long) sectorNumber * SECTOR_BYTES;
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        header.putInt(data.remaining() + 1); // chunk length
+        header.put((byte) version); // chunk version number
+        header.flip();
+        writeFully(header, position);
+        writeFully(data.duplicate(), position + CHUNK_HEADER_SIZE); // chunk data
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of region \"" + path + "\"");
+            }
+            position += read;
+        }
     }
 
     /* is this an invalid chunk coordinate? */
@@ -369,24 +628,170 @@ public class RegionFile implements Iterable<DataInputStream> {
     }
 
     public boolean hasChunk(int x, int z) {
-        return getOffset(x, z) != 0;
+        lock.readLock().lock();
+        try {
+            return getOffset(x, z) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the time the chunk was last written, as stored in the header.
+     * @param x The local chunk x coordinate
+     * @param z The local chunk z coordinate
+     * @return The timestamp in seconds since the epoch, or 0 if unknown
+     */
+    public int getTimestamp(int x, int z) {
+        checkBounds(x, z);
+        return chunkTimestamps[x + z * 32];
+    }
+
+    /**
+     * Gets the time any chunk of this region was last written, as stored in
+     * the header.
+     * @return The newest timestamp in seconds since the epoch, or 0 if unknown
+     */
+    public int getNewestTimestamp() {
+        int newest = 0;
+        for (int timestamp : chunkTimestamps) {
+            newest = Math.max(newest, timestamp);
+        }
+        return newest;
     }
 
     private void setOffset(int x, int z, int offset) throws IOException {
         offsets[x + z * 32] = offset;
-        file.seek((x + z * 32) * 4);
-        file.writeInt(offset);
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(0, offset);
+        writeFully(buffer, (x + z * 32) * 4);
     }
 
-    private void setTimestamp(int x, int z, int value) throws IOException {
+    /* also used to keep the timestamps of chunks copied between regions */
+    synchronized void setTimestamp(int x, int z, int value) throws IOException {
         chunkTimestamps[x + z * 32] = value;
-        file.seek(SECTOR_BYTES + (x + z * 32) * 4);
-        file.writeInt(value);
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(0, value);
+        writeFully(buffer, SECTOR_BYTES + (x + z * 32) * 4);
     }
 
-    public void close() throws IOException {
-        file.getChannel().force(true);
-        file.close();
+    /**
+     * Gets the size of the region file.
+     * @return The size in bytes
+     */
+    public long getFileSize() {
+        return (long) sectorCount * SECTOR_BYTES;
+    }
+
+    /**
+     * Gets the number of free sectors inside the region file.
+     * @return The number of free sectors
+     */
+    public synchronized int getFreeSectors() {
+        return sectors.getFreeSectors();
+    }
+
+    /**
+     * Gets the length of the largest run of free sectors inside the region
+     * file, which bounds the largest chunk that can be stored without growing
+     * the file.
+     * @return The largest free run, in sectors
+     */
+    public synchronized int getLargestFreeRun() {
+        return sectors.getLargestFreeRun();
+    }
+
+    /**
+     * Gets the number of separate free runs inside the region file.
+     * @return The number of free runs
+     */
+    public synchronized int getFreeRuns() {
+        return sectors.getFreeRuns();
+    }
+
+    /**
+     * Gets the number of bytes of the region file which are not occupied by
+     * any chunk.
+     * @return The number of wasted bytes
+     */
+    public synchronized long getWastedBytes() {
+        return (long) sectors.getFreeSectors() * SECTOR_BYTES;
+    }
+
+    /**
+     * Forces every write made since the last sync to the disk. The file
+     * metadata is only forced if the file has grown in the meantime.
+     * @return The number of chunk bytes which were made durable
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized long sync() throws IOException {
+        if (unsyncedBytes == 0 || !channel.isOpen()) {
+            return 0;
+        }
+        channel.force(unsyncedGrowth);
+        long synced = unsyncedBytes;
+        unsyncedBytes = 0;
+        unsyncedGrowth = false;
+        return synced;
+    }
+
+    public synchronized void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            // unmapped right away, so the file can be moved or deleted once this returns
+            closed = true;
+            for (MappedByteBuffer map : windows) {
+                if (map != null) {
+                    unmap(map);
+                }
+            }
+            windows = new MappedByteBuffer[0];
+        } finally {
+            lock.writeLock().unlock();
+        }
+        channel.force(true);
+        channel.close();
+    }
+
+    /**
+     * Releases a mapping of the file without waiting for it to be collected.
+     * The mapping must no longer be accessed, which the write lock ensures.
+     */
+    private static void unmap(MappedByteBuffer map) {
+        if (UNMAP == null) {
+            return;
+        }
+        try {
+            UNMAP.invokeExact((ByteBuffer) map);
+        } catch (Throwable t) {
+            SpongeImpl.getLogger().debug("Failed to unmap a region mapping", t);
+        }
+    }
+
+    /* the cleaner is reached through sun.misc.Cleaner on Java 8, and Unsafe.invokeCleaner later on */
+    @Nullable
+    private static MethodHandle findUnmap() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Class<?> directBuffer = Class.forName("sun.nio.ch.DirectBuffer");
+            Class<?> cleaner = Class.forName("sun.misc.Cleaner");
+            MethodHandle clean = MethodHandles.filterReturnValue(
+                    lookup.findVirtual(directBuffer, "cleaner", MethodType.methodType(cleaner)),
+                    lookup.findVirtual(cleaner, "clean", MethodType.methodType(void.class)));
+            return clean.asType(MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            // not Java 8
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return lookup.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            SpongeImpl.getLogger().debug("Region mappings can't be unmapped explicitly, they are released once unreachable", e);
+            return null;
+        }
     }
 
     /**
@@ -395,12 +800,32 @@ public class RegionFile implements Iterable<DataInputStream> {
      */
     // TODO: Cache this number?
     public int getChunkCount() {
-        int count = 0;
-        for(int offset : offsets) {
-            if(offset == 0) continue;
-            count++;
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for(int offset : offsets) {
+                if(offset == 0) continue;
+                count++;
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
         }
-        return count;
+    }
+
+    /**
+     * Notified after a chunk has been written to a region file.
+     */
+    public interface WriteListener {
+
+        /**
+         * Called after a chunk was written, outside of the region's lock.
+         * @param region The region that was written to
+         * @param x The local x coordinate of the chunk
+         * @param z The local z coordinate of the chunk
+         * @param bytes The number of compressed chunk bytes written
+         */
+        void onWrite(RegionFile region, int x, int z, int bytes);
     }
 
     @Override
@@ -423,7 +848,11 @@ public class RegionFile implements Iterable<DataInputStream> {
             if(offsetIndex == -1) throw new NoSuchElementException();
 
             try {
-                return getChunkDataInputStream(offsets[offsetIndex]);
+                ByteBuffer data = readChunk(offsetIndex, true);
+                if (data == null) {
+                    throw new NoSuchElementException("Chunk was removed");
+                }
+                return new DataInputStream(new ByteBufferInputStream(data));
             } catch (IOException e) {
                 throw new NoSuchElementException("Could not load chunk stream!");
             }
@@ -51,87 +51,488 @@ package org.spongepowered.lantern.world.storage;
  * Some changes have been made as part of the Glowstone project.
  */
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
-import com.google.common.collect.Maps;
+import com.flowpowered.math.vector.Vector2i;
 import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.util.LongObjectHashMap;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
-import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import javax.annotation.Nullable;
 
 /**
  * A simple cache and wrapper for efficiently accessing multiple RegionFiles
  * simultaneously.
+ *
+ * <p>Regions are keyed by their packed coordinates and kept open up to a hard
+ * limit, beyond which the least recently used region is closed. A region is
+ * pinned for as long as a {@link Handle} acquired for it is open, and pinned
+ * regions are never closed by the cache.</p>
  */
 public class RegionFileCache {
 
-    private static final int MAX_CACHE_SIZE = 256;
-
-    private final Cache<Path, RegionFile> cache;
+    public static final int DEFAULT_MAX_OPEN_FILES = 256;
 
     private final String extension;
     private final Path regionDir;
+    @Nullable private final RegionFile.WriteListener listener;
+    private final int maxOpenFiles;
+
+    private final LongObjectHashMap<Handle> handles = new LongObjectHashMap<>();
+    /**
+     * Sentinel of the recency list, its next entry is the least recently
+     * used region and its previous entry the most recently used.
+     */
+    private final Handle lru = new Handle(0);
+
+    private long hits;
+    private long misses;
+    private long opens;
+    private long closes;
 
     public RegionFileCache(Path basePath, String extension) {
+        this(basePath, extension, null, DEFAULT_MAX_OPEN_FILES);
+    }
+
+    public RegionFileCache(Path basePath, String extension, @Nullable RegionFile.WriteListener listener, int maxOpenFiles) {
         this.extension = extension;
+        this.listener = listener;
         this.regionDir = basePath.resolve("region");
+        this.maxOpenFiles = limitOpenFiles(maxOpenFiles);
 
         try {
             Files.createDirectories(regionDir);
         } catch (IOException e){
             SpongeImpl.getLogger().warn("Failed to create directory: " + regionDir);
         }
-
-        this.cache = CacheBuilder.<Path, RegionFile>newBuilder()
-                .concurrencyLevel(4)
-                .maximumSize(MAX_CACHE_SIZE)
-                .softValues()
-                .removalListener(new RemovalListener<Path, RegionFile>() {
-                    @Override
-                    public void onRemoval(RemovalNotification<Path, RegionFile> notification) {
-                        if(notification.getValue() != null) {
-                            try {
-                                notification.getValue().close();
-                            } catch (IOException ignored) {}
-                        }
-                    }
-                })
-                .build();
     }
 
-    public RegionFile getRegionFile(int chunkX, int chunkZ) throws IOException {
-        Path file = regionDir.resolve("r." + (chunkX >> 5) + "." + (chunkZ >> 5) + extension);
+    /**
+     * Limits the number of open regions to a share of the file descriptors
+     * the process may open, leaving room for sockets, logs and plugins.
+     */
+    private static int limitOpenFiles(int requested) {
+        int limit = Math.max(1, requested);
+        long descriptors = getMaxFileDescriptors();
+        if (descriptors > 0) {
+            int allowed = (int) Math.max(16, Math.min(Integer.MAX_VALUE, descriptors / 4));
+            if (limit > allowed) {
+                SpongeImpl.getLogger().warn("Limiting open region files to " + allowed + " instead of " + limit
+                        + " as the process may only open " + descriptors + " files");
+                limit = allowed;
+            }
+        }
+        return limit;
+    }
 
+    /* the descriptor limit of the process, only exposed by the unix operating system bean, or -1 if it is unknown */
+    private static long getMaxFileDescriptors() {
         try {
-            return cache.get(file, () -> new RegionFile(file));
-        } catch (ExecutionException e) {
-            throw new IOException("Unable to load region file " + file.toString());
+            Object count = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                    new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME), "MaxFileDescriptorCount");
+            return count instanceof Number ? ((Number) count).longValue() : -1;
+        } catch (JMException | RuntimeException e) {
+            return -1;
         }
     }
 
-    public Collection<RegionFile> getCreatedRegions() throws IOException {
-        Map<Path, RegionFile> regions = Maps.newHashMap(cache.asMap());
-        Files.newDirectoryStream(regionDir, region -> !regions.containsKey(region)).forEach(regionPath -> {
+    /**
+     * Opens the region containing the given chunk, or gets it from the cache,
+     * and pins it until the returned handle is closed.
+     * @param chunkX The chunk x coordinate
+     * @param chunkZ The chunk z coordinate
+     * @return The handle of the region
+     * @throws IOException if the region could not be opened
+     */
+    public Handle acquire(int chunkX, int chunkZ) throws IOException {
+        int regionX = chunkX >> 5;
+        int regionZ = chunkZ >> 5;
+        long key = LanternChunkLayout.toKey(regionX, regionZ);
+
+        Handle handle;
+        boolean load = false;
+        synchronized (this) {
+            handle = handles.get(key);
+            // wait for a region being replaced to be reopened
+            while (handle != null && handle.replacing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for region " + regionX + ", " + regionZ);
+                }
+                handle = handles.get(key);
+            }
+            if (handle == null) {
+                misses++;
+                handle = new Handle(key);
+                handles.put(key, handle);
+                load = true;
+            } else {
+                hits++;
+                handle.unlink();
+            }
+            handle.pins++;
+            handle.linkBefore(lru);
+        }
+
+        if (load) {
+            Path file = regionDir.resolve(getFileName(regionX, regionZ, extension));
             try {
-                RegionFile region = new RegionFile(regionPath);
-                regions.put(regionPath, region);
-                cache.put(regionPath, region);
+                handle.loaded(new RegionFile(file, listener));
             } catch (IOException e) {
-                SpongeImpl.getLogger().error("Unable to load region " + regionPath.toString());
+                synchronized (this) {
+                    handles.remove(key);
+                    handle.unlink();
+                }
+                handle.failed(new IOException("Unable to load region file " + file, e));
+            }
+            evictOverflow();
+        }
+
+        try {
+            handle.await();
+        } catch (IOException e) {
+            release(handle);
+            throw e;
+        }
+        return handle;
+    }
+
+    private void release(Handle handle) {
+        boolean overflow;
+        synchronized (this) {
+            handle.pins--;
+            overflow = handle.pins == 0 && handles.size() > maxOpenFiles;
+        }
+        if (overflow) {
+            evictOverflow();
+        }
+    }
+
+    /**
+     * Closes the least recently used regions which aren't pinned until the
+     * number of open regions is within the limit again.
+     */
+    private void evictOverflow() {
+        List<RegionFile> evicted = null;
+        synchronized (this) {
+            Handle handle = lru.next;
+            while (handles.size() > maxOpenFiles && handle != lru) {
+                Handle next = handle.next;
+                if (handle.pins == 0 && handle.region != null) {
+                    handles.remove(handle.key);
+                    handle.unlink();
+                    if (evicted == null) {
+                        evicted = new ArrayList<>();
+                    }
+                    evicted.add(handle.region);
+                }
+                handle = next;
+            }
+        }
+        if (evicted != null) {
+            evicted.forEach(this::closeRegion);
+        }
+    }
+
+    /**
+     * Replaces the file of a region with another file, if nobody else uses
+     * the region. The replacement is given up right away if the region is
+     * pinned by anyone but the caller, and may be retried later. New users
+     * only wait while the file is moved and reopened.
+     * @param handle The handle of the region, held by the caller
+     * @param replacement The file to move over the region file
+     * @param check Tested once the region is exclusively held, the
+     *     replacement is abandoned if it returns false
+     * @return Whether the region was replaced
+     * @throws IOException if the region could not be reopened
+     */
+    public boolean replace(Handle handle, Path replacement, Exclusive check) throws IOException {
+        synchronized (this) {
+            if (handles.get(handle.key) != handle || handle.replacing || handle.pins > 1) {
+                return false;
+            }
+            handle.replacing = true;
+        }
+
+        RegionFile region = handle.getRegion();
+        try {
+            if (!check.run(region)) {
+                return false;
+            }
+            region.close();
+            moveReplacing(replacement, region.getPath());
+            handle.region = new RegionFile(region.getPath(), listener);
+            synchronized (this) {
+                opens++;
+                closes++;
+            }
+            return true;
+        } catch (IOException e) {
+            // the old region is closed, so it has to be dropped
+            synchronized (this) {
+                handles.remove(handle.key);
+                handle.unlink();
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                handle.replacing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Atomically moves a file over another one, and syncs the directory so
+     * that the move itself survives a crash.
+     * @param source The file to move
+     * @param target The file to replace
+     * @throws IOException if the file could not be moved
+     */
+    static void moveReplacing(Path source, Path target) throws IOException {
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel directory = FileChannel.open(target.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // directories can't be opened on every platform, nor do they need to be synced there
+        }
+    }
+
+    /**
+     * An action run while a region is held exclusively.
+     */
+    @FunctionalInterface
+    public interface Exclusive {
+
+        /**
+         * Runs the action.
+         * @param region The region, which nobody else uses at the moment
+         * @return Whether to go on
+         * @throws IOException if an I/O error occurs
+         */
+        boolean run(RegionFile region) throws IOException;
+    }
+
+    private void closeRegion(RegionFile region) {
+        try {
+            region.close();
+        } catch (IOException e) {
+            SpongeImpl.getLogger().warn("Unable to close region file " + region.getPath(), e);
+        }
+        synchronized (this) {
+            closes++;
+        }
+    }
+
+    /**
+     * Gets the coordinates of every region which exists on the disk, without
+     * opening them.
+     * @return The region coordinates
+     * @throws IOException if the region directory could not be listed
+     */
+    public List<Vector2i> getCreatedRegions() throws IOException {
+        List<Vector2i> regions = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(regionDir, "r.*" + extension)) {
+            for (Path path : stream) {
+                Vector2i region = parseFileName(path.getFileName().toString(), extension);
+                if (region != null) {
+                    regions.add(region);
+                } else {
+                    SpongeImpl.getLogger().warn("Ignoring unknown region file " + path);
+                }
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Gets the directory holding the region files.
+     * @return The region directory
+     */
+    public Path getRegionDirectory() {
+        return regionDir;
+    }
+
+    /**
+     * Gets the extension of the region files.
+     * @return The extension, including the dot
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    static String getFileName(int regionX, int regionZ, String extension) {
+        return "r." + regionX + "." + regionZ + extension;
+    }
+
+    /* parses the coordinates from a region file name, null if it isn't one */
+    @Nullable
+    static Vector2i parseFileName(String name, String extension) {
+        if (!name.endsWith(extension)) {
+            return null;
+        }
+        String[] parts = name.substring(0, name.length() - extension.length()).split("\\.");
+        if (parts.length != 3 || !parts[0].equals("r")) {
+            return null;
+        }
+        try {
+            return new Vector2i(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the coordinates of every region which is currently open.
+     * @return The region coordinates
+     */
+    public synchronized List<Vector2i> getOpenRegions() {
+        List<Vector2i> regions = new ArrayList<>(handles.size());
+        handles.forEach((key, handle) -> {
+            if (handle.region != null) {
+                regions.add(new Vector2i(LanternChunkLayout.keyX(key), LanternChunkLayout.keyZ(key)));
             }
         });
+        return regions;
+    }
+
+    /**
+     * Gets the limit of open regions.
+     * @return The maximum number of open regions
+     */
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public synchronized int getOpenCount() {
+        return handles.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getOpens() {
+        return opens;
+    }
 
-        return regions.values();
+    public synchronized long getCloses() {
+        return closes;
     }
 
+    /**
+     * Closes every open region, whether it is pinned or not.
+     */
     public void clear() {
-        cache.invalidateAll();
+        List<RegionFile> regions = new ArrayList<>();
+        synchronized (this) {
+            handles.forEachValue(handle -> {
+                if (handle.region != null) {
+                    regions.add(handle.region);
+                }
+            });
+            handles.clear();
+            lru.next = lru.prev = lru;
+        }
+        regions.forEach(this::closeRegion);
     }
 
+    /**
+     * A pin on an open region. Each handle returned by
+     * {@link #acquire(int, int)} must be closed exactly once.
+     */
+    public final class Handle implements AutoCloseable {
+
+        private final long key;
+        @Nullable private volatile RegionFile region;
+        @Nullable private IOException failure;
+        private int pins;
+        private boolean replacing;
+        private Handle prev = this;
+        private Handle next = this;
+
+        private Handle(long key) {
+            this.key = key;
+        }
+
+        /**
+         * Gets the pinned region.
+         * @return The region file
+         */
+        public RegionFile getRegion() {
+            RegionFile region = this.region;
+            if (region == null) {
+                throw new IllegalStateException("Region is not loaded");
+            }
+            return region;
+        }
+
+        /**
+         * Releases the pin on the region.
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void linkBefore(Handle other) {
+            prev = other.prev;
+            next = other;
+            other.prev.next = this;
+            other.prev = this;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = next = this;
+        }
+
+        private synchronized void loaded(RegionFile region) {
+            this.region = region;
+            synchronized (RegionFileCache.this) {
+                opens++;
+            }
+            notifyAll();
+        }
+
+        private synchronized void failed(IOException failure) {
+            this.failure = failure;
+            notifyAll();
+        }
+
+        private synchronized void await() throws IOException {
+            boolean interrupted = false;
+            while (region == null && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
 }
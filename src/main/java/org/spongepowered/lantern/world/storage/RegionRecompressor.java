@@ -0,0 +1,180 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites every chunk of existing region files with another compression.
+ * This works on the files directly, so the worlds must not be loaded by a
+ * running server.
+ *
+ * <pre>java -cp lantern.jar org.spongepowered.lantern.world.storage.RegionRecompressor
+ *     &lt;deflate|lz4|none&gt; [level] &lt;world or region directory&gt;...</pre>
+ *
+ * <p>Each region is copied chunk by chunk into a new file, which then
+ * replaces the original, so the result is also free of unused sectors. The
+ * timestamps of the chunks are kept.</p>
+ */
+public final class RegionRecompressor {
+
+    private final ChunkCompression compression;
+    private long regions;
+    private long chunks;
+    private long bytesBefore;
+    private long bytesAfter;
+
+    public RegionRecompressor(ChunkCompression compression) {
+        this.compression = compression;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: RegionRecompressor <deflate|lz4|none> [level] <world or region directory>...");
+            System.exit(1);
+            return;
+        }
+
+        int first = 1;
+        int level = 1;
+        if (args[1].matches("\\d")) {
+            level = Integer.parseInt(args[1]);
+            first = 2;
+        }
+
+        ChunkCompression compression;
+        try {
+            compression = ChunkCompression.byName(args[0], level);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        RegionRecompressor recompressor = new RegionRecompressor(compression);
+        boolean failed = false;
+        for (int i = first; i < args.length; i++) {
+            try {
+                recompressor.recompressDirectory(Paths.get(args[i]));
+            } catch (IOException e) {
+                System.err.println("Failed to recompress " + args[i] + ": " + e);
+                failed = true;
+            }
+        }
+
+        System.out.println("Recompressed " + recompressor.chunks + " chunks in " + recompressor.regions + " regions with "
+                + compression + ": " + recompressor.bytesBefore / 1024 + " KB -> " + recompressor.bytesAfter / 1024 + " KB");
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Recompresses every region of a world or region directory. The region
+     * directories of other dimensions in a world directory are included.
+     * @param directory The directory
+     * @throws IOException if a region could not be recompressed
+     */
+    public void recompressDirectory(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        collectRegions(directory, files, 0);
+        for (Path file : files) {
+            recompress(file);
+        }
+    }
+
+    private static void collectRegions(Path directory, List<Path> files, int depth) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (Files.isDirectory(path)) {
+                    // region/ and DIM*/region/ of a world
+                    if (depth < 2) {
+                        collectRegions(path, files, depth + 1);
+                    }
+                } else if (name.startsWith("r.") && name.endsWith(".mca")) {
+                    files.add(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recompresses a single region file.
+     * @param file The region file
+     * @throws IOException if an I/O error occurs
+     */
+    public void recompress(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+
+        long before = Files.size(file);
+        int count = 0;
+        RegionFile source = new RegionFile(file);
+        try {
+            RegionFile target = new RegionFile(temp);
+            try {
+                byte[] chunk = new byte[0];
+                for (int z = 0; z < 32; z++) {
+                    for (int x = 0; x < 32; x++) {
+                        ByteBuffer data = source.getChunkData(x, z);
+                        if (data == null) {
+                            continue;
+                        }
+                        int length = data.remaining();
+                        if (chunk.length < length) {
+                            chunk = new byte[length];
+                        }
+                        data.get(chunk, 0, length);
+                        try (DataOutputStream out = target.getChunkDataOutputStream(x, z, compression)) {
+                            out.write(chunk, 0, length);
+                        }
+                        target.setTimestamp(x, z, source.getTimestamp(x, z));
+                        count++;
+                    }
+                }
+            } finally {
+                target.close();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw new IOException("Unable to recompress " + file, e);
+        } finally {
+            source.close();
+        }
+
+        RegionFileCache.moveReplacing(temp, file);
+        regions++;
+        chunks += count;
+        bytesBefore += before;
+        bytesAfter += Files.size(file);
+    }
+}
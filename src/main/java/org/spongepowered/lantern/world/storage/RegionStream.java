@@ -24,31 +24,66 @@
  */
 package org.spongepowered.lantern.world.storage;
 
+import com.flowpowered.math.vector.Vector2i;
 import org.spongepowered.api.data.DataContainer;
 import org.spongepowered.api.world.storage.ChunkDataStream;
-import org.spongepowered.lantern.util.nbt.NbtDataInputStream;
+import org.spongepowered.lantern.util.nbt.NbtBufferReader;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.annotation.Nullable;
 
+/**
+ * Streams the chunks of a single region. The region is only held open while
+ * the stream is being read from, so it may be closed by the cache between
+ * calls.
+ */
 public class RegionStream implements ChunkDataStream {
 
-    private final RegionFile region;
-    private RegionFile.RegionIterator iterator;
+    private static final int CHUNKS = 32 * 32;
+
+    private final RegionFileCache cache;
+    @Nullable private final ChunkPresenceIndex presence;
+    private final int regionX;
+    private final int regionZ;
+    private final int chunkX;
+    private final int chunkZ;
+    private int index;
+
+    public RegionStream(RegionFileCache cache, Vector2i region) {
+        this(cache, null, region);
+    }
 
-    public RegionStream(RegionFile region) {
-        this.region = region;
-        this.iterator = region.iterator();
+    /**
+     * Creates a stream of the chunks of a region.
+     * @param cache The cache to open the region from
+     * @param presence The index of the stored chunks, which lets the stream
+     *     find the next chunk without opening the region
+     * @param region The region coordinates
+     */
+    public RegionStream(RegionFileCache cache, @Nullable ChunkPresenceIndex presence, Vector2i region) {
+        this.cache = cache;
+        this.presence = presence;
+        this.regionX = region.getX();
+        this.regionZ = region.getY();
+        this.chunkX = regionX << 5;
+        this.chunkZ = regionZ << 5;
     }
 
     @Nullable
     @Override
     public DataContainer next() {
-        if(!hasNext()) return null;
+        try (RegionFileCache.Handle handle = cache.acquire(chunkX, chunkZ)) {
+            RegionFile region = handle.getRegion();
+            index = nextChunk(region, index);
+            if (index == CHUNKS) {
+                return null;
+            }
 
-        try (NbtDataInputStream is = new NbtDataInputStream(iterator.next())) {
-            return is.read();
+            ByteBuffer data = region.getChunkData(index & 31, index >> 5);
+            index++;
+            return data == null ? null : new NbtBufferReader(data).read();
         } catch (IOException e) {
             return null;
         }
@@ -56,16 +91,50 @@ public class RegionStream implements ChunkDataStream {
 
     @Override
     public boolean hasNext() {
-        return iterator.hasNext();
+        if (presence != null) {
+            return presence.nextChunk(regionX, regionZ, index) != CHUNKS;
+        }
+        try (RegionFileCache.Handle handle = cache.acquire(chunkX, chunkZ)) {
+            return nextChunk(handle.getRegion(), index) != CHUNKS;
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     @Override
     public int available() {
-        return iterator.remaining();
+        if (presence != null) {
+            int count = 0;
+            for (int i = presence.nextChunk(regionX, regionZ, index); i < CHUNKS; i = presence.nextChunk(regionX, regionZ, i + 1)) {
+                count++;
+            }
+            return count;
+        }
+        try (RegionFileCache.Handle handle = cache.acquire(chunkX, chunkZ)) {
+            RegionFile region = handle.getRegion();
+            int count = 0;
+            for (int i = index; i < CHUNKS; i++) {
+                if (region.hasChunk(i & 31, i >> 5)) {
+                    count++;
+                }
+            }
+            return count;
+        } catch (IOException e) {
+            return 0;
+        }
     }
 
     @Override
     public void reset() {
-        iterator = region.iterator();
+        index = 0;
+    }
+
+    private static int nextChunk(RegionFile region, int start) {
+        for (int i = start; i < CHUNKS; i++) {
+            if (region.hasChunk(i & 31, i >> 5)) {
+                return i;
+            }
+        }
+        return CHUNKS;
     }
 }
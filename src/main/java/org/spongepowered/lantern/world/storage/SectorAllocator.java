@@ -0,0 +1,256 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world.storage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Tracks which sectors of a {@link RegionFile} are in use. Used sectors are
+ * kept in a bitset, and the free runs between them are indexed by their
+ * length so that a best-fit run is found by probing a single word of
+ * buckets rather than scanning the whole file. Each bucket is a list linked
+ * through arrays indexed by the first sector of a run, so the index never
+ * boxes or allocates per run.
+ *
+ * <p>This class is not thread safe, the owning region serializes access.</p>
+ */
+final class SectorAllocator {
+
+    /**
+     * Runs of at least this many sectors share a single bucket. A chunk can
+     * never occupy this many sectors, so any run in it is a fit.
+     */
+    private static final int LARGE_RUN = 256;
+
+    private final BitSet used = new BitSet();
+
+    /**
+     * The first run of each length, or -1 if there is none.
+     */
+    private final int[] heads = new int[LARGE_RUN + 1];
+
+    /**
+     * The lengths of which there is at least one free run.
+     */
+    private final BitSet nonEmptyRuns = new BitSet(LARGE_RUN + 1);
+
+    /**
+     * The next and previous run of the same length as the run starting at
+     * each sector, or -1 at the ends of the list.
+     */
+    private int[] nextRun;
+    private int[] previousRun;
+
+    private int sectorCount;
+    private int runCount;
+    private boolean indexed;
+
+    /**
+     * Creates an allocator for a file of the given size, with every sector
+     * initially free.
+     * @param sectorCount The number of sectors in the file.
+     */
+    SectorAllocator(int sectorCount) {
+        this.sectorCount = sectorCount;
+        this.nextRun = new int[Math.max(sectorCount, 2)];
+        this.previousRun = new int[this.nextRun.length];
+    }
+
+    /**
+     * Gets the number of sectors in the file, including any sectors that an
+     * allocation has claimed beyond its previous end.
+     * @return The number of sectors.
+     */
+    int getSectorCount() {
+        return sectorCount;
+    }
+
+    /**
+     * Marks the given sectors as used, e.g. while reading the offset table.
+     * The free runs are indexed again on the next allocation.
+     * @param start The first sector.
+     * @param length The number of sectors.
+     */
+    void reserve(int start, int length) {
+        used.set(start, start + length);
+        indexed = false;
+    }
+
+    /**
+     * Finds the smallest free run that can hold the given number of sectors
+     * and marks it as used. If no run is large enough, the file is extended,
+     * reusing any free run at its end.
+     * @param length The number of sectors needed.
+     * @return The first sector of the allocated run.
+     */
+    int allocate(int length) {
+        ensureIndexed();
+
+        int start;
+        int bucket = nonEmptyRuns.nextSetBit(Math.min(length, LARGE_RUN));
+        if (bucket != -1) {
+            start = heads[bucket];
+            int runLength = bucket == LARGE_RUN ? runEnd(start) - start : bucket;
+            removeRun(start, runLength);
+            if (runLength > length) {
+                addRun(start + length, runLength - length);
+            }
+        } else {
+            start = sectorCount;
+            if (start > 0 && !used.get(start - 1)) {
+                start = used.previousSetBit(start - 1) + 1;
+                removeRun(start, sectorCount - start);
+            }
+            sectorCount = start + length;
+        }
+
+        used.set(start, start + length);
+        return start;
+    }
+
+    /**
+     * Marks the given sectors as free, merging them with any adjacent free
+     * runs.
+     * @param start The first sector.
+     * @param length The number of sectors.
+     */
+    void free(int start, int length) {
+        if (length == 0) {
+            return;
+        }
+        ensureIndexed();
+        used.clear(start, start + length);
+
+        int runStart = start;
+        int runEnd = start + length;
+        if (start > 0 && !used.get(start - 1)) {
+            runStart = used.previousSetBit(start - 1) + 1;
+            removeRun(runStart, start - runStart);
+        }
+        if (runEnd < sectorCount && !used.get(runEnd)) {
+            int next = runEnd(runEnd);
+            removeRun(runEnd, next - runEnd);
+            runEnd = next;
+        }
+        addRun(runStart, runEnd - runStart);
+    }
+
+    /**
+     * Gets the number of free sectors in the file.
+     * @return The free sector count.
+     */
+    int getFreeSectors() {
+        return sectorCount - used.cardinality();
+    }
+
+    /**
+     * Gets the length of the largest free run in the file.
+     * @return The largest run, in sectors.
+     */
+    int getLargestFreeRun() {
+        ensureIndexed();
+        int bucket = nonEmptyRuns.previousSetBit(LARGE_RUN);
+        if (bucket != LARGE_RUN) {
+            return Math.max(bucket, 0);
+        }
+        int largest = 0;
+        for (int start = heads[LARGE_RUN]; start != -1; start = nextRun[start]) {
+            largest = Math.max(largest, runEnd(start) - start);
+        }
+        return largest;
+    }
+
+    /**
+     * Gets the number of free runs in the file.
+     * @return The free run count.
+     */
+    int getFreeRuns() {
+        ensureIndexed();
+        return runCount;
+    }
+
+    private int runEnd(int start) {
+        int end = used.nextSetBit(start);
+        return end == -1 || end > sectorCount ? sectorCount : end;
+    }
+
+    private void addRun(int start, int length) {
+        if (start >= nextRun.length) {
+            int capacity = Math.max(start + 1, nextRun.length * 2);
+            nextRun = Arrays.copyOf(nextRun, capacity);
+            previousRun = Arrays.copyOf(previousRun, capacity);
+        }
+        int bucket = Math.min(length, LARGE_RUN);
+        int head = heads[bucket];
+        nextRun[start] = head;
+        previousRun[start] = -1;
+        if (head != -1) {
+            previousRun[head] = start;
+        }
+        heads[bucket] = start;
+        nonEmptyRuns.set(bucket);
+        runCount++;
+    }
+
+    private void removeRun(int start, int length) {
+        int bucket = Math.min(length, LARGE_RUN);
+        int next = nextRun[start];
+        int previous = previousRun[start];
+        if (previous == -1) {
+            heads[bucket] = next;
+            if (next == -1) {
+                nonEmptyRuns.clear(bucket);
+            }
+        } else {
+            nextRun[previous] = next;
+        }
+        if (next != -1) {
+            previousRun[next] = previous;
+        }
+        runCount--;
+    }
+
+    /**
+     * Rebuilds the free run index from the bitset after sectors were
+     * reserved in bulk.
+     */
+    private void ensureIndexed() {
+        if (indexed) {
+            return;
+        }
+        Arrays.fill(heads, -1);
+        nonEmptyRuns.clear();
+        runCount = 0;
+
+        int start = used.nextClearBit(0);
+        while (start < sectorCount) {
+            int end = runEnd(start);
+            addRun(start, end - start);
+            start = used.nextClearBit(end);
+        }
+        indexed = true;
+    }
+}
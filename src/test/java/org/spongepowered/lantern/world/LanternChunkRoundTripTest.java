@@ -0,0 +1,158 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.spongepowered.api.data.DataQuery.of;
+
+import com.flowpowered.math.vector.Vector3i;
+import com.google.inject.Injector;
+import org.apache.logging.log4j.LogManager;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.api.data.DataView;
+import org.spongepowered.api.data.MemoryDataContainer;
+import org.spongepowered.api.data.Queries;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.lantern.LanternGame;
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.util.nbt.NbtBufferReader;
+import org.spongepowered.lantern.util.nbt.NbtDataOutputStream;
+import org.spongepowered.lantern.util.nbt.NbtLazyCompound;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the entities and tile entities of a stored chunk survive a
+ * load and save, including the ones which can't be turned into live objects.
+ */
+public class LanternChunkRoundTripTest {
+
+    private static final int ENTITIES = 2;
+    private static final int TILE_ENTITIES = 3;
+
+    @BeforeClass
+    public static void initialize() {
+        try {
+            SpongeImpl.getInstance();
+        } catch (IllegalStateException e) {
+            // the chunk logs the entries it can't load
+            new SpongeImpl(mock(Injector.class), mock(LanternGame.class), LogManager.getLogger(SpongeImpl.ECOSYSTEM_NAME),
+                    mock(PluginContainer.class), mock(PluginContainer.class));
+        }
+    }
+
+    @Test
+    public void testActivatedRoundTrip() throws IOException {
+        LanternChunk chunk = new LanternChunk(mock(LanternWorld.class), new Vector3i(0, 0, 0));
+        chunk.loadDeferred(read(createChunk()));
+        chunk.activate();
+        assertTrue(chunk.isActive());
+
+        chunk.setDirty(true);
+        assertCounts(chunk);
+    }
+
+    @Test
+    public void testInactiveRoundTrip() throws IOException {
+        LanternChunk chunk = new LanternChunk(mock(LanternWorld.class), new Vector3i(0, 0, 0));
+        chunk.loadDeferred(read(createChunk()));
+        assertFalse(chunk.isActive());
+
+        chunk.setDirty(true);
+        assertCounts(chunk);
+    }
+
+    private static void assertCounts(LanternChunk chunk) throws IOException {
+        DataContainer saved = new MemoryDataContainer();
+        chunk.save(saved);
+
+        // read back what would be written to the region file
+        DataView level = read(saved).toContainer().getView(LanternChunk.LEVEL).get();
+        assertEquals(ENTITIES, level.getViewList(LanternChunk.ENTITIES).get().size());
+        assertEquals(TILE_ENTITIES, level.getViewList(LanternChunk.TILE_ENTITIES).get().size());
+    }
+
+    private static NbtLazyCompound read(DataView root) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (NbtDataOutputStream out = new NbtDataOutputStream(bytes, false)) {
+            out.write(root);
+        }
+        return new NbtBufferReader(ByteBuffer.wrap(bytes.toByteArray())).readLazy();
+    }
+
+    private static DataContainer createChunk() {
+        DataContainer level = new MemoryDataContainer();
+        level.set(of("xPos"), 0);
+        level.set(of("zPos"), 0);
+        level.set(LanternChunk.TERRAIN_POPULATED, (byte) 1);
+
+        DataContainer section = new MemoryDataContainer();
+        section.set(Queries.POSITION_Y, 0);
+        section.set(LanternChunk.BLOCKS, new byte[4096]);
+        section.set(LanternChunk.BLOCK_DATA, new byte[2048]);
+        section.set(LanternChunk.BLOCK_LIGHT, new byte[2048]);
+        section.set(LanternChunk.SKY_LIGHT, new byte[2048]);
+        List<DataView> sections = new ArrayList<>();
+        sections.add(section);
+        level.set(LanternChunk.SECTIONS, sections);
+        level.set(LanternChunk.BIOMES, new byte[256]);
+        level.set(LanternChunk.HEIGHT_MAP, new int[256]);
+
+        // no entity stores are registered, so none of these can be loaded
+        List<DataView> entities = new ArrayList<>();
+        for (int i = 0; i < ENTITIES; i++) {
+            DataContainer entity = new MemoryDataContainer();
+            entity.set(of("id"), "Pig");
+            entities.add(entity);
+        }
+        level.set(LanternChunk.ENTITIES, entities);
+
+        // nor are there any blocks for these
+        List<DataView> tileEntities = new ArrayList<>();
+        for (int i = 0; i < TILE_ENTITIES; i++) {
+            DataContainer tileEntity = new MemoryDataContainer();
+            tileEntity.set(of("id"), "Chest");
+            tileEntity.set(of("x"), i);
+            tileEntity.set(of("y"), 0);
+            tileEntity.set(of("z"), 0);
+            tileEntities.add(tileEntity);
+        }
+        level.set(LanternChunk.TILE_ENTITIES, tileEntities);
+
+        DataContainer root = new MemoryDataContainer();
+        root.set(LanternChunk.LEVEL, level);
+        return root;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of Sponge, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) SpongePowered <https://www.spongepowered.org>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.spongepowered.lantern.world;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.flowpowered.math.vector.Vector3i;
+import com.google.inject.Injector;
+import org.apache.logging.log4j.LogManager;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.lantern.LanternGame;
+import org.spongepowered.lantern.SpongeImpl;
+import org.spongepowered.lantern.block.tileentity.LanternTileEntity;
+import org.spongepowered.lantern.world.LanternChunk.ChunkSection;
+
+/**
+ * Checks that the tickable tile entities of an active chunk are added to the
+ * ticking list of the world, and pulsed from it while they are valid.
+ */
+public class TileEntityTickingTest {
+
+    private static final char FURNACE = 61 << 4;
+    private static final char SIGN = 63 << 4;
+
+    @BeforeClass
+    public static void initialize() {
+        try {
+            SpongeImpl.getInstance();
+        } catch (IllegalStateException e) {
+            new SpongeImpl(mock(Injector.class), mock(LanternGame.class), LogManager.getLogger(SpongeImpl.ECOSYSTEM_NAME),
+                    mock(PluginContainer.class), mock(PluginContainer.class));
+        }
+    }
+
+    @Test
+    public void testPlacedTileEntityTicks() {
+        TileEntityTicker ticker = new TileEntityTicker();
+        LanternWorld world = mock(LanternWorld.class, RETURNS_DEEP_STUBS);
+        doAnswer(invocation -> {
+            ticker.add((LanternTileEntity) invocation.getArguments()[0]);
+            return null;
+        }).when(world).addTickingTileEntity(any(LanternTileEntity.class));
+
+        LanternChunk chunk = new LanternChunk(world, new Vector3i(0, 0, 0));
+        chunk.initializeSections(new ChunkSection[16]);
+        chunk.activate();
+
+        // a sign doesn't tick, a furnace does
+        chunk.setType(0, 64, 0, SIGN);
+        chunk.setType(1, 64, 0, FURNACE);
+        assertEquals(1, ticker.size());
+        ticker.pulse();
+        assertEquals(1, ticker.size());
+
+        // replacing the furnace invalidates its tile entity, which is dropped on the next tick
+        chunk.setType(1, 64, 0, (char) 0);
+        ticker.pulse();
+        assertEquals(0, ticker.size());
+    }
+
+    @Test
+    public void testPulsedWhileValid() {
+        TileEntityTicker ticker = new TileEntityTicker();
+        LanternTileEntity valid = mock(LanternTileEntity.class);
+        when(valid.isValid()).thenReturn(true);
+        LanternTileEntity invalid = mock(LanternTileEntity.class);
+        when(invalid.isValid()).thenReturn(false);
+        ticker.add(valid);
+        ticker.add(invalid);
+
+        ticker.pulse();
+        verify(valid).pulse();
+        verify(invalid, never()).pulse();
+        assertEquals(1, ticker.size());
+    }
+
+    @Test
+    public void testTickableTypes() {
+        LanternWorld world = mock(LanternWorld.class, RETURNS_DEEP_STUBS);
+        LanternChunk chunk = new LanternChunk(world, new Vector3i(0, 0, 0));
+        chunk.initializeSections(new ChunkSection[16]);
+        chunk.setType(0, 64, 0, FURNACE);
+        chunk.setType(1, 64, 0, SIGN);
+
+        assertTrue(((LanternTileEntity) chunk.getTileEntity(0, 64, 0).get()).isTickable());
+        assertFalse(((LanternTileEntity) chunk.getTileEntity(1, 64, 0).get()).isTickable());
+    }
+}